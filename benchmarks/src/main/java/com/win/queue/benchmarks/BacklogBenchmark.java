@@ -0,0 +1,82 @@
+package com.win.queue.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.google.common.base.Functions;
+import com.win.queue.CloseableIterator;
+import com.win.queue.FileBackedBlockingQueue;
+
+/**
+ * Cost of the operations which walk the backlog: a full iteration, and
+ * contains/remove of an element which is not in the queue (the worst case),
+ * with and without the key index.
+ * 
+ * @author Vijay Parthasarathy
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BacklogBenchmark {
+    @Param({ "10000", "1000000" })
+    public int backlog;
+
+    @Param({ "false", "true" })
+    public boolean indexed;
+
+    private File directory;
+    private FileBackedBlockingQueue<Long> queue;
+
+    @Setup
+    public void setup() throws Exception {
+	directory = Payloads.newDirectory();
+	FileBackedBlockingQueue.Builder<Long> builder = new FileBackedBlockingQueue.Builder<Long>()
+		.directory(directory).serializer(new Payloads.LongSerializer())
+		.segmentSize(1024 * 1024);
+	if (indexed)
+	    builder.keyExtractor(Functions.identity());
+	queue = builder.build();
+	for (long i = 0; i < backlog; i++)
+	    queue.offer(i);
+    }
+
+    @TearDown
+    public void tearDown() {
+	queue.close();
+	Payloads.delete(directory);
+    }
+
+    @Benchmark
+    public void iterate(Blackhole blackhole) {
+	CloseableIterator<Long> it = queue.iterator();
+	while (it.hasNext())
+	    blackhole.consume(it.next());
+    }
+
+    @Benchmark
+    public boolean containsMissing() {
+	return queue.contains(-1L);
+    }
+
+    @Benchmark
+    public boolean removeMissing() {
+	return queue.remove(-1L);
+    }
+}
@@ -0,0 +1,90 @@
+package com.win.queue.benchmarks;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.common.base.Charsets;
+import com.win.queue.FileBackedBlockingQueue;
+
+/**
+ * Batches of JSON like elements written raw (level 0) or deflated at the
+ * level and drained back. The compression ratio and the time spent deflating
+ * and inflating are printed after every iteration.
+ *
+ * @author Vijay Parthasarathy
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+    private static final int BATCH = 1000;
+
+    @Param({ "0", "1", "6" })
+    public int level;
+
+    private File directory;
+    private FileBackedBlockingQueue<byte[]> queue;
+    private List<byte[]> batch;
+    private final List<byte[]> drained = new ArrayList<byte[]>(BATCH);
+
+    @Setup
+    public void setup() throws Exception {
+	batch = new ArrayList<byte[]>(BATCH);
+	for (int i = 0; i < BATCH; i++)
+	    batch.add(("{\"id\": " + i + ", \"type\": \"order\", \"status\": \""
+		    + (i % 3 == 0 ? "shipped" : "pending")
+		    + "\", \"customer\": {\"id\": " + i % 97
+		    + ", \"region\": \"us-east\"}, \"items\": [" + i % 7 + ", "
+		    + i % 11 + "]}").getBytes(Charsets.UTF_8));
+	directory = Payloads.newDirectory();
+	FileBackedBlockingQueue.Builder<byte[]> builder = new FileBackedBlockingQueue.Builder<byte[]>()
+		.directory(directory).serializer(new Payloads.BytesSerializer())
+		.segmentSize(64 * 1024 * 1024);
+	if (level > 0)
+	    builder.compression(level);
+	queue = builder.build();
+    }
+
+    @TearDown(Level.Iteration)
+    public void report() {
+	System.out.printf("%n  ratio: %.2f, deflate: %d ms, inflate: %d ms%n",
+		queue.getCompressionRatio(),
+		TimeUnit.NANOSECONDS.toMillis(queue.getCompressNanos()),
+		TimeUnit.NANOSECONDS.toMillis(queue.getDecompressNanos()));
+    }
+
+    @TearDown
+    public void tearDown() {
+	queue.close();
+	Payloads.delete(directory);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public List<byte[]> offerAllDrain() {
+	queue.offerAll(batch);
+	drained.clear();
+	queue.drainTo(drained);
+	return drained;
+    }
+}
@@ -0,0 +1,103 @@
+package com.win.queue.benchmarks;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.win.queue.FileBackedBlockingQueue;
+import com.win.queue.FileBackedLongQueue;
+
+/**
+ * Longs through a FileBackedBlockingQueue<Long> (boxed, length prefixed
+ * entries) against a FileBackedLongQueue (8 byte records, no allocation),
+ * one at a time and in batches. Run with -prof gc for the allocation rate.
+ *
+ * @author Vijay Parthasarathy
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LongQueueBenchmark {
+    private static final int BATCH = 1000;
+
+    private File boxedDirectory;
+    private File primitiveDirectory;
+    private FileBackedBlockingQueue<Long> boxed;
+    private FileBackedLongQueue primitive;
+    private final List<Long> boxedBatch = new ArrayList<Long>(BATCH);
+    private final List<Long> boxedDrained = new ArrayList<Long>(BATCH);
+    private final long[] batch = new long[BATCH];
+    private final long[] drained = new long[BATCH];
+    private long next;
+
+    @Setup
+    public void setup() throws Exception {
+	for (int i = 0; i < BATCH; i++) {
+	    batch[i] = i;
+	    boxedBatch.add((long) i);
+	}
+	boxedDirectory = Payloads.newDirectory();
+	boxed = new FileBackedBlockingQueue.Builder<Long>()
+		.directory(boxedDirectory)
+		.serializer(new Payloads.LongSerializer())
+		.segmentSize(64 * 1024 * 1024).build();
+	primitiveDirectory = Payloads.newDirectory();
+	primitive = new FileBackedLongQueue(
+		new FileBackedBlockingQueue.Builder<Object>().directory(
+			primitiveDirectory).segmentSize(64 * 1024 * 1024));
+    }
+
+    @TearDown
+    public void tearDown() {
+	boxed.close();
+	primitive.close();
+	Payloads.delete(boxedDirectory);
+	Payloads.delete(primitiveDirectory);
+    }
+
+    @Benchmark
+    public Long boxedOfferPoll() {
+	boxed.offer(next++);
+	return boxed.poll();
+    }
+
+    @Benchmark
+    public long primitiveOfferPoll() {
+	primitive.offer(next++);
+	return primitive.poll(-1);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public List<Long> boxedBatch() {
+	boxed.offerAll(boxedBatch);
+	boxedDrained.clear();
+	boxed.drainTo(boxedDrained);
+	return boxedDrained;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long[] primitiveBatch() {
+	primitive.offerAll(batch);
+	primitive.drainTo(drained);
+	return drained;
+    }
+}
@@ -0,0 +1,29 @@
+package com.win.queue.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks selected on the command line (the usual JMH options)
+ * with the allocation profiler, the results are written as JSON to
+ * jmh-result.json unless -rff says otherwise.
+ * 
+ * @author Vijay Parthasarathy
+ */
+public class Main {
+    public static void main(String[] args) throws Exception {
+	CommandLineOptions cmd = new CommandLineOptions(args);
+	OptionsBuilder builder = new OptionsBuilder();
+	builder.parent(cmd).addProfiler(GCProfiler.class);
+	if (!cmd.getResultFormat().hasValue())
+	    builder.resultFormat(ResultFormatType.JSON);
+	if (!cmd.getResult().hasValue())
+	    builder.result("jmh-result.json");
+	Options options = builder.build();
+	new Runner(options).run();
+    }
+}
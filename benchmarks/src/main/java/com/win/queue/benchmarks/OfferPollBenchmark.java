@@ -0,0 +1,78 @@
+package com.win.queue.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.win.queue.FileBackedBlockingQueue;
+
+/**
+ * Offer followed by a poll on a shared queue, by payload and segment size
+ * against a LinkedBlockingQueue. Run with -t to vary the number of threads.
+ * 
+ * @author Vijay Parthasarathy
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OfferPollBenchmark {
+    @Param({ "file", "linked" })
+    public String queue;
+
+    @Param({ "16", "256", "4096", "65536" })
+    public int payloadSize;
+
+    @Param({ "1048576", "134217728" })
+    public long segmentSize;
+
+    private File directory;
+    private BlockingQueue<byte[]> q;
+    private FileBackedBlockingQueue<byte[]> file; // null if linked.
+    private byte[] payload;
+
+    @Setup
+    public void setup() throws Exception {
+	payload = new byte[payloadSize];
+	if (queue.equals("linked")) {
+	    q = new LinkedBlockingQueue<byte[]>();
+	    return;
+	}
+	directory = Payloads.newDirectory();
+	file = new FileBackedBlockingQueue.Builder<byte[]>()
+		.directory(directory)
+		.serializer(new Payloads.BytesSerializer())
+		.segmentSize(segmentSize).build();
+	q = file;
+    }
+
+    @TearDown
+    public void tearDown() {
+	if (file != null) {
+	    file.close();
+	    Payloads.delete(directory);
+	}
+    }
+
+    @Benchmark
+    public byte[] offerPoll() {
+	q.offer(payload);
+	return q.poll();
+    }
+}
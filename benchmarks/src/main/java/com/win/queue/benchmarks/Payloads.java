@@ -0,0 +1,56 @@
+package com.win.queue.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.win.queue.DirectQueueSerializer;
+
+/**
+ * Serializers and scratch directories shared by the benchmarks.
+ * 
+ * @author Vijay Parthasarathy
+ */
+final class Payloads {
+    private Payloads() {
+    }
+
+    static class BytesSerializer implements DirectQueueSerializer<byte[]> {
+	public int serialize(byte[] t, ByteBuffer buffer) {
+	    buffer.put(t);
+	    return t.length;
+	}
+
+	public byte[] deserialize(ByteBuffer buffer) {
+	    byte[] bytes = new byte[buffer.remaining()];
+	    buffer.get(bytes);
+	    return bytes;
+	}
+    }
+
+    static class LongSerializer implements DirectQueueSerializer<Long> {
+	public int serialize(Long t, ByteBuffer buffer) {
+	    buffer.putLong(t);
+	    return 8;
+	}
+
+	public Long deserialize(ByteBuffer buffer) {
+	    return buffer.getLong();
+	}
+    }
+
+    static File newDirectory() throws IOException {
+	File directory = File.createTempFile("fbbq-bench", "");
+	if (!directory.delete() || !directory.mkdirs())
+	    throw new IOException("Can't create " + directory);
+	return directory;
+    }
+
+    static void delete(File directory) {
+	File[] files = directory.listFiles();
+	if (files != null)
+	    for (File file : files)
+		file.delete();
+	directory.delete();
+    }
+}
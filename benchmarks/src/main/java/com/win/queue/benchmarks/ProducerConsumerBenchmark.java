@@ -0,0 +1,185 @@
+package com.win.queue.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Control;
+
+import com.win.queue.FileBackedBlockingQueue;
+
+/**
+ * Producers and consumers on separate threads in 1:1, 4:1 and 1:4 ratios.
+ * The consumers in the offer/poll groups poll without blocking (an empty poll
+ * counts as an operation), the ones in the put/take groups block. Both queues
+ * hold at most {@link #CAPACITY} elements so that a group with more producers
+ * measures the backpressure instead of a growing heap or disk.
+ * 
+ * @author Vijay Parthasarathy
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProducerConsumerBenchmark {
+    static final int CAPACITY = 10000;
+
+    @Param({ "file", "linked" })
+    public String queue;
+
+    @Param({ "16", "4096" })
+    public int payloadSize;
+
+    private File directory;
+    private BlockingQueue<byte[]> q;
+    private FileBackedBlockingQueue<byte[]> file; // null if linked.
+    private byte[] payload;
+
+    @Setup
+    public void setup() throws Exception {
+	payload = new byte[payloadSize];
+	if (queue.equals("linked")) {
+	    q = new LinkedBlockingQueue<byte[]>(CAPACITY);
+	    return;
+	}
+	directory = Payloads.newDirectory();
+	// the capacity bounds the backlog, the max only the segments not
+	// recycled yet.
+	file = new FileBackedBlockingQueue.Builder<byte[]>()
+		.directory(directory)
+		.serializer(new Payloads.BytesSerializer())
+		.capacity(CAPACITY)
+		.max(1024L * 1024 * 1024)
+		.build();
+	q = file;
+    }
+
+    @TearDown
+    public void tearDown() {
+	if (file != null) {
+	    file.close();
+	    Payloads.delete(directory);
+	}
+    }
+
+    /**
+     * Blocks until there is room, a producer left blocked when the consumers
+     * are done would never end the iteration. Once the measurement is over it
+     * only offers, see the JMH Control sample.
+     */
+    private void put(Control control) throws InterruptedException {
+	if (control.stopMeasurement)
+	    q.offer(payload);
+	else
+	    q.put(payload);
+    }
+
+    /**
+     * Blocks until there is an element, polls once the measurement is over
+     * like {@link #put(Control)}.
+     */
+    private byte[] take(Control control) throws InterruptedException {
+	return control.stopMeasurement ? q.poll() : q.take();
+    }
+
+    @Benchmark
+    @Group("p1c1")
+    @GroupThreads(1)
+    public boolean offer11() {
+	return q.offer(payload);
+    }
+
+    @Benchmark
+    @Group("p1c1")
+    @GroupThreads(1)
+    public byte[] poll11() {
+	return q.poll();
+    }
+
+    @Benchmark
+    @Group("p4c1")
+    @GroupThreads(4)
+    public boolean offer41() {
+	return q.offer(payload);
+    }
+
+    @Benchmark
+    @Group("p4c1")
+    @GroupThreads(1)
+    public byte[] poll41() {
+	return q.poll();
+    }
+
+    @Benchmark
+    @Group("p1c4")
+    @GroupThreads(1)
+    public boolean offer14() {
+	return q.offer(payload);
+    }
+
+    @Benchmark
+    @Group("p1c4")
+    @GroupThreads(4)
+    public byte[] poll14() {
+	return q.poll();
+    }
+
+    @Benchmark
+    @Group("put1take1")
+    @GroupThreads(1)
+    public void put11(Control control) throws InterruptedException {
+	put(control);
+    }
+
+    @Benchmark
+    @Group("put1take1")
+    @GroupThreads(1)
+    public byte[] take11(Control control) throws InterruptedException {
+	return take(control);
+    }
+
+    @Benchmark
+    @Group("put4take1")
+    @GroupThreads(4)
+    public void put41(Control control) throws InterruptedException {
+	put(control);
+    }
+
+    @Benchmark
+    @Group("put4take1")
+    @GroupThreads(1)
+    public byte[] take41(Control control) throws InterruptedException {
+	return take(control);
+    }
+
+    @Benchmark
+    @Group("put1take4")
+    @GroupThreads(1)
+    public void put14(Control control) throws InterruptedException {
+	put(control);
+    }
+
+    @Benchmark
+    @Group("put1take4")
+    @GroupThreads(4)
+    public byte[] take14(Control control) throws InterruptedException {
+	return take(control);
+    }
+}
@@ -0,0 +1,70 @@
+package com.win.queue.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.win.queue.FileBackedBlockingQueue;
+
+/**
+ * Fills and drains small segments so that most of the time goes to the roll
+ * overs and the recycling, with and without preallocated spares.
+ * 
+ * @author Vijay Parthasarathy
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RolloverBenchmark {
+    private static final int BATCH = 1000;
+
+    @Param({ "65536", "262144" })
+    public long segmentSize;
+
+    @Param({ "0", "2" })
+    public int spares;
+
+    private File directory;
+    private FileBackedBlockingQueue<byte[]> queue;
+    private final byte[] payload = new byte[256];
+
+    @Setup
+    public void setup() throws Exception {
+	directory = Payloads.newDirectory();
+	queue = new FileBackedBlockingQueue.Builder<byte[]>()
+		.directory(directory).serializer(new Payloads.BytesSerializer())
+		.segmentSize(segmentSize).preallocate(spares).build();
+    }
+
+    @TearDown
+    public void tearDown() {
+	queue.close();
+	Payloads.delete(directory);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void fillAndDrain(Blackhole blackhole) {
+	for (int i = 0; i < BATCH; i++)
+	    queue.offer(payload);
+	for (int i = 0; i < BATCH; i++)
+	    blackhole.consume(queue.poll());
+    }
+}
@@ -0,0 +1,98 @@
+package com.win.queue.benchmarks;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.win.queue.FileBackedBlockingQueue;
+import com.win.queue.StorageEngine;
+
+/**
+ * The mmap engine against the FileChannel engine: offer followed by a poll
+ * (the consumer reads what was just written), a batch of offers drained
+ * afterwards (the consumer reads a backlog) and a producer with a consumer
+ * on separate threads (the capacity bounds the backlog). Look at the sample
+ * time percentiles for the tail latency.
+ *
+ * @author Vijay Parthasarathy
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StorageEngineBenchmark {
+    private static final int BATCH = 1000;
+
+    @Param({ "MMAP", "CHANNEL" })
+    public StorageEngine engine;
+
+    @Param({ "64", "1024", "16384" })
+    public int payloadSize;
+
+    private File directory;
+    private FileBackedBlockingQueue<byte[]> queue;
+    private byte[] payload;
+
+    @Setup
+    public void setup() throws Exception {
+	payload = new byte[payloadSize];
+	directory = Payloads.newDirectory();
+	queue = new FileBackedBlockingQueue.Builder<byte[]>()
+		.directory(directory).serializer(new Payloads.BytesSerializer())
+		.segmentSize(64 * 1024 * 1024).capacity(10 * BATCH)
+		.storage(engine).build();
+    }
+
+    @TearDown
+    public void tearDown() {
+	queue.close();
+	Payloads.delete(directory);
+    }
+
+    @Benchmark
+    public byte[] offerPoll() {
+	queue.offer(payload);
+	return queue.poll();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void offerThenDrain(Blackhole blackhole) {
+	for (int i = 0; i < BATCH; i++)
+	    queue.offer(payload);
+	for (int i = 0; i < BATCH; i++)
+	    blackhole.consume(queue.poll());
+    }
+
+    @Benchmark
+    @Group("producerConsumer")
+    @GroupThreads(1)
+    public boolean produce() {
+	return queue.offer(payload);
+    }
+
+    @Benchmark
+    @Group("producerConsumer")
+    @GroupThreads(1)
+    public byte[] consume() {
+	return queue.poll();
+    }
+}
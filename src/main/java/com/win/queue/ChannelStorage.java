@@ -0,0 +1,494 @@
+package com.win.queue;
+
+import java.io.File;
+import java.io.IOError;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Keeps a segment file behind FileChannel writes and positional reads instead
+ * of a mapping, so the producers pay for write() calls rather than page
+ * faults and the dirty pages are written back by the OS as for any file.
+ * <p>
+ * The appended bytes go to a write back buffer (the tail) which is written to
+ * the file when it is full, when the segment is sealed, forced or unmapped.
+ * The header is kept in the heap and written with the tail, the consumer's
+ * read position is not written on every read. The readers read blocks of the
+ * file into a direct buffer of their thread, the bytes still in the tail are
+ * read from there. The tail buffers of the unmapped segments are pooled.
+ * <p>
+ * The producers reserve their ranges of the tail under the monitor and put
+ * their bytes into them under the read lock, in parallel; the tail is written
+ * and started over under the write lock.
+ *
+ * @author Vijay Parthasarathy
+ */
+class ChannelStorage extends SegmentStorage {
+    static final int BUFFER_SIZE = 64 * 1024;
+    private static final int BLOCK_SIZE = 16 * 1024;
+    private static final int POOL_SIZE = 64;
+    // room left in front of a new tail for the entry's length and flag,
+    // which are written after its payload.
+    private static final int SLACK = 64;
+    private static final ByteBuffer[] NO_WRITERS = new ByteBuffer[0];
+    private static final Queue<ByteBuffer> pool = new ConcurrentLinkedQueue<ByteBuffer>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+    private static final ThreadLocal<Block> blocks = new ThreadLocal<Block>() {
+	protected Block initialValue() {
+	    return new Block();
+	}
+    };
+    private static final ThreadLocal<ByteBuffer> scratch = new ThreadLocal<ByteBuffer>() {
+	protected ByteBuffer initialValue() {
+	    return ByteBuffer.allocateDirect(8);
+	}
+    };
+
+    private final FileChannel channel;
+    private final ByteBuffer head = ByteBuffer.allocate(Segment.HEADER_SIZE);
+    private boolean headDirty;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private ByteBuffer tail; // null while unmapped.
+    private long tailStart; // position of the tail's first byte.
+    private volatile int from, to; // range of the tail holding the latest data.
+    private int dirtyFrom, dirtyTo; // range of the tail not yet written.
+    // bumped by every write to the file.
+    private final AtomicLong version = new AtomicLong();
+
+    /**
+     * Block of a segment file read by a thread.
+     */
+    private static class Block {
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(BLOCK_SIZE);
+	private ChannelStorage storage;
+	private long start;
+	private int length;
+	private long version = -1;
+    }
+
+    ChannelStorage(File logFile, long length, int windowSize, boolean existing) {
+	super(logFile, length, windowSize, existing);
+	channel = file.getChannel();
+	head.limit((int) Math.min(head.capacity(), length));
+	readFully(head, 0);
+	head.clear();
+    }
+
+    boolean isMapped() {
+	lock.readLock().lock();
+	try {
+	    return tail != null;
+	} finally {
+	    lock.readLock().unlock();
+	}
+    }
+
+    void map() {
+	lock.writeLock().lock();
+	try {
+	    synchronized (this) {
+		if (tail != null)
+		    return;
+		tail = pool.poll();
+		if (tail == null)
+		    tail = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		else
+		    pooled.decrementAndGet();
+		rebase(length());
+	    }
+	} finally {
+	    lock.writeLock().unlock();
+	}
+    }
+
+    void unmap() {
+	lock.writeLock().lock();
+	try {
+	    synchronized (this) {
+		if (tail == null)
+		    return;
+		flush();
+		release(tail);
+		tail = null;
+	    }
+	} finally {
+	    lock.writeLock().unlock();
+	}
+    }
+
+    private static void release(ByteBuffer buffer) {
+	if (buffer.capacity() != BUFFER_SIZE)
+	    return;
+	if (pooled.incrementAndGet() <= POOL_SIZE)
+	    pool.offer(buffer);
+	else
+	    pooled.decrementAndGet();
+    }
+
+    int getInt(long position) {
+	Block block = block(position, 4);
+	return block.buffer.getInt((int) (position - block.start));
+    }
+
+    void putInt(long position, int value) {
+	ByteBuffer buffer = scratch.get();
+	buffer.clear();
+	buffer.putInt(value).flip();
+	store(position, buffer, false);
+    }
+
+    long getLong(long position) {
+	Block block = block(position, 8);
+	return block.buffer.getLong((int) (position - block.start));
+    }
+
+    void putLong(long position, long value) {
+	ByteBuffer buffer = scratch.get();
+	buffer.clear();
+	buffer.putLong(value).flip();
+	store(position, buffer, false);
+    }
+
+    byte get(long position) {
+	Block block = block(position, 1);
+	return block.buffer.get((int) (position - block.start));
+    }
+
+    void put(long position, byte value) {
+	ByteBuffer buffer = scratch.get();
+	buffer.clear();
+	buffer.put(value).flip();
+	store(position, buffer, false);
+    }
+
+    /**
+     * A buffer for the entries larger than a block, grown as needed.
+     */
+    ByteBuffer[] newViews() {
+	return new ByteBuffer[1];
+    }
+
+    ByteBuffer read(ByteBuffer[] views, long position, int size) {
+	if (size <= BLOCK_SIZE) {
+	    Block block = block(position, size);
+	    int start = (int) (position - block.start);
+	    block.buffer.limit(start + size);
+	    block.buffer.position(start);
+	    return block.buffer;
+	}
+	if (overlapsTail(position, size))
+	    flush();
+	ByteBuffer buffer = views[0];
+	if (buffer == null || buffer.capacity() < size)
+	    views[0] = buffer = ByteBuffer.allocateDirect(size);
+	buffer.clear();
+	buffer.limit(size);
+	readFully(buffer, position);
+	buffer.flip();
+	return buffer;
+    }
+
+    ByteBuffer[] newWriters() {
+	return NO_WRITERS;
+    }
+
+    void write(ByteBuffer[] writers, long position, ByteBuffer source) {
+	store(position, source, true);
+    }
+
+    ByteBuffer appender(long position, long end, int capacity) {
+	lock.writeLock().lock();
+	try {
+	    synchronized (this) {
+		if (!fits(position, Math.max(capacity, 1))) {
+		    flush();
+		    if (capacity + SLACK > tail.capacity()) {
+			release(tail);
+			tail = ByteBuffer.allocateDirect(Integer
+				.highestOneBit(capacity + SLACK) << 1);
+		    }
+		    rebase(position);
+		}
+		int offset = (int) (position - tailStart);
+		ByteBuffer buffer = tail.duplicate();
+		buffer.clear();
+		buffer.limit((int) Math.min(tail.capacity(), offset
+			+ (end - position)));
+		buffer.position(offset);
+		return buffer;
+	    }
+	} finally {
+	    lock.writeLock().unlock();
+	}
+    }
+
+    synchronized void appended(long position, int length) {
+	stored((int) (position - tailStart), length);
+    }
+
+    void flush() {
+	lock.writeLock().lock();
+	try {
+	    synchronized (this) {
+		if (headDirty) {
+		    ByteBuffer buffer = head.duplicate();
+		    buffer.clear();
+		    writeFully(buffer, 0);
+		    headDirty = false;
+		}
+		if (tail != null && dirtyFrom < dirtyTo) {
+		    ByteBuffer buffer = tail.duplicate();
+		    buffer.limit(dirtyTo);
+		    buffer.position(dirtyFrom);
+		    writeFully(buffer, tailStart + dirtyFrom);
+		    dirtyFrom = tail.capacity();
+		    dirtyTo = 0;
+		}
+	    }
+	} finally {
+	    lock.writeLock().unlock();
+	}
+    }
+
+    void force() {
+	flush();
+	try {
+	    channel.force(false);
+	} catch (IOException e) {
+	    throw new IOError(e);
+	}
+    }
+
+    /**
+     * Starts the tail over at the position, what it held should be flushed.
+     * The bytes in front of the position are not held, the range grows only
+     * over the bytes written into the tail after that.
+     */
+    private void rebase(long position) {
+	tailStart = Math.max(head.capacity(), position - SLACK);
+	from = to = (int) (position - tailStart);
+	dirtyFrom = tail.capacity();
+	dirtyTo = 0;
+    }
+
+    /**
+     * True if the range can be written into the tail, it should touch or
+     * overlap the latest data so that the tail stays one range.
+     */
+    private boolean fits(long position, int size) {
+	return position >= tailStart
+		&& position + size <= tailStart + tail.capacity()
+		&& position <= tailStart + to
+		&& position + size >= tailStart + from;
+    }
+
+    /**
+     * The tail holds the latest data of the range, which fits, it is to be
+     * written.
+     */
+    private void stored(int offset, int size) {
+	from = Math.min(from, offset);
+	to = Math.max(to, offset + size);
+	dirtyFrom = Math.min(dirtyFrom, offset);
+	dirtyTo = Math.max(dirtyTo, offset + size);
+    }
+
+    /**
+     * Offset of the range reserved in the tail, or -1 if it doesn't fit. The
+     * range is taken as the latest data before its bytes are put into it,
+     * which is fine as nothing reads it before the writer publishes it.
+     */
+    private synchronized int reserve(long position, int size) {
+	if (tail == null || !fits(position, size))
+	    return -1;
+	int offset = (int) (position - tailStart);
+	stored(offset, size);
+	return offset;
+    }
+
+    /**
+     * The reader should hold the lock, the range only grows until the tail is
+     * started over.
+     */
+    private boolean inTail(long position, int size) {
+	return tail != null && position >= tailStart + from
+		&& position + size <= tailStart + to;
+    }
+
+    private boolean overlapsTail(long position, int size) {
+	lock.readLock().lock();
+	try {
+	    return tail != null && position < tailStart + to
+		    && position + size > tailStart + from;
+	} finally {
+	    lock.readLock().unlock();
+	}
+    }
+
+    /**
+     * Writes the remaining bytes of the source into the header, the tail or
+     * the file. An append which doesn't fit in the tail starts it over.
+     */
+    private void store(long position, ByteBuffer source, boolean append) {
+	int size = source.remaining();
+	if (position < head.capacity()) {
+	    synchronized (this) {
+		ByteBuffer buffer = head.duplicate();
+		buffer.clear();
+		buffer.position((int) position);
+		buffer.put(source);
+		headDirty = true;
+	    }
+	    return;
+	}
+	lock.readLock().lock();
+	try {
+	    int offset = reserve(position, size);
+	    if (offset >= 0) {
+		put(offset, source);
+		return;
+	    }
+	    if (!append || tail == null || size + SLACK > tail.capacity()) {
+		writeThrough(position, source);
+		return;
+	    }
+	} finally {
+	    lock.readLock().unlock();
+	}
+	lock.writeLock().lock();
+	try {
+	    synchronized (this) {
+		if (tail == null || size + SLACK > tail.capacity()) {
+		    writeThrough(position, source);
+		    return;
+		}
+		if (!fits(position, size)) {
+		    flush();
+		    rebase(position);
+		}
+		int offset = (int) (position - tailStart);
+		put(offset, source);
+		stored(offset, size);
+	    }
+	} finally {
+	    lock.writeLock().unlock();
+	}
+    }
+
+    /**
+     * Puts the remaining bytes of the source into the tail at the offset.
+     */
+    private void put(int offset, ByteBuffer source) {
+	ByteBuffer buffer = tail.duplicate();
+	buffer.clear();
+	buffer.position(offset);
+	buffer.put(source);
+    }
+
+    /**
+     * Writes the source to the file. The bytes which fall in the tail are put
+     * into it as well, so that it never holds older bytes than the file for
+     * a position written since it was started over.
+     */
+    private void writeThrough(long position, ByteBuffer source) {
+	if (tail != null) {
+	    long start = Math.max(position, tailStart);
+	    long end = Math.min(position + source.remaining(), tailStart
+		    + tail.capacity());
+	    if (start < end) {
+		ByteBuffer bytes = source.duplicate();
+		bytes.position(source.position() + (int) (start - position));
+		bytes.limit(bytes.position() + (int) (end - start));
+		put((int) (start - tailStart), bytes);
+	    }
+	}
+	writeFully(source, position);
+    }
+
+    /**
+     * The thread's block holding the size bytes at the position, read from
+     * the header, the tail or the file.
+     */
+    private Block block(long position, int size) {
+	Block block = blocks.get();
+	ByteBuffer buffer = block.buffer;
+	buffer.clear();
+	if (position < head.capacity()) {
+	    synchronized (this) {
+		copy(head, 0, buffer, block, position, size);
+	    }
+	    return block;
+	}
+	lock.readLock().lock();
+	try {
+	    if (inTail(position, size)) {
+		copy(tail, tailStart, buffer, block, position, size);
+		return block;
+	    }
+	} finally {
+	    lock.readLock().unlock();
+	}
+	if (overlapsTail(position, size))
+	    flush();
+	long current = version.get();
+	if (block.storage == this && block.version == current
+		&& position >= block.start
+		&& position + size <= block.start + block.length)
+	    return block;
+	buffer.limit((int) Math.min(BLOCK_SIZE, length() - position));
+	readFully(buffer, position);
+	buffer.clear();
+	block.storage = this;
+	block.start = position;
+	block.length = (int) Math.min(BLOCK_SIZE, length() - position);
+	block.version = current;
+	return block;
+    }
+
+    /**
+     * Copies the bytes at the position from the source (which starts at
+     * sourceStart) into the block, which is not reused for another read.
+     */
+    private static void copy(ByteBuffer source, long sourceStart,
+	    ByteBuffer buffer, Block block, long position, int size) {
+	ByteBuffer bytes = source.duplicate();
+	bytes.clear();
+	bytes.position((int) (position - sourceStart));
+	bytes.limit(bytes.position() + size);
+	buffer.put(bytes);
+	buffer.clear();
+	block.storage = null;
+	block.start = position;
+	block.length = size;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) {
+	try {
+	    while (buffer.hasRemaining()) {
+		int n = channel.read(buffer, position);
+		if (n < 0)
+		    break;
+		position += n;
+	    }
+	} catch (IOException e) {
+	    throw new IOError(e);
+	}
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) {
+	try {
+	    while (buffer.hasRemaining())
+		position += channel.write(buffer, position);
+	} catch (IOException e) {
+	    throw new IOError(e);
+	}
+	version.incrementAndGet();
+    }
+}
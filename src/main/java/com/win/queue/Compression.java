@@ -0,0 +1,106 @@
+package com.win.queue;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflates the elements of a batch into blocks, see
+ * {@link FileBackedBlockingQueue.Builder#compression(int)}. The raw block is
+ * the elements back to back as [int size][payload], the segment entry of a
+ * block is [int count][int raw length][bitmap of the removed elements][deflated
+ * raw block]. The bitmap is left uncompressed so that an element is removed
+ * in place.
+ *
+ * @author Vijay Parthasarathy
+ */
+class Compression {
+    static final int BLOCK_SIZE = 64 * 1024; // raw bytes per block.
+    static final int BLOCK_HEADER_SIZE = 4 + 4;
+
+    private final int level;
+    private final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+	protected Deflater initialValue() {
+	    return new Deflater(level);
+	}
+    };
+    private final ThreadLocal<ByteBuffer> blocks = new ThreadLocal<ByteBuffer>() {
+	protected ByteBuffer initialValue() {
+	    return ByteBuffer.allocate(BLOCK_SIZE);
+	}
+    };
+
+    /**
+     * @param level
+     *            of the {@link Deflater}, 1 (fastest) to 9 (smallest).
+     */
+    Compression(int level) {
+	this.level = level;
+    }
+
+    static int bitmapSize(int count) {
+	return (count + 7) / 8;
+    }
+
+    /**
+     * Deflates the raw block (the remaining bytes of the heap buffer) of count
+     * elements into a buffer of the thread, which is valid until the
+     * thread's next call.
+     *
+     * @return the block entry's payload, flipped for reading.
+     */
+    ByteBuffer compress(ByteBuffer raw, int count) {
+	Deflater deflater = deflaters.get();
+	deflater.reset();
+	deflater.setInput(raw.array(), raw.arrayOffset() + raw.position(),
+		raw.remaining());
+	deflater.finish();
+	ByteBuffer block = blocks.get();
+	int start = BLOCK_HEADER_SIZE + bitmapSize(count);
+	int length = start;
+	while (true) {
+	    length += deflater.deflate(block.array(), length, block.capacity()
+		    - length);
+	    if (deflater.finished())
+		break;
+	    if (length == block.capacity()) {
+		ByteBuffer larger = ByteBuffer.allocate(block.capacity() * 2);
+		larger.put(block.array(), 0, length);
+		blocks.set(block = larger);
+	    }
+	}
+	block.clear();
+	block.putInt(count);
+	block.putInt(raw.remaining());
+	for (int i = BLOCK_HEADER_SIZE; i < start; i++)
+	    block.put((byte) 0);
+	block.position(0);
+	block.limit(length);
+	return block;
+    }
+
+    /**
+     * Inflates the deflated bytes into the raw block, which should be sized
+     * for the raw length.
+     */
+    static void inflate(Inflater inflater, byte[] deflated, int length,
+	    byte[] raw, int rawLength) {
+	inflater.reset();
+	inflater.setInput(deflated, 0, length);
+	try {
+	    int n = 0;
+	    while (n < rawLength && !inflater.finished()) {
+		int inflated = inflater.inflate(raw, n, rawLength - n);
+		if (inflated == 0 && inflater.needsInput())
+		    break;
+		n += inflated;
+	    }
+	    if (n != rawLength)
+		throw new IllegalStateException("Block inflated to " + n
+			+ " bytes instead of " + rawLength);
+	} catch (DataFormatException e) {
+	    throw new IllegalStateException("Corrupted block", e);
+	}
+    }
+}
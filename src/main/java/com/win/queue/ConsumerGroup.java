@@ -0,0 +1,271 @@
+package com.win.queue;
+
+import java.io.File;
+import java.io.IOError;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Named consumer which reads the elements of the queue independent of the
+ * queue's own consumers and of the other groups, the elements are not taken
+ * off the queue. The segments are recycled only after every group has read
+ * past them.
+ * <p>
+ * The cursor (sequence of the segment, the position in it and the index in
+ * the block at the position) is persisted
+ * in a file of its own which is picked up by
+ * {@link FileBackedBlockingQueue.Builder#recover(boolean)}. It is forced
+ * with the segments as per the {@link DurabilityPolicy}, on close and before
+ * a segment the group has read past is recycled. The elements
+ * removed from the queue with {@link FileBackedBlockingQueue#remove(Object)}
+ * are not seen by the groups which haven't read them yet.
+ * 
+ * @author Vijay Parthasarathy
+ */
+public class ConsumerGroup<E> {
+    private static final String PREFIX = "Group-";
+    private static final String SUFFIX = ".cursor";
+    private static final int SEQUENCE_OFFSET = 0;
+    private static final int POSITION_OFFSET = 8;
+    private static final int INDEX_OFFSET = 16;
+    private static final int CURSOR_SIZE = 24;
+
+    private final String name;
+    private final SegmentFactory<E> segments;
+    private final File file;
+    private final RandomAccessFile accessor;
+    private final MappedByteBuffer cursor;
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile Segment<E> segment;
+    private long position;
+    private int index; // in the block at the position.
+    private ByteBuffer[] views;
+    private volatile boolean closed;
+
+    ConsumerGroup(SegmentFactory<E> segments, File directory, String name,
+	    Segment<E> segment, long position, int index) {
+	Preconditions.checkArgument(name.matches("[\\w-]+"),
+		"group name should be [a-zA-Z0-9_-]+");
+	this.name = name;
+	this.segments = segments;
+	this.file = fileOf(directory, name);
+	try {
+	    accessor = new RandomAccessFile(file, "rw");
+	    accessor.setLength(CURSOR_SIZE);
+	    cursor = accessor.getChannel().map(FileChannel.MapMode.READ_WRITE,
+		    0, CURSOR_SIZE);
+	} catch (IOException e) {
+	    throw new IOError(e);
+	}
+	moveTo(segment, position, index);
+    }
+
+    static File fileOf(File directory, String name) {
+	return new File(directory, PREFIX + name + SUFFIX);
+    }
+
+    static boolean isCursor(String fileName) {
+	return fileName.startsWith(PREFIX) && fileName.endsWith(SUFFIX);
+    }
+
+    static String nameOf(File file) {
+	String fileName = file.getName();
+	return fileName.substring(PREFIX.length(), fileName.length()
+		- SUFFIX.length());
+    }
+
+    /**
+     * @return sequence of the segment, the position in it and the index in
+     *         the block, persisted by an earlier instance of the queue.
+     */
+    static long[] readCursor(File file) {
+	try {
+	    RandomAccessFile accessor = new RandomAccessFile(file, "r");
+	    try {
+		if (accessor.length() < INDEX_OFFSET)
+		    return new long[] { 0, Segment.HEADER_SIZE, 0 };
+		accessor.seek(SEQUENCE_OFFSET);
+		long sequence = accessor.readLong();
+		accessor.seek(POSITION_OFFSET);
+		long position = accessor.readLong();
+		// the cursors written before the blocks have no index.
+		if (accessor.length() < CURSOR_SIZE)
+		    return new long[] { sequence, position, 0 };
+		accessor.seek(INDEX_OFFSET);
+		return new long[] { sequence, position, accessor.readInt() };
+	    } finally {
+		accessor.close();
+	    }
+	} catch (IOException e) {
+	    throw new IOError(e);
+	}
+    }
+
+    public String getName() {
+	return name;
+    }
+
+    /**
+     * Retrieves the next element for the group, or returns null if the group
+     * has read everything.
+     */
+    public E poll() {
+	lock.lock();
+	try {
+	    return read();
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * Retrieves the next element for the group, waiting if necessary up to
+     * the specified wait time for an element to become available.
+     */
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+	long nanos = unit.toNanos(timeout);
+	E element;
+	while ((element = poll()) == null) {
+	    if (nanos <= 0)
+		return null;
+	    nanos = segments.awaitGroupData(this, nanos);
+	}
+	return element;
+    }
+
+    /**
+     * Retrieves the next element for the group, waiting if necessary until
+     * an element becomes available.
+     */
+    public E take() throws InterruptedException {
+	E element;
+	while ((element = poll()) == null)
+	    segments.awaitGroupData(this, Long.MAX_VALUE);
+	return element;
+    }
+
+    private E read() {
+	Preconditions.checkState(!closed, "consumer group is closed");
+	while (true) {
+	    // the segment's end is final once it is not the current one.
+	    Segment<E> current = segments.getCurrent();
+	    long entry = segment.entryAt(position);
+	    if (entry < segment.position()) {
+		int element = index;
+		if (++index < segment.elements(entry)) {
+		    position = entry;
+		} else {
+		    position = segment.nextPosition(entry);
+		    index = 0;
+		}
+		cursor.putInt(INDEX_OFFSET, index);
+		cursor.putLong(POSITION_OFFSET, position);
+		if (segment.isDeleted(entry, element))
+		    continue;
+		return segment.read(views, entry, element);
+	    }
+	    if (segment == current)
+		return null;
+	    Segment<E> previous = segment;
+	    moveTo(segment.next(), Segment.HEADER_SIZE, 0);
+	    previous.release();
+	    segments.trim();
+	    segments.evict();
+	}
+    }
+
+    boolean hasData() {
+	lock.lock();
+	try {
+	    return closed || segment != segments.getCurrent()
+		    || segment.hasData(position);
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    private void moveTo(Segment<E> next, long position, int index) {
+	next.retain();
+	next.map();
+	this.views = next.newViews();
+	this.position = position;
+	this.index = index;
+	this.segment = next;
+	cursor.putLong(SEQUENCE_OFFSET, next.getSequence());
+	cursor.putInt(INDEX_OFFSET, index);
+	cursor.putLong(POSITION_OFFSET, position);
+    }
+
+    Segment<E> getSegment() {
+	return segment;
+    }
+
+    void lock() {
+	lock.lock();
+    }
+
+    void unlock() {
+	lock.unlock();
+    }
+
+    /**
+     * Moves the group to the start of the segment, the group should be locked
+     * by the caller.
+     */
+    void reset(Segment<E> to) {
+	Segment<E> previous = segment;
+	moveTo(to, Segment.HEADER_SIZE, 0);
+	previous.release();
+    }
+
+    /**
+     * Forces the cursor to the disk. Doesn't take the group's lock, the
+     * cursor is only guarded against being unmapped.
+     */
+    void force() {
+	synchronized (cursor) {
+	    if (!closed)
+		cursor.force();
+	}
+    }
+
+    /**
+     * Releases the segment and the cursor file, the file is deleted if the
+     * group is dropped (and forced otherwise).
+     */
+    void close(boolean delete) {
+	lock.lock();
+	try {
+	    if (closed)
+		return;
+	    segment.release();
+	    synchronized (cursor) {
+		if (!delete)
+		    cursor.force();
+		closed = true;
+		MappedBuffers.unmap(cursor);
+	    }
+	    try {
+		accessor.close();
+	    } catch (IOException e) {
+		throw new IOError(e);
+	    }
+	    if (delete)
+		file.delete();
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    @Override
+    public String toString() {
+	return "ConsumerGroup(" + name + ')';
+    }
+}
@@ -0,0 +1,30 @@
+package com.win.queue;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Serializer which writes straight into the segment (no intermediate byte[]
+ * and no copy). Use it instead of {@link QueueSerializer} when the objects
+ * can be written into a {@link ByteBuffer} directly.
+ * 
+ * @author Vijay Parthasarathy
+ */
+public interface DirectQueueSerializer<T> {
+    /**
+     * Serialize the object into the buffer starting at its position, the
+     * position should be advanced by the number of bytes written. If the
+     * object doesn't fit the remaining space a {@link BufferOverflowException}
+     * should be thrown, the segment then retries on a new segment.
+     * 
+     * @return number of bytes written.
+     */
+    public int serialize(T t, ByteBuffer buffer);
+
+    /**
+     * Deserialize the object from the buffer, the bytes between the position
+     * and the limit are the ones written by {@link #serialize(Object, ByteBuffer)}.
+     * The buffer is only valid during the call.
+     */
+    public T deserialize(ByteBuffer buffer);
+}
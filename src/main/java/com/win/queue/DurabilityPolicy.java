@@ -0,0 +1,77 @@
+package com.win.queue;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Defines when the data written to the mapped segments is forced to the
+ * disk. The writes are always visible to the readers of the queue, the policy
+ * only decides how much of it survives an OS crash or a power failure.
+ *
+ * @author Vijay Parthasarathy
+ */
+public final class DurabilityPolicy {
+    enum Mode {
+	NONE, PERIODIC, EVERY_N_BYTES, SYNC_ON_PUT
+    }
+
+    /**
+     * Never force the segments, the OS writes back the dirty pages when it
+     * decides to (Default).
+     */
+    public static final DurabilityPolicy NONE = new DurabilityPolicy(
+	    Mode.NONE, 0);
+
+    /**
+     * Every put waits until its entry is forced to the disk. Concurrent puts
+     * which arrive while a force is in progress share the next force (group
+     * commit) instead of paying one each.
+     */
+    public static final DurabilityPolicy SYNC_ON_PUT = new DurabilityPolicy(
+	    Mode.SYNC_ON_PUT, 0);
+
+    private final Mode mode;
+    private final long value;
+
+    private DurabilityPolicy(Mode mode, long value) {
+	this.mode = mode;
+	this.value = value;
+    }
+
+    /**
+     * Force the segments from a background thread every interval, if there
+     * was anything written since the last force.
+     */
+    public static DurabilityPolicy periodic(long interval, TimeUnit unit) {
+	Preconditions.checkArgument(interval > 0, "interval should be > 0");
+	return new DurabilityPolicy(Mode.PERIODIC, unit.toNanos(interval));
+    }
+
+    /**
+     * Force the segments once the specified number of bytes is written since
+     * the last force, the put which crosses the limit pays for the force.
+     */
+    public static DurabilityPolicy everyBytes(long bytes) {
+	Preconditions.checkArgument(bytes > 0, "bytes should be > 0");
+	return new DurabilityPolicy(Mode.EVERY_N_BYTES, bytes);
+    }
+
+    Mode getMode() {
+	return mode;
+    }
+
+    /**
+     * Interval in nanos for {@link Mode#PERIODIC} and the number of bytes for
+     * {@link Mode#EVERY_N_BYTES}.
+     */
+    long getValue() {
+	return value;
+    }
+
+    @Override
+    public String toString() {
+	return mode == Mode.NONE || mode == Mode.SYNC_ON_PUT ? mode.name()
+		: mode.name() + '(' + value + ')';
+    }
+}
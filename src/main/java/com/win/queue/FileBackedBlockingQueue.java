@@ -1,19 +1,36 @@
 package com.win.queue;
 
+import java.io.Closeable;
 import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.AbstractQueue;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.Deflater;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.AbstractIterator;
-import com.win.queue.Segment.SegmentEntry;
 
 /**
  * File Backed Blocking Queue. Similar to the LinkedBlockingQueue except that
@@ -22,39 +39,196 @@ import com.win.queue.Segment.SegmentEntry;
  * @author Vijay Parthasarathy
  */
 public class FileBackedBlockingQueue<E> extends AbstractQueue<E> implements
-	BlockingQueue<E> {
+	BlockingQueue<E>, Closeable, FileBackedBlockingQueueMBean {
+    private static final String MBEAN_OBJECT_NAME = "com.win.queue:type=FileBackedBlockingQueue,instance=";
+    // largest buffer a producer thread keeps to serialize its elements into.
+    private static final int MAX_SCRATCH_SIZE = 64 * 1024;
     private final AtomicInteger count = new AtomicInteger(0);
     private final ReentrantLock readLock = new ReentrantLock();
-    private final ReentrantLock writeLock = new ReentrantLock();
+    private final ReentrantReadWriteLock appendLock = new ReentrantReadWriteLock();
+    // shared by the producers appending concurrently to the current segment.
+    private final Lock appenders = appendLock.readLock();
+    // excludes the other producers, see offerAll and the memory buffer.
+    private final Lock writeLock = appendLock.writeLock();
+    private final Object rollLock = new Object();
     private final Condition notEmpty = readLock.newCondition();
+    private final ThreadLocal<ByteBuffer> scratch = new ThreadLocal<ByteBuffer>() {
+	protected ByteBuffer initialValue() {
+	    return ByteBuffer.allocate(4096);
+	}
+    };
 
     @VisibleForTesting
     protected SegmentFactory<E> segments;
+    @VisibleForTesting
+    protected SegmentSyncer<E> syncer;
+    private final Function<? super E, ?> keyExtractor;
+    private final MemoryBuffer<E> memory;
+    private final Semaphore space; // free slots, null if unbounded.
+    private final int capacity;
+    private volatile boolean closed;
+    private final Compression compression; // of the batches, null if none.
+    private ByteBuffer rawBlock; // elements of the next block, see insertAll.
+    private final QueueMetrics metrics;
+    private final List<ObjectName> objectNames = new ArrayList<ObjectName>();
+    private final ScheduledExecutorService reporter;
 
     private FileBackedBlockingQueue(Builder<E> builder) {
-	segments = new SegmentFactory<E>(builder.directory,
-		builder.segmentSize, builder.fs_size, builder.seralizer);
+	metrics = new QueueMetrics(builder.metrics);
+	segments = new SegmentFactory<E>(builder.directories(),
+		builder.placement, builder.segmentSize, builder.seralizer,
+		builder.recover, builder.spares, builder.maxMapped,
+		builder.windowSize, builder.engine, builder.recordSize,
+		builder.compactionThreshold,
+		builder.readAhead, metrics);
+	count.set(segments.getRecoveredEntries());
+	capacity = builder.capacity;
+	space = builder.capacity == Integer.MAX_VALUE ? null : new Semaphore(
+		builder.capacity - count.get());
+	syncer = new SegmentSyncer<E>(segments, builder.durability);
+	keyExtractor = builder.keyExtractor;
+	memory = builder.memoryElements > 0 ? new MemoryBuffer<E>(
+		builder.memoryElements) : null;
+	compression = builder.compressionLevel > 0 ? new Compression(
+		builder.compressionLevel) : null;
+	registerMBeans();
+	reporter = builder.reporter == null ? null : schedule(
+		builder.reporter, builder.reportPeriod);
+    }
+
+    private void registerMBeans() {
+	MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+	String name = MBEAN_OBJECT_NAME + hashCode();
+	try {
+	    register(mbs, this, new ObjectName(name));
+	    if (!metrics.isEnabled())
+		return;
+	    register(mbs, metrics.getOfferLatency(), new ObjectName(name
+		    + ",name=offer"));
+	    register(mbs, metrics.getTakeLatency(), new ObjectName(name
+		    + ",name=take"));
+	    register(mbs, metrics.getPollLatency(), new ObjectName(name
+		    + ",name=poll"));
+	    register(mbs, metrics.getSerializeTime(), new ObjectName(name
+		    + ",name=serialize"));
+	    register(mbs, metrics.getDeserializeTime(), new ObjectName(name
+		    + ",name=deserialize"));
+	    register(mbs, metrics.getRolloverTime(), new ObjectName(name
+		    + ",name=rollover"));
+	    register(mbs, metrics.getAllocationTime(), new ObjectName(name
+		    + ",name=allocation"));
+	    register(mbs, metrics.getSyncTime(), new ObjectName(name
+		    + ",name=sync"));
+	    if (compression == null)
+		return;
+	    register(mbs, metrics.getCompressTime(), new ObjectName(name
+		    + ",name=compress"));
+	    register(mbs, metrics.getDecompressTime(), new ObjectName(name
+		    + ",name=decompress"));
+	} catch (Exception e) {
+	    throw new RuntimeException(e);
+	}
+    }
+
+    private void register(MBeanServer mbs, Object mbean, ObjectName name)
+	    throws Exception {
+	mbs.registerMBean(mbean, name);
+	objectNames.add(name);
+    }
+
+    private ScheduledExecutorService schedule(final MetricsReporter report,
+	    long periodNanos) {
+	ScheduledExecutorService executor = Executors
+		.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		    public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "MetricsReporter");
+			thread.setDaemon(true);
+			return thread;
+		    }
+		});
+	executor.scheduleAtFixedRate(new Runnable() {
+	    public void run() {
+		try {
+		    report.report(FileBackedBlockingQueue.this);
+		} catch (RuntimeException e) {
+		    // a failed report shouldn't cancel the next ones.
+		}
+	    }
+	}, periodNanos, periodNanos, TimeUnit.NANOSECONDS);
+	return executor;
     }
 
     public static class Builder<E> {
 	private File directory;
-	private QueueSerializer<E> seralizer;
+	private final List<SegmentDirectory> directories = new ArrayList<SegmentDirectory>();
+	private SegmentPlacement placement = SegmentPlacement.ROUND_ROBIN;
+	private DirectQueueSerializer<E> seralizer;
 	private long segmentSize = 128L * 1024 * 1024; // 128 M
 	private long fs_size = 40L * 1024 * 1024 * 1024; // 40G
+	private int capacity = Integer.MAX_VALUE;
+	private boolean recover = false;
+	private DurabilityPolicy durability = DurabilityPolicy.NONE;
+	private int spares = 0;
+	private int maxMapped = Integer.MAX_VALUE;
+	private int windowSize = SegmentStorage.DEFAULT_WINDOW_SIZE;
+	private StorageEngine engine = StorageEngine.MMAP;
+	private double compactionThreshold = 0;
+	private Function<? super E, ?> keyExtractor;
+	private int memoryElements = 0;
+	private long readAhead = 0;
+	private int compressionLevel = 0;
+	private int recordSize = 0;
+	private boolean metrics = false;
+	private MetricsReporter reporter;
+	private long reportPeriod;
 
 	/**
-	 * Directory where the file based queue will reside.
+	 * Directory where the file based queue will reside, its segments take
+	 * at most {@link #max(long)} bytes.
 	 */
 	public Builder<E> directory(File directory) {
 	    this.directory = directory;
 	    return this;
 	}
 
+	/**
+	 * Adds a directory (usually on another disk) the segments are striped
+	 * over, with the max size its segments can take. The spares are
+	 * preallocated per directory, the consumer group cursors are kept in
+	 * the first directory. Every directory should be given again when the
+	 * queue is recovered.
+	 */
+	public Builder<E> directory(File directory, long max) {
+	    Preconditions.checkNotNull(directory);
+	    Preconditions.checkArgument(max > 0, "max should be > 0");
+	    directories.add(new SegmentDirectory(directory, max));
+	    return this;
+	}
+
+	/**
+	 * Which directory a new segment goes to (Default: round robin), see
+	 * {@link SegmentPlacement}.
+	 */
+	public Builder<E> placement(SegmentPlacement placement) {
+	    this.placement = Preconditions.checkNotNull(placement);
+	    return this;
+	}
+
 	/**
 	 * Add serializer which will be used to read and write the objects to
 	 * disk.
 	 */
 	public Builder<E> serializer(QueueSerializer<E> seralizer) {
+	    this.seralizer = new QueueSerializerAdapter<E>(
+		    Preconditions.checkNotNull(seralizer));
+	    return this;
+	}
+
+	/**
+	 * Add serializer which writes the objects straight into the segments
+	 * and reads them back from there, avoids the intermediate byte[].
+	 */
+	public Builder<E> serializer(DirectQueueSerializer<E> seralizer) {
 	    this.seralizer = seralizer;
 	    return this;
 	}
@@ -68,7 +242,10 @@ public class FileBackedBlockingQueue<E> extends AbstractQueue<E> implements
 	}
 
 	/**
-	 * Maximum size of the queue in filesystem.
+	 * Maximum size of the queue in filesystem (of the segments in
+	 * {@link #directory(File)}), the producers wait for the consumers to
+	 * recycle a segment once every directory reached its max (put blocks,
+	 * offer returns false).
 	 */
 	public Builder<E> max(long size) {
 	    assert fs_size > segmentSize;
@@ -76,12 +253,285 @@ public class FileBackedBlockingQueue<E> extends AbstractQueue<E> implements
 	    return this;
 	}
 
+	/**
+	 * Maximum number of elements in the queue (Default: unbounded), put
+	 * blocks and offer returns false once it is reached.
+	 */
+	public Builder<E> capacity(int capacity) {
+	    Preconditions.checkArgument(capacity > 0, "capacity should be > 0");
+	    this.capacity = capacity;
+	    return this;
+	}
+
+	/**
+	 * Recover the elements left in the directory by an earlier instance of
+	 * the queue (after a JVM exit or a crash), instead of starting empty.
+	 */
+	public Builder<E> recover(boolean recover) {
+	    this.recover = recover;
+	    return this;
+	}
+
+	/**
+	 * When the written data is forced to the disk, see
+	 * {@link DurabilityPolicy}.
+	 */
+	public Builder<E> durability(DurabilityPolicy durability) {
+	    this.durability = durability;
+	    return this;
+	}
+
+	/**
+	 * Number of spare segments to be created, mapped and touched ahead of
+	 * the producers by a background thread, so that a roll over never has
+	 * to create a segment file. 0 (default) creates them on demand.
+	 */
+	public Builder<E> preallocate(int spares) {
+	    Preconditions.checkArgument(spares >= 0, "spares should be >= 0");
+	    this.spares = spares;
+	    return this;
+	}
+
+	/**
+	 * Keeps up to the number of elements in the heap in front of the
+	 * segments (Default: 0, none). An element is kept in the heap only if
+	 * nothing is waiting in the segments and there is room, so the elements
+	 * spill to the segments only when the consumers fall behind and the
+	 * order is preserved. The elements in the heap are neither serialized
+	 * nor persisted, hence it requires {@link DurabilityPolicy#NONE} and
+	 * they are not seen by the consumer groups.
+	 */
+	public Builder<E> memoryBuffer(int elements) {
+	    Preconditions.checkArgument(elements >= 0, "elements should be >= 0");
+	    this.memoryElements = elements;
+	    return this;
+	}
+
+	/**
+	 * Number of bytes ahead of the consumer to be faulted in by a background
+	 * thread (Default: 0, none), the next segment is read ahead as the
+	 * consumer gets close to the end of its segment. Helps the consumers of
+	 * a backlog which is no longer in the page cache, the hits and the
+	 * misses are exposed through the SegmentFactory MBean.
+	 */
+	public Builder<E> readAhead(long bytes) {
+	    Preconditions.checkArgument(bytes >= 0, "bytes should be >= 0");
+	    this.readAhead = bytes;
+	    return this;
+	}
+
+	/**
+	 * Deflates the elements of every {@link FileBackedBlockingQueue#offerAll}
+	 * and {@link FileBackedBlockingQueue#putAll} batch into blocks of about
+	 * 64 KB at the level, 1 (fastest) to 9 (smallest) (Default: none). The
+	 * consumer inflates a block once and reads its elements from the heap,
+	 * the elements inserted one at a time are written as is. The compression
+	 * ratio and the time spent deflating and inflating are exposed through
+	 * the FileBackedBlockingQueue MBean.
+	 */
+	public Builder<E> compression(int level) {
+	    Preconditions.checkArgument(level >= Deflater.BEST_SPEED
+		    && level <= Deflater.BEST_COMPRESSION,
+		    "level should be in [1, 9]");
+	    this.compressionLevel = level;
+	    return this;
+	}
+
+	/**
+	 * Writes the elements as fixed size records of the size in bytes
+	 * (Default: length prefixed entries), the serializer should write that
+	 * many bytes for every element and an {@link IllegalArgumentException}
+	 * is thrown for an element of another size. A record carries no length,
+	 * the n-th record of a segment is at a computed offset:
+	 * {@link FileBackedBlockingQueue#peek(int)} seeks to an element in O(1)
+	 * per segment (as long as none was removed from it) and the recovery
+	 * walks the records at a fixed stride. Can't be used with the
+	 * compression.
+	 */
+	public Builder<E> recordSize(int size) {
+	    Preconditions.checkArgument(size > 0, "record size should be > 0");
+	    this.recordSize = size;
+	    return this;
+	}
+
+	/**
+	 * Records the latency histograms (Default: false), see
+	 * {@link QueueMetrics}. The counters and the rates are kept and exported
+	 * over JMX either way, the histograms are registered next to them.
+	 */
+	public Builder<E> metrics(boolean enabled) {
+	    this.metrics = enabled;
+	    return this;
+	}
+
+	/**
+	 * Calls the reporter with the queue every period from a background
+	 * thread, until the queue is closed.
+	 */
+	public Builder<E> reporter(MetricsReporter reporter, long period,
+		TimeUnit unit) {
+	    Preconditions.checkArgument(period > 0, "period should be > 0");
+	    this.reporter = Preconditions.checkNotNull(reporter);
+	    this.reportPeriod = unit.toNanos(period);
+	    return this;
+	}
+
+	/**
+	 * How the segments are read and written (Default: memory mapped), see
+	 * {@link StorageEngine}.
+	 */
+	public Builder<E> storage(StorageEngine engine) {
+	    this.engine = Preconditions.checkNotNull(engine);
+	    return this;
+	}
+
+	/**
+	 * Maximum number of segments mapped at a time (Default: unlimited). The
+	 * segments in the middle of a deep backlog, which neither the producer
+	 * nor the consumer is using, are unmapped and mapped again when the
+	 * consumer reaches them.
+	 */
+	public Builder<E> maxMappedSegments(int maxMapped) {
+	    Preconditions.checkArgument(maxMapped >= 2, "maxMapped should be >= 2");
+	    this.maxMapped = maxMapped;
+	    return this;
+	}
+
+	/**
+	 * Compacts a segment in the background once the removed elements take
+	 * more than the ratio (0 - 1] of its written bytes (Default: never).
+	 * Only the segments which neither the consumer nor the producer is using
+	 * are compacted, they are rewritten into files holding just the live
+	 * elements.
+	 */
+	public Builder<E> compactionThreshold(double ratio) {
+	    Preconditions.checkArgument(ratio > 0 && ratio <= 1,
+		    "ratio should be in (0, 1]");
+	    this.compactionThreshold = ratio;
+	    return this;
+	}
+
+	/**
+	 * Extracts the key identifying an element (by its equals and hashCode)
+	 * for {@link FileBackedBlockingQueue#remove(Object)} and
+	 * {@link FileBackedBlockingQueue#contains(Object)}. The key hashes are
+	 * kept in a bloom filter per segment (about 1% of the segment size in
+	 * heap), only the segments which might hold the key are scanned instead
+	 * of the whole backlog. The elements equal to each other should have
+	 * equal keys.
+	 */
+	public Builder<E> keyExtractor(Function<? super E, ?> keyExtractor) {
+	    this.keyExtractor = Preconditions.checkNotNull(keyExtractor);
+	    return this;
+	}
+
+	/**
+	 * Size of the windows a segment is mapped as (Default: 1 GB), the
+	 * segments can be larger than 2 GB. Should be a power of two.
+	 */
+	@VisibleForTesting
+	Builder<E> windowSize(int windowSize) {
+	    Preconditions.checkArgument(Integer.bitCount(windowSize) == 1,
+		    "window size should be a power of two");
+	    this.windowSize = windowSize;
+	    return this;
+	}
+
+	/**
+	 * Copy of the builder's options, the queues built from the copy and
+	 * from the builder don't see each other's later changes. The serializer,
+	 * the key extractor and the reporter are shared.
+	 */
+	Builder<E> copy() {
+	    Builder<E> copy = new Builder<E>();
+	    copy.directory = directory;
+	    copy.directories.addAll(directories);
+	    copy.placement = placement;
+	    copy.seralizer = seralizer;
+	    copy.segmentSize = segmentSize;
+	    copy.fs_size = fs_size;
+	    copy.capacity = capacity;
+	    copy.recover = recover;
+	    copy.durability = durability;
+	    copy.spares = spares;
+	    copy.maxMapped = maxMapped;
+	    copy.windowSize = windowSize;
+	    copy.engine = engine;
+	    copy.compactionThreshold = compactionThreshold;
+	    copy.keyExtractor = keyExtractor;
+	    copy.memoryElements = memoryElements;
+	    copy.readAhead = readAhead;
+	    copy.compressionLevel = compressionLevel;
+	    copy.recordSize = recordSize;
+	    copy.metrics = metrics;
+	    copy.reporter = reporter;
+	    copy.reportPeriod = reportPeriod;
+	    return copy;
+	}
+
+	/**
+	 * Copy of the builder for a shard (see
+	 * {@link ShardedFileBackedBlockingQueue}), its segments go to the
+	 * named subdirectory of the directory and of every striped directory,
+	 * so that a shard never recovers the segments of the others.
+	 */
+	Builder<E> shard(File directory, String name) {
+	    Builder<E> copy = copy();
+	    copy.directory = new File(directory, name);
+	    copy.directory.mkdirs();
+	    copy.directories.clear();
+	    for (SegmentDirectory striped : directories) {
+		File subdirectory = new File(striped.getDirectory(), name);
+		subdirectory.mkdirs();
+		copy.directories.add(new SegmentDirectory(subdirectory, striped
+			.getMax()));
+	    }
+	    return copy;
+	}
+
+	private List<SegmentDirectory> directories() {
+	    List<SegmentDirectory> all = new ArrayList<SegmentDirectory>();
+	    if (directory != null)
+		all.add(new SegmentDirectory(directory, fs_size));
+	    all.addAll(directories);
+	    return all;
+	}
+
+	/**
+	 * Builds the queue a primitive queue (see {@link FileBackedLongQueue})
+	 * passes its records through, from a copy of the builder with the
+	 * serializer and the record size. The queue never holds on to an
+	 * element, the memory buffer and the key extractor which would are
+	 * rejected.
+	 */
+	@SuppressWarnings("unchecked")
+	<R> FileBackedBlockingQueue<R> buildRecords(
+		DirectQueueSerializer<R> serializer, int recordSize) {
+	    Preconditions.checkArgument(memoryElements == 0,
+		    "memory buffer can't be used with a primitive queue");
+	    Preconditions.checkArgument(keyExtractor == null,
+		    "key extractor can't be used with a primitive queue");
+	    Builder<R> builder = (Builder<R>) (Builder<?>) copy();
+	    builder.seralizer = Preconditions.checkNotNull(serializer);
+	    return builder.recordSize(recordSize).build();
+	}
+
 	public FileBackedBlockingQueue<E> build() {
-	    Preconditions.checkNotNull(directory);
+	    Preconditions.checkArgument(
+		    directory != null || !directories.isEmpty(),
+		    "directory should be set");
 	    Preconditions.checkNotNull(seralizer);
-	    if (!directory.exists())
-		throw new IllegalArgumentException(
-			"Directory for the file doesnt exist...");
+	    Preconditions.checkNotNull(durability);
+	    Preconditions.checkArgument(memoryElements == 0
+		    || durability.getMode() == DurabilityPolicy.Mode.NONE,
+		    "memory buffer can't be used with a durability policy");
+	    Preconditions.checkArgument(recordSize == 0
+		    || compressionLevel == 0,
+		    "compression can't be used with fixed size records");
+	    for (SegmentDirectory segmentDirectory : directories())
+		if (!segmentDirectory.getDirectory().exists())
+		    throw new IllegalArgumentException(
+			    "Directory for the file doesnt exist...");
 	    return new FileBackedBlockingQueue<E>(this);
 	}
     }
@@ -95,102 +545,723 @@ public class FileBackedBlockingQueue<E> extends AbstractQueue<E> implements
 	}
     }
 
-    private void insert(E element) {
-	if (!segments.getCurrent().hasCapacityFor(element))
-	    segments.newSegment();
-	segments.getCurrent().add(element);
+    /**
+     * Inserts the element while holding the write lock, into the memory
+     * buffer if possible.
+     * 
+     * @return the ticket for the syncer, -1 if the max fs size is reached.
+     */
+    private long insert(E element) {
+	if (spillable() && memory.offer(element)) {
+	    metrics.enqueued(1, 0);
+	    return syncer.appended(0);
+	}
+	Segment<E> segment = segments.getCurrent();
+	long start = metrics.start();
+	int written = segment.add(element);
+	if (written < 0) {
+	    if (!rollover(segment, segment.getGeneration()))
+		return -1;
+	    segment = segments.getCurrent();
+	    start = metrics.start();
+	    written = segment.add(element);
+	    if (written < 0)
+		throw new IllegalArgumentException(
+			"Element is larger than the segment size.");
+	}
+	metrics.stop(metrics.getSerializeTime(), start);
+	index(segment, element);
+	metrics.enqueued(1, written);
+	return syncer.appended(written);
+    }
+
+    /**
+     * Appends the element concurrently with the other producers, while
+     * holding the appenders lock. The element is serialized into a buffer of
+     * the thread first (its size has to be known to reserve its range), then
+     * copied into the range it reserves in the current segment.
+     * 
+     * @return the ticket for the syncer, -1 if the max fs size is reached.
+     */
+    private long append(E element) {
+	long start = metrics.start();
+	ByteBuffer payload = serialize(element);
+	Segment<E> segment;
+	int written;
+	while (true) {
+	    segment = segments.getCurrent();
+	    int generation = segment.getGeneration();
+	    // recycled and activated again in between, see rollover.
+	    if (segment != segments.getCurrent())
+		continue;
+	    if (!segment.fits(payload.remaining()))
+		throw new IllegalArgumentException(
+			"Element is larger than the segment size.");
+	    if ((written = segment.write(payload)) >= 0)
+		break;
+	    if (!rollover(segment, generation))
+		return -1;
+	}
+	metrics.stop(metrics.getSerializeTime(), start);
+	index(segment, element);
+	metrics.enqueued(1, written);
+	return syncer.appended(written);
+    }
+
+    /**
+     * Serializes the element into the thread's buffer, which grows as needed
+     * up to {@link #MAX_SCRATCH_SIZE}. A larger element goes to a buffer of
+     * its own which is dropped after it, so that every producer thread
+     * doesn't hold on to a buffer as large as a segment.
+     * 
+     * @return the buffer flipped for reading.
+     */
+    private ByteBuffer serialize(E element) {
+	ByteBuffer buffer = scratch.get();
+	while (true) {
+	    buffer.clear();
+	    try {
+		int size = segments.getSerializer().serialize(element, buffer);
+		if (size != buffer.position())
+		    throw new IllegalStateException("Serializer reported "
+			    + size + " bytes but wrote " + buffer.position());
+		buffer.flip();
+		return buffer;
+	    } catch (BufferOverflowException e) {
+		if (buffer.capacity() >= segments.getSegmentSize())
+		    throw new IllegalArgumentException(
+			    "Element is larger than the segment size.");
+		buffer = ByteBuffer.allocate((int) Math.min(
+			buffer.capacity() * 2L, segments.getSegmentSize()));
+		if (buffer.capacity() <= MAX_SCRATCH_SIZE)
+		    scratch.set(buffer);
+	    }
+	}
+    }
+
+    /**
+     * Moves the producers to the next segment unless another producer did
+     * already, the full one is sealed (its reserved entries are published)
+     * and left to be forced by the syncer. A producer's segment can meanwhile
+     * be sealed, consumed, recycled and activated again as the current one,
+     * so it is matched by its generation too.
+     * 
+     * @param generation
+     *            of the segment when the producer took it as the current one.
+     * @return false if the max fs size is reached (the full segment stays
+     *         current and sealed).
+     */
+    private boolean rollover(Segment<E> segment, int generation) {
+	synchronized (rollLock) {
+	    Segment<E> current = segments.getCurrent();
+	    if (current != segment || current.getGeneration() != generation)
+		return true;
+	    long start = metrics.start();
+	    segment.seal();
+	    syncer.rolled(segment);
+	    if (segments.newSegment() == null)
+		return false;
+	    metrics.stop(metrics.getRolloverTime(), start);
+	    return true;
+	}
+    }
+
+    /**
+     * True if the element can go to the memory buffer, i.e. there is nothing
+     * in the segments which should be read before it. Called by the producer,
+     * nobody else adds to the segments meanwhile.
+     */
+    private boolean spillable() {
+	return memory != null && segments.getConsumerGroups() == 0
+		&& segments.isEmpty();
+    }
+
+    private void index(Segment<E> segment, E element) {
+	Object key = keyOf(element);
+	if (key != null)
+	    segment.index(key.hashCode());
+    }
+
+    /**
+     * Key of the element, null if there is no key extractor.
+     */
+    @SuppressWarnings("unchecked")
+    private Object keyOf(Object element) {
+	return keyExtractor == null ? null : keyExtractor.apply((E) element);
     }
 
     public int size() {
 	return count.get();
     }
 
+    /**
+     * Number of the elements which can be inserted before the capacity (see
+     * {@link Builder#capacity(int)}) is reached, the max fs size can block the
+     * producers earlier.
+     */
     public int remainingCapacity() {
-	return Integer.MAX_VALUE;
+	return space == null ? Integer.MAX_VALUE : Math.max(0,
+		space.availablePermits());
     }
 
+    /**
+     * Inserts the element, waiting if necessary for the consumers to make
+     * room (see {@link Builder#capacity(int)} and {@link Builder#max(long)}).
+     */
     public void put(E e) throws InterruptedException {
-	offer(e);
+	Preconditions.checkNotNull(e);
+	if (space != null) {
+	    space.acquire();
+	    acquired(1);
+	}
+	enqueue(e, Long.MAX_VALUE);
     }
 
+    /**
+     * Inserts the element, waiting up to the specified wait time for the
+     * consumers to make room.
+     * 
+     * @return false if there was no room.
+     */
     public boolean offer(E e, long timeout, TimeUnit unit)
 	    throws InterruptedException {
-	// TODO measure the time to write to filesystem if any and then timeout
-	// on that.
-	return offer(e);
+	Preconditions.checkNotNull(e);
+	long deadline = System.nanoTime() + unit.toNanos(timeout);
+	if (space != null) {
+	    if (!space.tryAcquire(timeout, unit))
+		return false;
+	    acquired(1);
+	}
+	return enqueue(e, deadline - System.nanoTime());
     }
 
+    /**
+     * Inserts the element if there is room, the producers copy their elements
+     * into the current segment in parallel (see
+     * {@link Segment#write(ByteBuffer)}) unless there is a memory buffer.
+     * 
+     * @return false if the capacity or the max fs size is reached.
+     */
     public boolean offer(E e) {
 	Preconditions.checkNotNull(e);
-	writeLock.lock();
-	int c = count.get();
+	if (space != null && !space.tryAcquire())
+	    return false;
 	try {
-	    insert(e);
-	    if (c == 0)
-		signalNotEmpty();
-	    c = count.incrementAndGet();
+	    return enqueue(e, 0);
+	} catch (InterruptedException ie) {
+	    throw new AssertionError(ie); // doesn't wait.
+	}
+    }
+
+    /**
+     * Inserts the element the caller has taken a slot for, waiting up to
+     * nanos for a segment to be recycled if the max fs size is reached. The
+     * slot is given back if it is not inserted.
+     */
+    private boolean enqueue(E e, long nanos) throws InterruptedException {
+	long start = metrics.start();
+	long ticket = -1;
+	try {
+	    while (true) {
+		Lock lock = memory == null ? appenders : writeLock;
+		lock.lock();
+		try {
+		    checkOpen();
+		    ticket = memory == null ? append(e) : insert(e);
+		    if (ticket >= 0 && count.getAndIncrement() == 0)
+			signalNotEmpty();
+		} finally {
+		    lock.unlock();
+		}
+		if (ticket >= 0)
+		    break;
+		// waits outside the lock, clear() can make room.
+		if (nanos <= 0)
+		    return false;
+		nanos = segments.awaitRoom(nanos);
+	    }
 	} finally {
-	    writeLock.unlock();
+	    if (ticket < 0)
+		released(1);
 	}
-	return c >= 0;
+	segments.signalGroups();
+	syncer.afterAppend(ticket);
+	metrics.stop(metrics.getOfferLatency(), start);
+	return true;
+    }
+
+    /**
+     * The producer took n slots, they are given back (to wake the next
+     * producer waiting for them) if the queue was closed meanwhile.
+     */
+    private void acquired(int n) {
+	if (closed) {
+	    space.release(n);
+	    checkOpen();
+	}
+    }
+
+    /**
+     * Throws if the queue is closed, checked by the producers and the
+     * consumers every time they (re)acquire a lock.
+     */
+    private void checkOpen() {
+	if (closed)
+	    throw new IllegalStateException("Queue is closed");
+    }
+
+    /**
+     * The elements were taken off the queue, their slots are given back to
+     * the producers.
+     */
+    private void released(int n) {
+	if (space != null && n > 0)
+	    space.release(n);
+    }
+
+    /**
+     * Inserts all the elements in the order of the collection's iterator.
+     * The elements are written back to back under a single lock acquisition,
+     * the end marker is written once per segment and the consumers are
+     * signaled once for the whole batch. If an element is larger than a
+     * segment the elements before it are inserted and an
+     * {@link IllegalArgumentException} is thrown.
+     * <p>
+     * Like {@link #offer(Object)}, false is returned if either the capacity
+     * or the max fs size is reached. The capacity is checked up front and
+     * none of the elements is inserted then. The max fs size is found out
+     * only once a segment is full: the elements written before it stay in
+     * the queue (they are published as a segment fills up) and the rest is
+     * not inserted, see {@link #size()}.
+     * 
+     * @return false if the capacity doesn't allow all of the elements or the
+     *         max fs size is reached.
+     */
+    public boolean offerAll(Collection<? extends E> elements) {
+	Preconditions.checkNotNull(elements);
+	for (E e : elements)
+	    Preconditions.checkNotNull(e);
+	if (elements.isEmpty())
+	    return true;
+	if (space != null && !space.tryAcquire(elements.size()))
+	    return false;
+	try {
+	    return insertAll(elements, false);
+	} catch (InterruptedException ie) {
+	    throw new AssertionError(ie); // doesn't wait.
+	}
+    }
+
+    /**
+     * Same as {@link #offerAll(Collection)} but waits for the consumers to
+     * make room for the elements. If the max fs size is reached the elements
+     * inserted so far are published and the rest follows once a segment is
+     * recycled, the other producers' elements can go in between.
+     * 
+     * @throws IllegalArgumentException
+     *             if there are more elements than the capacity, there is
+     *             never room for all of them.
+     */
+    public void putAll(Collection<? extends E> elements)
+	    throws InterruptedException {
+	Preconditions.checkNotNull(elements);
+	for (E e : elements)
+	    Preconditions.checkNotNull(e);
+	Preconditions.checkArgument(elements.size() <= capacity,
+		"more elements than the capacity");
+	if (elements.isEmpty())
+	    return;
+	if (space != null) {
+	    space.acquire(elements.size());
+	    acquired(elements.size());
+	}
+	insertAll(elements, true);
+    }
+
+    /**
+     * Inserts the elements the caller has taken the slots for, the slots of
+     * the ones not inserted are given back. If the max fs size is reached a
+     * waiting caller publishes the elements inserted so far and waits outside
+     * the write lock (clear() can make room) to insert the rest, the other
+     * producers' elements can go in between then.
+     * 
+     * @return false if the max fs size is reached and the caller doesn't
+     *         wait, the elements from the one which didn't fit on are not
+     *         inserted.
+     */
+    private boolean insertAll(Collection<? extends E> elements, boolean wait)
+	    throws InterruptedException {
+	Iterator<? extends E> remaining = elements.iterator();
+	// didn't fit in the last round, inserted first in the next.
+	List<E> left = new ArrayList<E>();
+	long ticket = 0;
+	int n = 0;
+	try {
+	    while (true) {
+		int inserted = 0;
+		writeLock.lock();
+		try {
+		    checkOpen();
+		    Segment<E> segment = segments.getCurrent();
+		    long bytes = 0;
+		    boolean inMemory = spillable();
+		    List<E> block = compression == null ? null
+			    : new ArrayList<E>();
+		    try {
+			while (!left.isEmpty() || remaining.hasNext()) {
+			    E e = left.isEmpty() ? remaining.next() : left
+				    .remove(0);
+			    if (inMemory && memory.offer(e)) {
+				inserted++;
+				continue;
+			    }
+			    inMemory = false;
+			    if (block != null) {
+				try {
+				    frame(e);
+				} catch (IllegalArgumentException iae) {
+				    // the elements before it are inserted.
+				    if (!block.isEmpty()) {
+					int written = appendBlock(segment,
+						block);
+					segment = segments.getCurrent();
+					if (written >= 0) {
+					    bytes += written;
+					    inserted += block.size();
+					}
+				    }
+				    throw iae;
+				}
+				block.add(e);
+				if (rawBlock.position() < Compression.BLOCK_SIZE)
+				    continue;
+				int written = appendBlock(segment, block);
+				segment = segments.getCurrent();
+				if (written < 0) {
+				    left.addAll(0, block);
+				    break;
+				}
+				bytes += written;
+				inserted += block.size();
+				block.clear();
+				continue;
+			    }
+			    long start = metrics.start();
+			    int written = segment.append(e);
+			    if (written < 0) {
+				segment.commit();
+				Segment<E> next = nextSegment(segment);
+				if (next == null) {
+				    left.add(0, e);
+				    break;
+				}
+				segment = next;
+				start = metrics.start();
+				written = segment.append(e);
+				if (written < 0)
+				    throw new IllegalArgumentException(
+					    "Element is larger than the segment size.");
+			    }
+			    metrics.stop(metrics.getSerializeTime(), start);
+			    index(segment, e);
+			    bytes += written;
+			    inserted++;
+			}
+			if (left.isEmpty() && block != null && !block.isEmpty()) {
+			    int written = appendBlock(segment, block);
+			    segment = segments.getCurrent();
+			    if (written < 0) {
+				left.addAll(block);
+			    } else {
+				bytes += written;
+				inserted += block.size();
+			    }
+			}
+		    } finally {
+			if (rawBlock != null)
+			    rawBlock.clear();
+			segment.commit();
+			metrics.enqueued(inserted, bytes);
+			ticket = syncer.appended(bytes);
+			n += inserted;
+			// counted once published, then the consumers are
+			// signaled.
+			if (count.getAndAdd(inserted) == 0 && inserted > 0)
+			    signalNotEmpty();
+		    }
+		} finally {
+		    writeLock.unlock();
+		}
+		if (left.isEmpty() || !wait)
+		    break;
+		// waits outside the lock, clear() can make room.
+		segments.awaitRoom(Long.MAX_VALUE);
+	    }
+	} finally {
+	    released(elements.size() - n);
+	}
+	segments.signalGroups();
+	syncer.afterAppend(ticket);
+	return left.isEmpty();
+    }
+
+    /**
+     * Serializes the element at the end of the raw block as [int
+     * size][payload], the block grows as needed. Called while holding the
+     * write lock.
+     */
+    private void frame(E element) {
+	if (rawBlock == null)
+	    rawBlock = ByteBuffer.allocate(2 * Compression.BLOCK_SIZE);
+	int start = rawBlock.position();
+	long time = metrics.start();
+	while (true) {
+	    rawBlock.position(start + 4);
+	    try {
+		int size = segments.getSerializer().serialize(element, rawBlock);
+		if (size != rawBlock.position() - start - 4)
+		    throw new IllegalStateException("Serializer reported "
+			    + size + " bytes but wrote "
+			    + (rawBlock.position() - start - 4));
+		rawBlock.putInt(start, size);
+		metrics.stop(metrics.getSerializeTime(), time);
+		return;
+	    } catch (BufferOverflowException e) {
+		if (rawBlock.capacity() >= segments.getSegmentSize()) {
+		    rawBlock.position(start);
+		    throw new IllegalArgumentException(
+			    "Element is larger than the segment size.");
+		}
+		ByteBuffer larger = ByteBuffer.allocate((int) Math.min(
+			rawBlock.capacity() * 2L, segments.getSegmentSize()));
+		rawBlock.flip();
+		rawBlock.limit(start);
+		larger.put(rawBlock);
+		rawBlock = larger;
+	    }
+	}
+    }
+
+    /**
+     * Deflates the raw block of the elements into a block entry and appends
+     * it, rolls over if it doesn't fit in the segment.
+     * 
+     * @return number of bytes written, -1 if the max fs size is reached.
+     */
+    private int appendBlock(Segment<E> segment, List<E> elements) {
+	rawBlock.flip();
+	long start = System.nanoTime();
+	ByteBuffer block = compression.compress(rawBlock, elements.size());
+	metrics.compressed(rawBlock.remaining(), block.remaining(),
+		System.nanoTime() - start);
+	rawBlock.clear();
+	int written = segment.appendBlock(block);
+	if (written < 0) {
+	    segment.commit();
+	    if ((segment = nextSegment(segment)) == null)
+		return -1;
+	    written = segment.appendBlock(block);
+	    if (written < 0)
+		throw new IllegalArgumentException(
+			"Block is larger than the segment size.");
+	}
+	for (E e : elements)
+	    index(segment, e);
+	return written;
+    }
+
+    /**
+     * Rolls over for a batch, see {@link #insertAll(Collection, boolean)} for
+     * the wait if the max fs size is reached.
+     * 
+     * @return the new current segment, null if the max fs size is reached.
+     */
+    private Segment<E> nextSegment(Segment<E> segment) {
+	// nobody else rolls over while the write lock is held.
+	if (!rollover(segment, segment.getGeneration()))
+	    return null;
+	return segments.getCurrent();
     }
 
     public E take() throws InterruptedException {
+	long start = metrics.start();
 	E element;
 	readLock.lockInterruptibly();
 	try {
+	    checkOpen();
 	    try {
-		while (count.get() == 0)
+		// the elements are counted once published, a miss means the
+		// ones left are being removed, see ElementItrerator.removeElement.
+		while (count.get() == 0 || (element = extract()) == null) {
 		    notEmpty.await();
+		    checkOpen();
+		}
 	    } catch (InterruptedException ie) {
 		notEmpty.signal(); // propagate to a non-interrupted thread
 		throw ie;
 	    }
-	    element = extract();
 	    if (count.getAndDecrement() > 1)
 		notEmpty.signal();
+	    released(1);
 	} finally {
 	    readLock.unlock();
 	}
+	metrics.stop(metrics.getTakeLatency(), start);
 	return element;
     }
 
+    /**
+     * Reads the head of the queue, the caller should hold the read lock and
+     * update the count only if an element was read.
+     * 
+     * @return null if no counted element is readable.
+     */
     private E extract() {
+	if (memory != null) {
+	    E element = memory.poll();
+	    if (element != null) {
+		metrics.dequeued(1);
+		return element;
+	    }
+	}
 	Segment<E> segment = null;
 	while ((segment = segments.next()) != null) {
 	    if (!segment.hasData())
 		return null;
-	    E element = null;
-	    if ((element = segment.read()) != null)
+	    long start = metrics.start();
+	    E element = segment.read();
+	    segments.consumed(segment);
+	    if (element != null) {
+		metrics.stop(metrics.getDeserializeTime(), start);
+		metrics.dequeued(1);
 		return element;
+	    }
 	}
 	return null;
     }
 
+    /**
+     * Reads up to max elements from the current segment into the collection,
+     * crossing into the next segment only if the current one has nothing
+     * left. The caller should hold the read lock and update the count.
+     */
+    private int extract(Collection<? super E> elements, int max) {
+	Segment<E> segment = null;
+	int n = memory == null ? 0 : memory.drainTo(elements, max);
+	while (n == 0 && (segment = segments.next()) != null) {
+	    if (!segment.hasData())
+		break;
+	    long start = metrics.start();
+	    n = segment.read(max, elements);
+	    segments.consumed(segment);
+	    metrics.stop(metrics.getDeserializeTime(), start, n);
+	}
+	metrics.dequeued(n);
+	return n;
+    }
+
+    /**
+     * Retrieves and removes up to max elements, waiting if necessary until at
+     * least one element becomes available. The elements are read as one run
+     * from the current segment with a single lock acquisition and count
+     * update.
+     */
+    public List<E> takeBatch(int max) throws InterruptedException {
+	Preconditions.checkArgument(max > 0, "max should be > 0");
+	long start = metrics.start();
+	List<E> elements = new ArrayList<E>(Math.min(max, 1024));
+	readLock.lockInterruptibly();
+	try {
+	    checkOpen();
+	    int n;
+	    try {
+		while (count.get() == 0
+			|| (n = extract(elements, Math.min(count.get(), max))) == 0) {
+		    notEmpty.await();
+		    checkOpen();
+		}
+	    } catch (InterruptedException ie) {
+		notEmpty.signal(); // propagate to a non-interrupted thread
+		throw ie;
+	    }
+	    if (count.getAndAdd(-n) > n)
+		notEmpty.signal();
+	    released(n);
+	} finally {
+	    readLock.unlock();
+	}
+	metrics.stop(metrics.getTakeLatency(), start);
+	return elements;
+    }
+
+    /**
+     * Same as {@link #takeBatch(int)} but waits only up to the specified wait
+     * time, returns an empty list if no element became available.
+     */
+    public List<E> pollBatch(int max, long timeout, TimeUnit unit)
+	    throws InterruptedException {
+	Preconditions.checkArgument(max > 0, "max should be > 0");
+	long start = metrics.start();
+	List<E> elements = new ArrayList<E>(Math.min(max, 1024));
+	long nanos = unit.toNanos(timeout);
+	readLock.lockInterruptibly();
+	try {
+	    checkOpen();
+	    while (true) {
+		int c = count.get();
+		int n;
+		if (c > 0 && (n = extract(elements, Math.min(c, max))) > 0) {
+		    if (count.getAndAdd(-n) > n)
+			notEmpty.signal();
+		    released(n);
+		    break;
+		}
+		if (nanos <= 0)
+		    break;
+		try {
+		    nanos = notEmpty.awaitNanos(nanos);
+		} catch (InterruptedException ie) {
+		    notEmpty.signal();
+		    throw ie;
+		}
+		checkOpen();
+	    }
+	} finally {
+	    readLock.unlock();
+	}
+	metrics.stop(metrics.getPollLatency(), start);
+	return elements;
+    }
+
     public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+	long start = metrics.start();
 	E e = null;
 	long nanos = unit.toNanos(timeout);
 	readLock.lockInterruptibly();
 	try {
+	    checkOpen();
 	    while (true) {
-		if (count.get() > 0) {
-		    e = extract();
+		int c = count.get();
+		if (c > 0 && (e = extract()) != null) {
 		    if (count.getAndDecrement() > 1)
 			notEmpty.signal();
+		    released(1);
 		    break;
 		}
 		if (nanos <= 0)
-		    return null;
+		    break;
 		try {
 		    nanos = notEmpty.awaitNanos(nanos);
 		} catch (InterruptedException ie) {
 		    notEmpty.signal();
 		    throw ie;
 		}
+		checkOpen();
 	    }
 	} finally {
 	    readLock.unlock();
 	}
+	metrics.stop(metrics.getPollLatency(), start);
 	return e;
     }
 
@@ -200,10 +1271,10 @@ public class FileBackedBlockingQueue<E> extends AbstractQueue<E> implements
 	E e = null;
 	readLock.lock();
 	try {
-	    if (count.get() > 0) {
-		e = extract();
+	    if (count.get() > 0 && (e = extract()) != null) {
 		if (count.getAndDecrement() > 1)
 		    notEmpty.signal();
+		released(1);
 	    }
 	} finally {
 	    readLock.unlock();
@@ -216,11 +1287,13 @@ public class FileBackedBlockingQueue<E> extends AbstractQueue<E> implements
 	    return null;
 	readLock.lock();
 	try {
+	    E element = memory == null ? null : memory.peek();
+	    if (element != null)
+		return element;
 	    Segment<E> segment = null;
 	    while ((segment = segments.next()) != null) {
 		if (!segment.hasData())
 		    return null;
-		E element = null;
 		if ((element = segment.readWithoutSeek()) != null)
 		    return element;
 	    }
@@ -230,18 +1303,111 @@ public class FileBackedBlockingQueue<E> extends AbstractQueue<E> implements
 	}
     }
 
+    /**
+     * Retrieves, but does not remove, the element at the index from the head
+     * of the queue (0 for the head). With fixed size records (see
+     * {@link Builder#recordSize(int)}) the element is located in O(1) per
+     * segment unless elements were removed from it, the entries are walked
+     * otherwise.
+     * 
+     * @return null if the queue holds fewer elements.
+     */
+    public E peek(int index) {
+	Preconditions.checkArgument(index >= 0, "index should be >= 0");
+	if (count.get() <= index)
+	    return null;
+	long n = index;
+	readLock.lock();
+	Queue<Segment<E>> active = null;
+	try {
+	    // the memory buffer is ahead of the segments.
+	    if (memory != null)
+		for (long i = memory.head(), end = memory.tail(); i < end; i++) {
+		    E element = memory.get(i);
+		    if (element != null && n-- == 0)
+			return element;
+		}
+	    active = segments.cloneActive();
+	    Segment<E> head = active.peek();
+	    long position = head == null ? Segment.HEADER_SIZE : head
+		    .getReadPosition();
+	    int from = head == null ? 0 : head.getReadIndex();
+	    for (Segment<E> segment : active) {
+		segment.map();
+		long live = segment.count(position, from);
+		if (n < live)
+		    return segment.get(segment.newViews(), position, from, n);
+		n -= live;
+		position = Segment.HEADER_SIZE;
+		from = 0;
+	    }
+	    return null;
+	} finally {
+	    readLock.unlock();
+	    if (active != null) {
+		for (Segment<E> segment : active)
+		    segment.release();
+		segments.evict();
+	    }
+	}
+    }
+
+    /**
+     * Removes the element, only the segments which might hold its key are
+     * scanned if there is a key extractor (see
+     * {@link Builder#keyExtractor(Function)}).
+     */
     public boolean remove(Object o) {
 	Preconditions.checkNotNull(o);
-	CloseableIterator<E> it = iterator();
-	while (it.hasNext()) {
-	    E element = it.next();
-	    if (element.equals(o)) {
-		it.removeData();
-		count.decrementAndGet();
-		return true;
+	ElementItrerator it = new ElementItrerator(keyOf(o));
+	try {
+	    while (it.hasNext()) {
+		E element = it.next();
+		// a consumer can take the element meanwhile.
+		if (element.equals(o) && it.removeElement())
+		    return true;
 	    }
+	    return false;
+	} finally {
+	    it.close();
+	}
+    }
+
+    /**
+     * Returns the named consumer group, which reads all the elements added to
+     * the queue from now on (and the ones already in it) independent of the
+     * queue's consumers. The group and its cursor are durable, it holds back
+     * the segments it hasn't read until it is removed.
+     */
+    public ConsumerGroup<E> consumerGroup(String name) {
+	Preconditions.checkNotNull(name);
+	readLock.lock();
+	try {
+	    return segments.consumerGroup(name);
+	} finally {
+	    readLock.unlock();
+	}
+    }
+
+    /**
+     * Drops the consumer group and its cursor.
+     */
+    public void removeConsumerGroup(String name) {
+	segments.removeConsumerGroup(name);
+    }
+
+    public boolean contains(Object o) {
+	if (o == null)
+	    return false;
+	CloseableIterator<E> it = new ElementItrerator(keyOf(o));
+	try {
+	    while (it.hasNext())
+		if (it.next().equals(o))
+		    return true;
+	    return false;
+	} finally {
+	    it.close();
 	}
-	return false;
     }
 
     public String toString() {
@@ -252,7 +1418,9 @@ public class FileBackedBlockingQueue<E> extends AbstractQueue<E> implements
     public void clear() {
 	lockAll();
 	try {
-	    count.set(0);
+	    released(count.getAndSet(0));
+	    if (memory != null)
+		memory.clear();
 	    segments.clear();
 	} finally {
 	    unlockAll();
@@ -267,27 +1435,139 @@ public class FileBackedBlockingQueue<E> extends AbstractQueue<E> implements
 	Preconditions.checkNotNull(collection);
 	if (collection == this)
 	    throw new IllegalArgumentException();
-	lockAll();
+	readLock.lock();
 	try {
 	    int i = 0;
-	    for (; i < Math.min(count.get(), maxElements); i++) {
-		count.decrementAndGet();
-		collection.add(extract());
+	    int n;
+	    // extract(c, 0) reads nothing, a head segment holding only removed
+	    // or unpublished entries would never be left.
+	    while (i < maxElements && count.get() > 0
+		    && (n = extract(collection,
+			    Math.min(count.get(), maxElements - i))) > 0) {
+		count.addAndGet(-n);
+		released(n);
+		i += n;
 	    }
 	    return i;
+	} finally {
+	    readLock.unlock();
+	}
+    }
+
+    /**
+     * Forces the pending writes as per the {@link DurabilityPolicy}, stops the
+     * background threads and closes the segments. The segment files are left
+     * in the directory so that they can be recovered, see
+     * {@link Builder#recover(boolean)}. The producers and the consumers
+     * waiting on the queue get an {@link IllegalStateException}.
+     */
+    public void close() {
+	closed = true;
+	if (space != null) {
+	    // enough for any waiter, each gives them back for the next one.
+	    space.drainPermits();
+	    space.release(capacity);
+	}
+	lockAll();
+	try {
+	    notEmpty.signalAll();
+	    if (reporter != null)
+		reporter.shutdownNow();
+	    unregisterMBeans();
+	    syncer.close();
+	    segments.close();
 	} finally {
 	    unlockAll();
 	}
     }
 
+    private void unregisterMBeans() {
+	MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+	try {
+	    for (ObjectName name : objectNames)
+		mbs.unregisterMBean(name);
+	} catch (Exception e) {
+	    throw new RuntimeException(e);
+	}
+	objectNames.clear();
+    }
+
+    /**
+     * Latencies and counters of the queue, also exported over JMX as
+     * com.win.queue:type=FileBackedBlockingQueue.
+     */
+    public QueueMetrics getMetrics() {
+	return metrics;
+    }
+
+    public int getSize() {
+	return size();
+    }
+
+    public long getEnqueuedCount() {
+	return metrics.getEnqueued().getCount();
+    }
+
+    public double getEnqueueRate() {
+	return metrics.getEnqueued().getRate();
+    }
+
+    public long getDequeuedCount() {
+	return metrics.getDequeued().getCount();
+    }
+
+    public double getDequeueRate() {
+	return metrics.getDequeued().getRate();
+    }
+
+    public long getBytesIn() {
+	return metrics.getBytesIn().getCount();
+    }
+
+    public double getBytesInRate() {
+	return metrics.getBytesIn().getRate();
+    }
+
+    public long getBytesOut() {
+	return metrics.getBytesOut().getCount();
+    }
+
+    public double getBytesOutRate() {
+	return metrics.getBytesOut().getRate();
+    }
+
+    public long getTombstonesSkipped() {
+	return metrics.getTombstonesSkipped();
+    }
+
+    /**
+     * Bytes in the segments which the queue's consumer hasn't read yet.
+     */
+    public long getConsumerLagBytes() {
+	return segments.getLagBytes();
+    }
+
+    public double getCompressionRatio() {
+	return metrics.getCompressionRatio();
+    }
+
+    public long getCompressNanos() {
+	return metrics.getCompressNanos();
+    }
+
+    public long getDecompressNanos() {
+	return metrics.getDecompressNanos();
+    }
+
+    // the producers signal the consumers while holding the write side.
     private void lockAll() {
-	readLock.lock();
 	writeLock.lock();
+	readLock.lock();
     }
 
     private void unlockAll() {
-	readLock.lock();
-	writeLock.lock();
+	readLock.unlock();
+	writeLock.unlock();
     }
 
     /**
@@ -308,41 +1588,93 @@ public class FileBackedBlockingQueue<E> extends AbstractQueue<E> implements
      * returns false.
      */
     public CloseableIterator<E> iterator() {
-	return new ElementItrerator();
+	return elements();
+    }
+
+    /**
+     * The {@link #iterator()}, which tells whether its removal removed the
+     * element.
+     */
+    ElementItrerator elements() {
+	return new ElementItrerator(null);
     }
 
     public class ElementItrerator extends AbstractIterator<E> implements
 	    CloseableIterator<E> {
 	private Queue<Segment<E>> allSegments;
-	private int position;
-	private SegmentEntry<E> current;
+	private long position;
+	private int index; // in the block at the position.
+	private ByteBuffer[] views;
+	private Segment<E> current;
+	private long currentPosition;
+	private int currentIndex;
+	private long memoryIndex;
+	private long memoryEnd;
+	private E memoryElement; // last one returned from the memory buffer.
 
-	private ElementItrerator() {
-	    readLock.lock();
-	    writeLock.lock();
+	/**
+	 * @param key
+	 *            if not null, only the segments which might hold the key are
+	 *            iterated.
+	 */
+	private ElementItrerator(Object key) {
+	    lockAll();
 	    try {
 		allSegments = segments.cloneActive();
-		position = allSegments.peek().getReadPosition();
+		if (key != null) {
+		    int hash = key.hashCode();
+		    for (Iterator<Segment<E>> it = allSegments.iterator(); it
+			    .hasNext();) {
+			Segment<E> segment = it.next();
+			if (!segment.mightContain(hash)) {
+			    it.remove();
+			    segment.release();
+			}
+		    }
+		}
+		position = allSegments.isEmpty() ? Segment.HEADER_SIZE
+			: allSegments.peek().getReadPosition();
+		index = allSegments.isEmpty() ? 0 : allSegments.peek()
+			.getReadIndex();
+		if (memory != null) {
+		    memoryIndex = memory.head();
+		    memoryEnd = memory.tail();
+		}
 	    } finally {
-		readLock.unlock();
-		writeLock.unlock();
+		unlockAll();
 	    }
 	}
 
 	@Override
 	protected E computeNext() {
+	    // the memory buffer is ahead of the segments.
+	    while (memoryIndex < memoryEnd) {
+		long index = memoryIndex++;
+		E element = index < memory.head() ? null : memory.get(index);
+		if (element != null)
+		    return memoryElement = element;
+	    }
+	    memoryElement = null;
 	    Segment<E> segment = null;
 	    while ((segment = nextSegment()) != null) {
 		if (!segment.hasData(position))
-		    return null;
-		SegmentEntry<E> element = null;
-		if ((element = segment.readInternal(position)) != null) {
-		    position += (element.size + Segment.ENTRY_OVERHEAD_SIZE);
-		    current = element;
-		    if (element.markDeleted)
-			continue;
-		    return element.element;
+		    break;
+		if (segment != current) {
+		    current = segment;
+		    segment.map();
+		    views = segment.newViews();
+		}
+		currentPosition = segment.entryAt(position);
+		currentIndex = index;
+		if (++index < segment.elements(currentPosition)) {
+		    position = currentPosition;
+		} else {
+		    position = segment.nextPosition(currentPosition);
+		    index = 0;
 		}
+		if (segment.isDeleted(currentPosition, currentIndex))
+		    continue;
+		return segment.read(views, currentPosition, currentIndex);
 	    }
 	    endOfData();
 	    close();
@@ -351,25 +1683,46 @@ public class FileBackedBlockingQueue<E> extends AbstractQueue<E> implements
 
 	public Segment<E> nextSegment() {
 	    Segment<E> segment = allSegments.peek();
-	    if (!segment.hasData(position)) {
-		Segment<E> seg = allSegments.poll();
-		seg.referenced = false;
-		position = 0;
+	    if (segment != null && !segment.hasData(position)) {
+		allSegments.poll().release();
+		segments.evict();
+		position = Segment.HEADER_SIZE;
+		index = 0;
 	    }
 	    return allSegments.peek();
 	}
 
 	public void removeData() {
-	    Segment<E> seg = allSegments.poll();
-	    seg.remove(position - current.size - Segment.ENTRY_OVERHEAD_SIZE);
+	    removeElement();
+	}
+
+	/**
+	 * Removes the last element returned and takes it off the count.
+	 * 
+	 * @return false if it was already taken off the memory buffer or removed
+	 *         from the segment.
+	 */
+	boolean removeElement() {
+	    if (memoryElement != null) {
+		if (!memory.remove(memoryIndex - 1, memoryElement))
+		    return false;
+	    } else {
+		if (!current.remove(currentPosition, currentIndex))
+		    return false;
+		segments.removed(current);
+	    }
+	    // wakes a consumer which missed the element, if others are left.
+	    if (count.decrementAndGet() > 0)
+		signalNotEmpty();
+	    released(1);
+	    return true;
 	}
 
 	public void close() {
-	    if (current != null)
-		current.parent.referenced = false;
 	    Segment<E> segment;
 	    while ((segment = allSegments.poll()) != null)
-		segment.referenced = false;
+		segment.release();
+	    segments.evict();
 	}
 
 	protected void finalize() throws Throwable {
@@ -0,0 +1,35 @@
+package com.win.queue;
+
+/**
+ * Counters and rates (per second) of the queue, the latency histograms are
+ * registered next to it as type=FileBackedBlockingQueue,name=...
+ */
+public interface FileBackedBlockingQueueMBean {
+    public int getSize();
+
+    public long getEnqueuedCount();
+
+    public double getEnqueueRate();
+
+    public long getDequeuedCount();
+
+    public double getDequeueRate();
+
+    public long getBytesIn();
+
+    public double getBytesInRate();
+
+    public long getBytesOut();
+
+    public double getBytesOutRate();
+
+    public long getTombstonesSkipped();
+
+    public long getConsumerLagBytes();
+
+    public double getCompressionRatio();
+
+    public long getCompressNanos();
+
+    public long getDecompressNanos();
+}
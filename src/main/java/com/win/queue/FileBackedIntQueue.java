@@ -0,0 +1,134 @@
+package com.win.queue;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Queue of ints, every element is a 4 byte record. Same as
+ * {@link FileBackedLongQueue}.
+ *
+ * @author Vijay Parthasarathy
+ */
+public class FileBackedIntQueue extends PrimitiveQueue<FileBackedIntQueue.IntRecord> {
+    static final class IntRecord {
+	private int value;
+    }
+
+    /**
+     * @param builder
+     *            builder of the underlying queue (directory, segment size,
+     *            capacity, recovery...), its serializer and record size are
+     *            set by this queue.
+     */
+    public FileBackedIntQueue(FileBackedBlockingQueue.Builder<?> builder) {
+	super(builder, 4);
+    }
+
+    IntRecord newRecord() {
+	return new IntRecord();
+    }
+
+    int write(IntRecord record, ByteBuffer buffer) {
+	buffer.putInt(record.value);
+	return 4;
+    }
+
+    void read(ByteBuffer buffer, IntRecord record) {
+	record.value = buffer.getInt();
+    }
+
+    void load(Object array, int offset, int i, IntRecord record) {
+	record.value = ((int[]) array)[offset + i];
+    }
+
+    void store(IntRecord record, Object array, int offset, int i) {
+	((int[]) array)[offset + i] = record.value;
+    }
+
+    private IntRecord record(int e) {
+	IntRecord record = record();
+	record.value = e;
+	return record;
+    }
+
+    /**
+     * @return false if the capacity or the max fs size is reached.
+     */
+    public boolean offer(int e) {
+	return queue.offer(record(e));
+    }
+
+    public boolean offer(int e, long timeout, TimeUnit unit)
+	    throws InterruptedException {
+	return queue.offer(record(e), timeout, unit);
+    }
+
+    public void put(int e) throws InterruptedException {
+	queue.put(record(e));
+    }
+
+    /**
+     * @return false if the capacity doesn't allow all of them (none is
+     *         inserted) or the max fs size is reached (the ones which fit
+     *         are).
+     */
+    public boolean offerAll(int[] elements) {
+	return offerAll(elements, 0, elements.length);
+    }
+
+    public boolean offerAll(int[] elements, int offset, int length) {
+	Preconditions.checkPositionIndexes(offset, offset + length,
+		elements.length);
+	return offerAll((Object) elements, offset, length);
+    }
+
+    public void putAll(int[] elements) throws InterruptedException {
+	putAll(elements, 0, elements.length);
+    }
+
+    public void putAll(int[] elements, int offset, int length)
+	    throws InterruptedException {
+	Preconditions.checkPositionIndexes(offset, offset + length,
+		elements.length);
+	putAll((Object) elements, offset, length);
+    }
+
+    public int take() throws InterruptedException {
+	return queue.take().value;
+    }
+
+    /**
+     * @return the head of the queue, or the missing value if the queue is
+     *         empty.
+     */
+    public int poll(int missing) {
+	IntRecord record = queue.poll();
+	return record == null ? missing : record.value;
+    }
+
+    public int poll(long timeout, TimeUnit unit, int missing)
+	    throws InterruptedException {
+	IntRecord record = queue.poll(timeout, unit);
+	return record == null ? missing : record.value;
+    }
+
+    public int peek(int missing) {
+	IntRecord record = queue.peek();
+	return record == null ? missing : record.value;
+    }
+
+    /**
+     * @return number of elements taken.
+     */
+    public int drainTo(int[] elements) {
+	return drainTo(elements, 0, elements.length);
+    }
+
+    public int drainTo(int[] elements, int offset, int max) {
+	Preconditions.checkPositionIndexes(offset, offset + max,
+		elements.length);
+	return drainTo((Object) elements, offset, max);
+    }
+}
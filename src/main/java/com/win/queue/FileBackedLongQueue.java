@@ -0,0 +1,156 @@
+package com.win.queue;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Queue of longs backed by the segments of a {@link FileBackedBlockingQueue},
+ * every element is an 8 byte record (see
+ * {@link FileBackedBlockingQueue.Builder#recordSize(int)}) copied straight
+ * between the caller and the segment: no boxing, no serializer and no
+ * allocation per element.
+ *
+ * @author Vijay Parthasarathy
+ */
+public class FileBackedLongQueue extends PrimitiveQueue<FileBackedLongQueue.LongRecord> {
+    static final class LongRecord {
+	private long value;
+    }
+
+    /**
+     * @param builder
+     *            builder of the underlying queue (directory, segment size,
+     *            capacity, recovery...), its serializer and record size are
+     *            set by this queue.
+     */
+    public FileBackedLongQueue(FileBackedBlockingQueue.Builder<?> builder) {
+	super(builder, 8);
+    }
+
+    LongRecord newRecord() {
+	return new LongRecord();
+    }
+
+    int write(LongRecord record, ByteBuffer buffer) {
+	buffer.putLong(record.value);
+	return 8;
+    }
+
+    void read(ByteBuffer buffer, LongRecord record) {
+	record.value = buffer.getLong();
+    }
+
+    void load(Object array, int offset, int i, LongRecord record) {
+	record.value = ((long[]) array)[offset + i];
+    }
+
+    void store(LongRecord record, Object array, int offset, int i) {
+	((long[]) array)[offset + i] = record.value;
+    }
+
+    private LongRecord record(long e) {
+	LongRecord record = record();
+	record.value = e;
+	return record;
+    }
+
+    /**
+     * @return false if the capacity or the max fs size is reached.
+     */
+    public boolean offer(long e) {
+	return queue.offer(record(e));
+    }
+
+    public boolean offer(long e, long timeout, TimeUnit unit)
+	    throws InterruptedException {
+	return queue.offer(record(e), timeout, unit);
+    }
+
+    public void put(long e) throws InterruptedException {
+	queue.put(record(e));
+    }
+
+    /**
+     * Inserts all the elements as a batch, see
+     * {@link FileBackedBlockingQueue#offerAll(java.util.Collection)}.
+     *
+     * @return false if the capacity doesn't allow all of them (none is
+     *         inserted) or the max fs size is reached (the ones which fit
+     *         are).
+     */
+    public boolean offerAll(long[] elements) {
+	return offerAll(elements, 0, elements.length);
+    }
+
+    public boolean offerAll(long[] elements, int offset, int length) {
+	Preconditions.checkPositionIndexes(offset, offset + length,
+		elements.length);
+	return offerAll((Object) elements, offset, length);
+    }
+
+    /**
+     * Same as {@link #offerAll(long[])} but waits for the consumers to make
+     * room for the elements.
+     */
+    public void putAll(long[] elements) throws InterruptedException {
+	putAll(elements, 0, elements.length);
+    }
+
+    public void putAll(long[] elements, int offset, int length)
+	    throws InterruptedException {
+	Preconditions.checkPositionIndexes(offset, offset + length,
+		elements.length);
+	putAll((Object) elements, offset, length);
+    }
+
+    public long take() throws InterruptedException {
+	return queue.take().value;
+    }
+
+    /**
+     * @return the head of the queue, or the missing value if the queue is
+     *         empty.
+     */
+    public long poll(long missing) {
+	LongRecord record = queue.poll();
+	return record == null ? missing : record.value;
+    }
+
+    /**
+     * Waits up to the specified wait time for an element.
+     *
+     * @return the head of the queue, or the missing value if none was
+     *         available in time.
+     */
+    public long poll(long timeout, TimeUnit unit, long missing)
+	    throws InterruptedException {
+	LongRecord record = queue.poll(timeout, unit);
+	return record == null ? missing : record.value;
+    }
+
+    /**
+     * @return the head of the queue without removing it, or the missing value
+     *         if the queue is empty.
+     */
+    public long peek(long missing) {
+	LongRecord record = queue.peek();
+	return record == null ? missing : record.value;
+    }
+
+    /**
+     * Takes as many elements as the array holds.
+     *
+     * @return number of elements taken.
+     */
+    public int drainTo(long[] elements) {
+	return drainTo(elements, 0, elements.length);
+    }
+
+    public int drainTo(long[] elements, int offset, int max) {
+	Preconditions.checkPositionIndexes(offset, offset + max,
+		elements.length);
+	return drainTo((Object) elements, offset, max);
+    }
+}
@@ -0,0 +1,173 @@
+package com.win.queue;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Queue of fixed width byte records, e.g. packed structs. The records are
+ * copied between the caller's arrays and the segments, same as
+ * {@link FileBackedLongQueue}, an array holds the records back to back.
+ *
+ * @author Vijay Parthasarathy
+ */
+public class FileBackedRecordQueue extends PrimitiveQueue<FileBackedRecordQueue.ByteRecord> {
+    private final int recordSize;
+
+    static final class ByteRecord {
+	private final byte[] bytes; // read from the segment.
+	private byte[] array; // to be written to the segment.
+	private int offset;
+
+	ByteRecord(int size) {
+	    bytes = new byte[size];
+	}
+    }
+
+    /**
+     * @param builder
+     *            builder of the underlying queue (directory, segment size,
+     *            capacity, recovery...), its serializer and record size are
+     *            set by this queue.
+     * @param recordSize
+     *            number of bytes of a record.
+     */
+    public FileBackedRecordQueue(FileBackedBlockingQueue.Builder<?> builder,
+	    int recordSize) {
+	super(builder, recordSize);
+	this.recordSize = recordSize;
+    }
+
+    public int getRecordSize() {
+	return recordSize;
+    }
+
+    ByteRecord newRecord() {
+	return new ByteRecord(recordSize);
+    }
+
+    int write(ByteRecord record, ByteBuffer buffer) {
+	buffer.put(record.array, record.offset, recordSize);
+	return recordSize;
+    }
+
+    void read(ByteBuffer buffer, ByteRecord record) {
+	buffer.get(record.bytes);
+    }
+
+    void load(Object array, int offset, int i, ByteRecord record) {
+	record.array = (byte[]) array;
+	record.offset = offset + i * recordSize;
+    }
+
+    void store(ByteRecord record, Object array, int offset, int i) {
+	System.arraycopy(record.bytes, 0, array, offset + i * recordSize,
+		recordSize);
+    }
+
+    private ByteRecord record(byte[] records, int offset) {
+	check(records, offset, 1);
+	ByteRecord record = record();
+	record.array = records;
+	record.offset = offset;
+	return record;
+    }
+
+    /**
+     * Inserts the record at the offset of the array.
+     *
+     * @return false if the capacity or the max fs size is reached.
+     */
+    public boolean offer(byte[] records, int offset) {
+	return queue.offer(record(records, offset));
+    }
+
+    public boolean offer(byte[] records, int offset, long timeout,
+	    TimeUnit unit) throws InterruptedException {
+	return queue.offer(record(records, offset), timeout, unit);
+    }
+
+    public void put(byte[] records, int offset) throws InterruptedException {
+	queue.put(record(records, offset));
+    }
+
+    /**
+     * Inserts n records of the array from the offset as a batch, see
+     * {@link FileBackedBlockingQueue#offerAll(java.util.Collection)}.
+     *
+     * @return false if the capacity doesn't allow all of them (none is
+     *         inserted) or the max fs size is reached (the ones which fit
+     *         are).
+     */
+    public boolean offerAll(byte[] records, int offset, int n) {
+	check(records, offset, n);
+	return offerAll((Object) records, offset, n);
+    }
+
+    public void putAll(byte[] records, int offset, int n)
+	    throws InterruptedException {
+	check(records, offset, n);
+	putAll((Object) records, offset, n);
+    }
+
+    /**
+     * Takes the head into the array at the offset, waiting if necessary.
+     */
+    public void take(byte[] records, int offset) throws InterruptedException {
+	check(records, offset, 1);
+	copy(queue.take(), records, offset);
+    }
+
+    /**
+     * Takes the head into the array at the offset.
+     *
+     * @return false if the queue is empty.
+     */
+    public boolean poll(byte[] records, int offset) {
+	check(records, offset, 1);
+	return copy(queue.poll(), records, offset);
+    }
+
+    public boolean poll(byte[] records, int offset, long timeout,
+	    TimeUnit unit) throws InterruptedException {
+	check(records, offset, 1);
+	return copy(queue.poll(timeout, unit), records, offset);
+    }
+
+    /**
+     * Copies the head into the array at the offset without removing it.
+     *
+     * @return false if the queue is empty.
+     */
+    public boolean peek(byte[] records, int offset) {
+	check(records, offset, 1);
+	return copy(queue.peek(), records, offset);
+    }
+
+    /**
+     * Checks that the array holds n records from the offset.
+     */
+    private void check(byte[] records, int offset, int n) {
+	Preconditions.checkPositionIndexes(offset,
+		(int) Math.min(offset + (long) n * recordSize, Integer.MAX_VALUE),
+		records.length);
+    }
+
+    private boolean copy(ByteRecord record, byte[] records, int offset) {
+	if (record == null)
+	    return false;
+	store(record, records, offset, 0);
+	return true;
+    }
+
+    /**
+     * Takes up to max records into the array from the offset.
+     *
+     * @return number of records taken.
+     */
+    public int drainTo(byte[] records, int offset, int max) {
+	check(records, offset, max);
+	return drainTo((Object) records, offset, max);
+    }
+}
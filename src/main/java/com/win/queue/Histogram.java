@@ -0,0 +1,118 @@
+package com.win.queue;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Lock free log-linear histogram of nanosecond values, HDR style: every power
+ * of two is split into 16 linear buckets, so a recorded value is reported
+ * within about 6% of what it was. Recording is a couple of atomic adds, the
+ * percentiles are computed from the bucket counts when asked.
+ * 
+ * @author Vijay Parthasarathy
+ */
+public class Histogram implements HistogramMBean {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    static int bucket(long value) {
+	if (value < SUB_BUCKETS)
+	    return (int) value;
+	int exponent = 63 - Long.numberOfLeadingZeros(value);
+	int sub = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+	return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Smallest value which falls in the bucket.
+     */
+    static long lowerBound(int bucket) {
+	if (bucket < SUB_BUCKETS)
+	    return bucket;
+	int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+	long sub = bucket % SUB_BUCKETS;
+	return (SUB_BUCKETS + sub) << (exponent - SUB_BITS);
+    }
+
+    public void record(long nanos) {
+	record(nanos, 1);
+    }
+
+    /**
+     * Records the value n times, e.g. the average of a batch for each of its
+     * elements.
+     */
+    public void record(long nanos, int n) {
+	if (nanos < 0)
+	    nanos = 0;
+	buckets.addAndGet(bucket(nanos), n);
+	count.addAndGet(n);
+	total.addAndGet(nanos * n);
+	long current;
+	while (nanos > (current = max.get()))
+	    if (max.compareAndSet(current, nanos))
+		break;
+    }
+
+    public long getCount() {
+	return count.get();
+    }
+
+    public double getMean() {
+	long n = count.get();
+	return n == 0 ? 0 : (double) total.get() / n;
+    }
+
+    public long getMax() {
+	return max.get();
+    }
+
+    /**
+     * Highest value of the bucket holding the percentile (0 - 100], not more
+     * than the max recorded.
+     */
+    public long getPercentile(double percentile) {
+	Preconditions.checkArgument(percentile > 0 && percentile <= 100,
+		"percentile should be in (0, 100]");
+	long n = count.get();
+	if (n == 0)
+	    return 0;
+	long rank = (long) Math.ceil(n * percentile / 100);
+	long seen = 0;
+	for (int i = 0; i < BUCKETS; i++) {
+	    seen += buckets.get(i);
+	    if (seen >= rank)
+		return Math.min(
+			i + 1 < BUCKETS ? lowerBound(i + 1) - 1 : Long.MAX_VALUE,
+			max.get());
+	}
+	return max.get(); // recorded concurrently.
+    }
+
+    public long get50thPercentile() {
+	return getPercentile(50);
+    }
+
+    public long get99thPercentile() {
+	return getPercentile(99);
+    }
+
+    public long get999thPercentile() {
+	return getPercentile(99.9);
+    }
+
+    public String toString() {
+	return String.format(
+		"count: %d, mean: %.0f, p50: %d, p99: %d, p999: %d, max: %d",
+		getCount(), getMean(), get50thPercentile(),
+		get99thPercentile(), get999thPercentile(), getMax());
+    }
+}
@@ -0,0 +1,18 @@
+package com.win.queue;
+
+/**
+ * Latency histogram exposed over JMX, the values are in nanoseconds.
+ */
+public interface HistogramMBean {
+    public long getCount();
+
+    public double getMean();
+
+    public long get50thPercentile();
+
+    public long get99thPercentile();
+
+    public long get999thPercentile();
+
+    public long getMax();
+}
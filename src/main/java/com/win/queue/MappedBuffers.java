@@ -0,0 +1,57 @@
+package com.win.queue;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+/**
+ * Releases the mapping of a {@link MappedByteBuffer} right away instead of
+ * waiting for the buffer to be GC'ed. Uses Unsafe.invokeCleaner (JDK 9+) or
+ * the buffer's cleaner (JDK 8), if neither is available the mapping is left
+ * to the GC.
+ * <p>
+ * NOTE: the buffer and all its duplicates/views must never be touched after
+ * it is unmapped, doing so crashes the JVM.
+ * 
+ * @author Vijay Parthasarathy
+ */
+final class MappedBuffers {
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+	Object unsafe = null;
+	Method invokeCleaner = null;
+	try {
+	    Class<?> clazz = Class.forName("sun.misc.Unsafe");
+	    Field field = clazz.getDeclaredField("theUnsafe");
+	    field.setAccessible(true);
+	    unsafe = field.get(null);
+	    invokeCleaner = clazz.getMethod("invokeCleaner", ByteBuffer.class);
+	} catch (Exception e) {
+	    // JDK 8, fall back to the cleaner.
+	}
+	UNSAFE = unsafe;
+	INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private MappedBuffers() {
+    }
+
+    static void unmap(MappedByteBuffer buffer) {
+	try {
+	    if (INVOKE_CLEANER != null) {
+		INVOKE_CLEANER.invoke(UNSAFE, buffer);
+		return;
+	    }
+	    Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+	    cleanerMethod.setAccessible(true);
+	    Object cleaner = cleanerMethod.invoke(buffer);
+	    if (cleaner != null)
+		cleaner.getClass().getMethod("clean").invoke(cleaner);
+	} catch (Exception e) {
+	    // leave it to the GC.
+	}
+    }
+}
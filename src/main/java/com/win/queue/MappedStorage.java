@@ -0,0 +1,153 @@
+package com.win.queue;
+
+import java.io.File;
+import java.io.IOError;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Maps a segment file as one or more windows of up to windowSize bytes each
+ * (a single mapping can't exceed 2 GB). Every access is a single absolute
+ * get/put on one window, the entries are serialized straight into the
+ * mapping and deserialized from it.
+ *
+ * @author Vijay Parthasarathy
+ */
+class MappedStorage extends SegmentStorage {
+    private MappedByteBuffer[] windows;
+    private ByteBuffer[] writers;
+
+    MappedStorage(File logFile, long length, int windowSize, boolean existing) {
+	super(logFile, length, windowSize, existing);
+    }
+
+    boolean isMapped() {
+	return windows != null;
+    }
+
+    void map() {
+	if (windows != null)
+	    return;
+	int count = windows();
+	MappedByteBuffer[] mapped = new MappedByteBuffer[count];
+	ByteBuffer[] duplicates = new ByteBuffer[count];
+	try {
+	    for (int i = 0; i < count; i++) {
+		long start = (long) i * windowSize();
+		mapped[i] = file.getChannel().map(
+			FileChannel.MapMode.READ_WRITE, start,
+			Math.min(windowSize(), length() - start));
+		duplicates[i] = mapped[i].duplicate();
+	    }
+	} catch (IOException e) {
+	    for (MappedByteBuffer buffer : mapped)
+		if (buffer != null)
+		    MappedBuffers.unmap(buffer);
+	    throw new IOError(e);
+	}
+	windows = mapped;
+	writers = duplicates;
+    }
+
+    void unmap() {
+	if (windows == null)
+	    return;
+	MappedByteBuffer[] mapped = windows;
+	windows = null;
+	writers = null;
+	for (MappedByteBuffer buffer : mapped)
+	    MappedBuffers.unmap(buffer);
+    }
+
+    int getInt(long position) {
+	return windows[index(position)].getInt(offset(position));
+    }
+
+    void putInt(long position, int value) {
+	windows[index(position)].putInt(offset(position), value);
+    }
+
+    long getLong(long position) {
+	return windows[index(position)].getLong(offset(position));
+    }
+
+    void putLong(long position, long value) {
+	windows[index(position)].putLong(offset(position), value);
+    }
+
+    byte get(long position) {
+	return windows[index(position)].get(offset(position));
+    }
+
+    void put(long position, byte value) {
+	windows[index(position)].put(offset(position), value);
+    }
+
+    /**
+     * Read only views of the windows.
+     */
+    ByteBuffer[] newViews() {
+	ByteBuffer[] views = new ByteBuffer[windows.length];
+	for (int i = 0; i < views.length; i++)
+	    views[i] = windows[i].asReadOnlyBuffer();
+	return views;
+    }
+
+    /**
+     * The window's view itself (no copy into the heap).
+     */
+    ByteBuffer read(ByteBuffer[] views, long position, int size) {
+	ByteBuffer view = views[index(position)];
+	int start = offset(position);
+	view.limit(start + size);
+	view.position(start);
+	return view;
+    }
+
+    /**
+     * Writable duplicates of the windows.
+     */
+    ByteBuffer[] newWriters() {
+	ByteBuffer[] duplicates = new ByteBuffer[windows.length];
+	for (int i = 0; i < duplicates.length; i++)
+	    duplicates[i] = windows[i].duplicate();
+	return duplicates;
+    }
+
+    void write(ByteBuffer[] writers, long position, ByteBuffer source) {
+	ByteBuffer writer = writers[index(position)];
+	writer.clear();
+	writer.position(offset(position));
+	writer.put(source);
+    }
+
+    /**
+     * The single writer's buffer of the window, up to the end.
+     */
+    ByteBuffer appender(long position, long end, int capacity) {
+	ByteBuffer writer = writers[index(position)];
+	int offset = offset(position);
+	writer.clear();
+	writer.limit(offset + (int) (end - position));
+	writer.position(offset);
+	return writer;
+    }
+
+    /**
+     * Forces the mapped windows, or the file if it is not mapped.
+     */
+    void force() {
+	if (windows != null) {
+	    for (MappedByteBuffer buffer : windows)
+		buffer.force();
+	    return;
+	}
+	try {
+	    file.getChannel().force(false);
+	} catch (IOException e) {
+	    throw new IOError(e);
+	}
+    }
+}
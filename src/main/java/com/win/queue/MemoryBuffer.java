@@ -0,0 +1,117 @@
+package com.win.queue;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded ring of elements kept in the heap in front of the segments, written
+ * by one producer and read by one consumer at a time (the queue's write and
+ * read locks). A removed element leaves an empty slot which the consumer
+ * skips.
+ * 
+ * @author Vijay Parthasarathy
+ */
+class MemoryBuffer<E> {
+    private final AtomicReferenceArray<E> slots;
+    private final int mask;
+    private final int capacity;
+    private volatile long head; // next slot to read.
+    private volatile long tail; // next slot to write.
+
+    MemoryBuffer(int capacity) {
+	this.capacity = capacity;
+	int size = Integer.highestOneBit(capacity);
+	if (size < capacity)
+	    size <<= 1;
+	this.slots = new AtomicReferenceArray<E>(size);
+	this.mask = size - 1;
+    }
+
+    /**
+     * @return false if the buffer is full.
+     */
+    boolean offer(E element) {
+	long t = tail;
+	if (t - head >= capacity)
+	    return false;
+	slots.set((int) t & mask, element);
+	tail = t + 1;
+	return true;
+    }
+
+    E poll() {
+	long h = head;
+	while (h < tail) {
+	    E element = slots.getAndSet((int) h & mask, null);
+	    head = ++h;
+	    if (element != null)
+		return element;
+	}
+	return null;
+    }
+
+    /**
+     * Moves up to max elements into the collection.
+     * 
+     * @return number of elements moved.
+     */
+    int drainTo(Collection<? super E> elements, int max) {
+	int n = 0;
+	E element;
+	while (n < max && (element = poll()) != null) {
+	    elements.add(element);
+	    n++;
+	}
+	return n;
+    }
+
+    E peek() {
+	for (long i = head; i < tail; i++) {
+	    E element = slots.get((int) i & mask);
+	    if (element != null)
+		return element;
+	}
+	return null;
+    }
+
+    boolean remove(Object o) {
+	for (long i = head; i < tail; i++) {
+	    E element = slots.get((int) i & mask);
+	    if (element != null && element.equals(o))
+		return remove(i, element);
+	}
+	return false;
+    }
+
+    /**
+     * Removes the element if it is still in the slot.
+     */
+    boolean remove(long index, E element) {
+	return slots.compareAndSet((int) index & mask, element, null);
+    }
+
+    E get(long index) {
+	return slots.get((int) index & mask);
+    }
+
+    long head() {
+	return head;
+    }
+
+    long tail() {
+	return tail;
+    }
+
+    boolean isEmpty() {
+	return head == tail;
+    }
+
+    /**
+     * Should be called with the producer and the consumer locked out.
+     */
+    void clear() {
+	for (long i = head; i < tail; i++)
+	    slots.set((int) i & mask, null);
+	head = tail;
+    }
+}
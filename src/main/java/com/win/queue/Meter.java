@@ -0,0 +1,53 @@
+package com.win.queue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts events and their one minute exponentially weighted rate per second.
+ * Marking is a single atomic add, the rate is decayed in 5 second ticks when
+ * it is read (the events since the last read are spread over the ticks
+ * elapsed meanwhile).
+ * 
+ * @author Vijay Parthasarathy
+ */
+public class Meter {
+    private static final long TICK = TimeUnit.SECONDS.toNanos(5);
+    private static final double ALPHA = 1 - Math.exp(-5 / 60.0);
+
+    private final AtomicLong count = new AtomicLong();
+    private long lastCount;
+    private long lastTick = System.nanoTime();
+    private double rate = -1;
+
+    public void mark(long n) {
+	count.addAndGet(n);
+    }
+
+    public long getCount() {
+	return count.get();
+    }
+
+    /**
+     * One minute rate per second.
+     */
+    public synchronized double getRate() {
+	long now = System.nanoTime();
+	long ticks = (now - lastTick) / TICK;
+	if (ticks > 0) {
+	    long current = count.get();
+	    double instant = (double) (current - lastCount) / ticks
+		    / TimeUnit.NANOSECONDS.toSeconds(TICK);
+	    // converged to the instant rate long before 100 ticks.
+	    for (long i = 0; i < Math.min(ticks, 100); i++)
+		rate = rate < 0 ? instant : rate + ALPHA * (instant - rate);
+	    lastCount = current;
+	    lastTick += ticks * TICK;
+	}
+	return rate < 0 ? 0 : rate;
+    }
+
+    public String toString() {
+	return String.format("count: %d, rate: %.1f/s", getCount(), getRate());
+    }
+}
@@ -0,0 +1,17 @@
+package com.win.queue;
+
+/**
+ * Reports the metrics of a queue periodically, see
+ * {@link FileBackedBlockingQueue.Builder#reporter(MetricsReporter, long, java.util.concurrent.TimeUnit)}.
+ * Called from a background thread.
+ * 
+ * @author Vijay Parthasarathy
+ */
+public interface MetricsReporter {
+    /**
+     * @param queue
+     *            the latencies and the counters are in
+     *            {@link FileBackedBlockingQueue#getMetrics()}.
+     */
+    public void report(FileBackedBlockingQueue<?> queue);
+}
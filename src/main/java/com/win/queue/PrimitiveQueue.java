@@ -0,0 +1,212 @@
+package com.win.queue;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.util.AbstractCollection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Base of the primitive queues, which pass their elements through a
+ * {@link FileBackedBlockingQueue} of fixed size records (see
+ * {@link FileBackedBlockingQueue.Builder#recordSize(int)}) so that they get
+ * its segments, recycling and recovery as they are.
+ * <p>
+ * Nothing is boxed: every thread has a record (a mutable flyweight) the
+ * serializer copies the primitive from when it is written into the segment
+ * and into when it is read back, the batches go through a view of the
+ * caller's array which is reused by the thread. No element is allocated.
+ *
+ * @param <R>
+ *            the flyweight record.
+ * @author Vijay Parthasarathy
+ */
+abstract class PrimitiveQueue<R> implements Closeable {
+    protected final FileBackedBlockingQueue<R> queue;
+    private final ThreadLocal<R> records = new ThreadLocal<R>() {
+	protected R initialValue() {
+	    return newRecord();
+	}
+    };
+    private final ThreadLocal<Batch> batches = new ThreadLocal<Batch>() {
+	protected Batch initialValue() {
+	    return new Batch();
+	}
+    };
+
+    PrimitiveQueue(FileBackedBlockingQueue.Builder<?> builder, int recordSize) {
+	queue = builder.buildRecords(new DirectQueueSerializer<R>() {
+	    public int serialize(R record, ByteBuffer buffer) {
+		return write(record, buffer);
+	    }
+
+	    public R deserialize(ByteBuffer buffer) {
+		R record = record();
+		read(buffer, record);
+		return record;
+	    }
+	}, recordSize);
+    }
+
+    abstract R newRecord();
+
+    /**
+     * Writes the record at the buffer's position.
+     *
+     * @return number of bytes written.
+     */
+    abstract int write(R record, ByteBuffer buffer);
+
+    /**
+     * Reads the record from the buffer's position.
+     */
+    abstract void read(ByteBuffer buffer, R record);
+
+    /**
+     * Loads the i-th element of the array from the offset into the record.
+     */
+    abstract void load(Object array, int offset, int i, R record);
+
+    /**
+     * Stores the record into the i-th element of the array from the offset.
+     */
+    abstract void store(R record, Object array, int offset, int i);
+
+    /**
+     * The thread's record.
+     */
+    protected R record() {
+	return records.get();
+    }
+
+    /**
+     * Inserts the n elements of the array from the offset, see
+     * {@link FileBackedBlockingQueue#offerAll(java.util.Collection)}.
+     */
+    protected boolean offerAll(Object array, int offset, int n) {
+	Batch batch = batches.get().of(array, offset, n);
+	try {
+	    return queue.offerAll(batch);
+	} finally {
+	    batch.clear();
+	}
+    }
+
+    protected void putAll(Object array, int offset, int n)
+	    throws InterruptedException {
+	Batch batch = batches.get().of(array, offset, n);
+	try {
+	    queue.putAll(batch);
+	} finally {
+	    batch.clear();
+	}
+    }
+
+    /**
+     * Takes up to max elements into the array from the offset.
+     *
+     * @return number of elements taken.
+     */
+    protected int drainTo(Object array, int offset, int max) {
+	Batch batch = batches.get().of(array, offset, 0);
+	try {
+	    return queue.drainTo(batch, max);
+	} finally {
+	    batch.clear();
+	}
+    }
+
+    public int size() {
+	return queue.size();
+    }
+
+    public boolean isEmpty() {
+	return queue.isEmpty();
+    }
+
+    /**
+     * See {@link FileBackedBlockingQueue#remainingCapacity()}.
+     */
+    public int remainingCapacity() {
+	return queue.remainingCapacity();
+    }
+
+    public void clear() {
+	queue.clear();
+    }
+
+    /**
+     * The queue the records go through, e.g. for its metrics.
+     */
+    public FileBackedBlockingQueue<?> getQueue() {
+	return queue;
+    }
+
+    public void close() {
+	queue.close();
+    }
+
+    public String toString() {
+	return getClass().getSimpleName() + ", count: " + size();
+    }
+
+    /**
+     * View of the caller's array as a collection of the thread's record,
+     * loaded with the next element as it is iterated and stored as it is
+     * added.
+     */
+    private class Batch extends AbstractCollection<R> {
+	private Object array;
+	private int offset;
+	private int size;
+
+	Batch of(Object array, int offset, int size) {
+	    this.array = Preconditions.checkNotNull(array);
+	    this.offset = offset;
+	    this.size = size;
+	    return this;
+	}
+
+	@Override
+	public Iterator<R> iterator() {
+	    return new Iterator<R>() {
+		private int i;
+
+		public boolean hasNext() {
+		    return i < size;
+		}
+
+		public R next() {
+		    if (i == size)
+			throw new NoSuchElementException();
+		    R record = record();
+		    load(array, offset, i++, record);
+		    return record;
+		}
+
+		public void remove() {
+		    throw new UnsupportedOperationException();
+		}
+	    };
+	}
+
+	@Override
+	public boolean add(R record) {
+	    store(record, array, offset, size++);
+	    return true;
+	}
+
+	@Override
+	public int size() {
+	    return size;
+	}
+
+	@Override
+	public void clear() {
+	    array = null;
+	    size = 0;
+	}
+    }
+}
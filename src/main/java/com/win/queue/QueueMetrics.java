@@ -0,0 +1,237 @@
+package com.win.queue;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latencies and I/O counters of a queue, see
+ * {@link FileBackedBlockingQueue#getMetrics()}. The counters are always
+ * kept, the latencies are recorded only if enabled (see
+ * {@link FileBackedBlockingQueue.Builder#metrics(boolean)}) since timing takes
+ * two clock reads per operation.
+ * 
+ * @author Vijay Parthasarathy
+ */
+public class QueueMetrics {
+    private final boolean enabled;
+    private final Histogram offer = new Histogram();
+    private final Histogram take = new Histogram();
+    private final Histogram poll = new Histogram();
+    private final Histogram serialize = new Histogram();
+    private final Histogram deserialize = new Histogram();
+    private final Histogram rollover = new Histogram();
+    private final Histogram allocation = new Histogram();
+    private final Histogram sync = new Histogram();
+    private final Histogram compress = new Histogram();
+    private final Histogram decompress = new Histogram();
+    private final Meter enqueued = new Meter();
+    private final Meter dequeued = new Meter();
+    private final Meter bytesIn = new Meter();
+    private final Meter bytesOut = new Meter();
+    private final AtomicLong tombstonesSkipped = new AtomicLong();
+    private final Meter uncompressedBytes = new Meter();
+    private final Meter compressedBytes = new Meter();
+    private final AtomicLong compressNanos = new AtomicLong();
+    private final AtomicLong decompressNanos = new AtomicLong();
+
+    public QueueMetrics(boolean enabled) {
+	this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+	return enabled;
+    }
+
+    /**
+     * Start time to be passed to {@link #stop(Histogram, long)}, 0 if the
+     * latencies are not recorded.
+     */
+    long start() {
+	return enabled ? System.nanoTime() : 0;
+    }
+
+    void stop(Histogram histogram, long start) {
+	if (start != 0)
+	    histogram.record(System.nanoTime() - start);
+    }
+
+    /**
+     * Records the average time of the batch for each of its n elements.
+     */
+    void stop(Histogram histogram, long start, int n) {
+	if (start != 0 && n > 0)
+	    histogram.record((System.nanoTime() - start) / n, n);
+    }
+
+    void enqueued(int n, long bytes) {
+	enqueued.mark(n);
+	bytesIn.mark(bytes);
+    }
+
+    void dequeued(int n) {
+	dequeued.mark(n);
+    }
+
+    void consumed(long bytes, long skipped) {
+	bytesOut.mark(bytes);
+	if (skipped > 0)
+	    tombstonesSkipped.addAndGet(skipped);
+    }
+
+    /**
+     * A block was deflated, it is timed whether or not the latencies are
+     * recorded (two clock reads per block).
+     */
+    void compressed(long raw, long compressed, long nanos) {
+	uncompressedBytes.mark(raw);
+	compressedBytes.mark(compressed);
+	compressNanos.addAndGet(nanos);
+	if (enabled)
+	    compress.record(nanos);
+    }
+
+    void decompressed(long nanos) {
+	decompressNanos.addAndGet(nanos);
+	if (enabled)
+	    decompress.record(nanos);
+    }
+
+    /**
+     * Time spent in offer/put, including the wait for the write lock and the
+     * force of {@link DurabilityPolicy#SYNC_ON_PUT}.
+     */
+    public Histogram getOfferLatency() {
+	return offer;
+    }
+
+    /**
+     * Time spent in take, including the wait for an element.
+     */
+    public Histogram getTakeLatency() {
+	return take;
+    }
+
+    /**
+     * Time spent in the timed poll, including the wait for an element.
+     */
+    public Histogram getPollLatency() {
+	return poll;
+    }
+
+    /**
+     * Time to serialize an element into the segment.
+     */
+    public Histogram getSerializeTime() {
+	return serialize;
+    }
+
+    /**
+     * Time to read an element back from the segment.
+     */
+    public Histogram getDeserializeTime() {
+	return deserialize;
+    }
+
+    /**
+     * Time to switch the producer to the next segment.
+     */
+    public Histogram getRolloverTime() {
+	return rollover;
+    }
+
+    /**
+     * Time to create a new segment file (by a roll over or a preallocation).
+     */
+    public Histogram getAllocationTime() {
+	return allocation;
+    }
+
+    /**
+     * Time to force the segments to the disk.
+     */
+    public Histogram getSyncTime() {
+	return sync;
+    }
+
+    /**
+     * Time to deflate a block.
+     */
+    public Histogram getCompressTime() {
+	return compress;
+    }
+
+    /**
+     * Time to inflate a block (by the consumer, a consumer group or an
+     * iterator).
+     */
+    public Histogram getDecompressTime() {
+	return decompress;
+    }
+
+    public Meter getEnqueued() {
+	return enqueued;
+    }
+
+    public Meter getDequeued() {
+	return dequeued;
+    }
+
+    /**
+     * Bytes of the entries written to the segments (the memory buffer is not
+     * counted).
+     */
+    public Meter getBytesIn() {
+	return bytesIn;
+    }
+
+    /**
+     * Bytes of the entries read back from the segments by the consumer.
+     */
+    public Meter getBytesOut() {
+	return bytesOut;
+    }
+
+    /**
+     * Removed entries the consumer skipped over.
+     */
+    public long getTombstonesSkipped() {
+	return tombstonesSkipped.get();
+    }
+
+    /**
+     * Raw bytes of the elements written in blocks.
+     */
+    public Meter getUncompressedBytes() {
+	return uncompressedBytes;
+    }
+
+    /**
+     * Bytes of the blocks the elements were deflated into.
+     */
+    public Meter getCompressedBytes() {
+	return compressedBytes;
+    }
+
+    /**
+     * Raw bytes per deflated byte of the blocks, 0 if nothing was
+     * compressed.
+     */
+    public double getCompressionRatio() {
+	long compressed = compressedBytes.getCount();
+	return compressed == 0 ? 0 : (double) uncompressedBytes.getCount()
+		/ compressed;
+    }
+
+    /**
+     * Total time spent deflating the blocks.
+     */
+    public long getCompressNanos() {
+	return compressNanos.get();
+    }
+
+    /**
+     * Total time spent inflating the blocks.
+     */
+    public long getDecompressNanos() {
+	return decompressNanos.get();
+    }
+}
@@ -19,7 +19,9 @@ public interface QueueSerializer<T> {
     public T deserialize(byte[] bytes);
 
     /**
-     * Calculate serialized size of object without actually serializing.
+     * Calculate serialized size of object without actually serializing. The
+     * queue uses the length of the serialized byte[] instead, see
+     * {@link DirectQueueSerializer} to avoid the byte[] altogether.
      */
     public long serializedSize(T t);
 }
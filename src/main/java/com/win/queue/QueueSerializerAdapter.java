@@ -0,0 +1,32 @@
+package com.win.queue;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Adapts a {@link QueueSerializer} to the {@link DirectQueueSerializer} used by
+ * the segments, the serialized byte[] is copied into the segment.
+ * 
+ * @author Vijay Parthasarathy
+ */
+class QueueSerializerAdapter<T> implements DirectQueueSerializer<T> {
+    private final QueueSerializer<T> serializer;
+
+    QueueSerializerAdapter(QueueSerializer<T> serializer) {
+	this.serializer = serializer;
+    }
+
+    public int serialize(T t, ByteBuffer buffer) {
+	byte[] bytes = serializer.serialize(t);
+	if (bytes.length > buffer.remaining())
+	    throw new BufferOverflowException();
+	buffer.put(bytes);
+	return bytes.length;
+    }
+
+    public T deserialize(ByteBuffer buffer) {
+	byte[] bytes = new byte[buffer.remaining()];
+	buffer.get(bytes);
+	return serializer.deserialize(bytes);
+    }
+}
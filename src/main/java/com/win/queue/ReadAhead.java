@@ -0,0 +1,159 @@
+package com.win.queue;
+
+import java.io.IOError;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Background thread which faults in the pages ahead of the consumer, up to
+ * the read ahead depth, so that a consumer reaching a segment which is no
+ * longer in the page cache doesn't take the page faults on the take() path.
+ * Near the end of the consumer's segment it continues into the next one.
+ * <p>
+ * A read is counted as a hit if it was within the prefetched range and as a
+ * miss otherwise. A segment which was recycled or discarded since the consumer
+ * published it is skipped.
+ * 
+ * @author Vijay Parthasarathy
+ */
+class ReadAhead<E> implements Runnable {
+    private static final Logger logger = Logger.getLogger(ReadAhead.class
+	    .getName());
+    private final long depth;
+    private final Thread thread;
+    private volatile boolean running = true;
+    private boolean requested;
+
+    // published by the consumer.
+    private volatile Segment<E> segment;
+    private volatile int generation; // of the segment when published.
+    private volatile long position;
+
+    // prefetched so far, from the start of the segments.
+    private volatile Segment<E> prefetched;
+    private volatile long prefetchedUpTo;
+    private volatile Segment<E> nextPrefetched;
+    private volatile long nextPrefetchedUpTo;
+
+    private volatile long hits;
+    private volatile long misses;
+    private int sink; // keeps the reads from being optimized away.
+
+    ReadAhead(long depth) {
+	this.depth = depth;
+	this.thread = new Thread(this, "ReadAhead");
+	thread.setDaemon(true);
+	thread.start();
+    }
+
+    /**
+     * Called by the consumer after reading up to the position, wakes up the
+     * thread if less than half of the depth is prefetched ahead of it.
+     */
+    void advanced(Segment<E> segment, long position) {
+	if (segment == prefetched ? position <= prefetchedUpTo
+		: segment == nextPrefetched && position <= nextPrefetchedUpTo)
+	    hits++;
+	else
+	    misses++;
+	this.position = position;
+	this.generation = segment.getGeneration();
+	this.segment = segment;
+	long upTo = segment == prefetched ? prefetchedUpTo : position;
+	if (upTo - position < depth / 2
+		&& (upTo < segment.position() || segment.next() != null))
+	    wakeup();
+    }
+
+    public void run() {
+	while (running) {
+	    try {
+		synchronized (this) {
+		    while (!requested && running)
+			wait();
+		    requested = false;
+		}
+		if (running)
+		    prefetch();
+	    } catch (InterruptedException e) {
+		return;
+	    } catch (RuntimeException e) {
+		logger.log(Level.WARNING, "Read ahead failed", e);
+	    } catch (IOError e) {
+		// a segment closed after it was retained.
+		logger.log(Level.WARNING, "Read ahead failed", e);
+	    }
+	}
+    }
+
+    private void prefetch() {
+	Segment<E> current = segment;
+	long from = position;
+	// recycled since, the consumer has moved on.
+	if (current.getGeneration() != generation)
+	    return;
+	if (current != prefetched) {
+	    if (current == nextPrefetched) {
+		prefetchedUpTo = nextPrefetchedUpTo;
+	    } else {
+		prefetchedUpTo = from;
+	    }
+	    prefetched = current;
+	    nextPrefetched = null;
+	}
+	long target = from + depth;
+	prefetchedUpTo = prefetch(current, Math.max(prefetchedUpTo, from),
+		target);
+	Segment<E> next = current.next();
+	// the end of the segment is final once there is a next one.
+	if (next != null && target > current.position()) {
+	    if (next != nextPrefetched) {
+		nextPrefetchedUpTo = Segment.HEADER_SIZE;
+		nextPrefetched = next;
+	    }
+	    nextPrefetchedUpTo = prefetch(next, nextPrefetchedUpTo,
+		    Segment.HEADER_SIZE + target - current.position());
+	}
+    }
+
+    /**
+     * @return end of the prefetched range.
+     */
+    private long prefetch(Segment<E> segment, long from, long to) {
+	if (!segment.tryRetain())
+	    return from; // discarded.
+	try {
+	    segment.map();
+	    to = Math.min(to, segment.position());
+	    if (to <= from)
+		return from;
+	    sink += segment.prefetch(from, to);
+	    return to;
+	} finally {
+	    segment.release();
+	}
+    }
+
+    private synchronized void wakeup() {
+	requested = true;
+	notify();
+    }
+
+    long getHits() {
+	return hits;
+    }
+
+    long getMisses() {
+	return misses;
+    }
+
+    void close() {
+	running = false;
+	thread.interrupt();
+	try {
+	    thread.join();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+    }
+}
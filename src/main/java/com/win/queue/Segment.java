@@ -1,52 +1,360 @@
 package com.win.queue;
 
 import java.io.File;
-import java.io.IOError;
-import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
 
 /**
  * Segment of the file system which is buffered.
+ * <p>
+ * Every segment starts with a fixed header which holds the sequence of the
+ * segment (used to order the segments on recovery) and the read position of
+ * the consumer, followed by the entries. An entry is [int length][flag][int
+ * CRC32 of the payload][payload], the checksums are verified when an existing
+ * segment is opened. The segments written before the checksums (version 2)
+ * are read as they are, without one, until they are recycled.
+ * <p>
+ * A segment larger than 2 GB is mapped as multiple windows (see
+ * {@link SegmentStorage}) and the positions are long offsets into the file. An
+ * entry never spans two windows, when it doesn't fit in the rest of a window
+ * a window end marker is written and the entry goes to the next window.
+ * <p>
+ * A segment can be unmapped while nobody is using it and mapped again on
+ * demand. The consumer, the producer and the iterators {@link #retain()} the
+ * segments they read or write and {@link #map()} them before touching the
+ * data, a retained segment is never unmapped.
+ * <p>
+ * The bytes of the removed (tombstoned) entries are accounted, a segment
+ * nobody retains can be {@link #compact()}ed into a file holding only the
+ * live entries.
+ * <p>
+ * The producers append concurrently (see {@link #write(ByteBuffer)}): each one
+ * reserves the range of its entry by a CAS on the reservation cursor, copies
+ * its entry in parallel with the others and publishes it in the reservation
+ * order, so the readers only ever see complete entries. A segment is sealed
+ * before the producers move to the next one, no reservation is taken until it
+ * is activated again.
+ * <p>
+ * A block entry holds a batch of elements deflated together (see
+ * {@link Compression}), a reader's position is then the entry and the index
+ * of the element in it. The block is inflated once per reader thread and its
+ * elements are served from the heap.
+ * <p>
+ * A segment of fixed size records (see
+ * {@link FileBackedBlockingQueue.Builder#recordSize(int)}) drops the length:
+ * a record is [flag][int CRC32][payload] and the n-th one is at a computed
+ * offset, the records fill every window from its start and the slot after
+ * the last one is flagged empty.
  * 
  * @author Vijay Parthasarathy
  */
 public class Segment<E> {
     private static final int END_OF_SEGMENT_MARKER = -1;
-    static final int ENTRY_OVERHEAD_SIZE = 4 + 1;
+    private static final int END_OF_WINDOW_MARKER = -2;
+    private static final long SEALED = Long.MIN_VALUE;
+    // yields of a producer waiting for the ones ahead before it parks.
+    private static final int PUBLISH_SPINS = 64;
+    private static final long PUBLISH_PARK_NANOS = TimeUnit.MICROSECONDS
+	    .toNanos(10);
+    private static final byte REMOVED = -1;
+    private static final byte BLOCK = 1;
+    private static final byte REMOVED_BLOCK = -2;
+    private static final byte EMPTY = 2; // the slot after the last record.
+    static final int ENTRY_OVERHEAD_SIZE = 4 + 1 + 4;
+    private static final int CHECKSUM_OFFSET = 4 + 1;
+    static final int RECORD_OVERHEAD_SIZE = 1 + 4;
+
+    private static final int PAGE_SIZE = 4096;
+    private static final int MAGIC = 0x46424251; // FBBQ
+    private static final int VERSION = 3;
+    private static final int UNCHECKED_VERSION = 2; // no checksums.
+    private static final int SEQUENCE_OFFSET = 8;
+    private static final int READ_POSITION_OFFSET = 16;
+    private static final int READ_INDEX_OFFSET = 24;
+    private static final int RECORD_SIZE_OFFSET = 28;
+    static final int HEADER_SIZE = 32;
+    // the block inflated last by the thread.
+    private static final ThreadLocal<Block> blocks = new ThreadLocal<Block>() {
+	protected Block initialValue() {
+	    return new Block();
+	}
+    };
+    private static final ThreadLocal<CRC32> checksums = new ThreadLocal<CRC32>() {
+	protected CRC32 initialValue() {
+	    return new CRC32();
+	}
+    };
 
-    private final File logFile;
-    private final RandomAccessFile logFileAccessor;
-    private final MappedByteBuffer buffer;
-    private final QueueSerializer<E> serializer;
-    protected volatile boolean referenced = false;
+    private File logFile;
+    private SegmentStorage storage;
+    private final StorageEngine engine;
+    private boolean checked; // the entries carry a checksum.
+    private int overhead; // of an entry, with or without the checksum.
+    private int recordSize; // of the fixed size records, 0 if none.
+    private int stride; // of a fixed size record, with the overhead.
+    private int flagOffset; // in an entry, after the length if there is one.
+    private final int newRecordSize; // once the segment is recycled.
+    private volatile long length;
+    private final DirectQueueSerializer<E> serializer;
+    private final QueueMetrics metrics;
+    private ByteBuffer[] readViews;
+    private ThreadLocal<ByteBuffer[]> writers; // of the current mapping.
+    private int references;
+    private boolean closed;
+    private boolean compacting;
+    private long deadBytes;
+    private BloomFilter<Integer> keys;
+    private boolean indexed; // false for a segment recovered with data.
+    private volatile Segment<E> next;
+    // bumped when the entries are rewritten, invalidates the inflated blocks.
+    private volatile int generation;
 
-    private int readPosition;
+    private long readPosition;
+    private int readIndex; // in the block at the read position.
+    private volatile long writePosition;
+    // end of the reserved entries, the sign bit is set while sealed.
+    private final AtomicLong reserved = new AtomicLong(SEALED);
+    private int liveEntries;
+    private long readBytes; // by the consumer, since the last drain.
+    private long skipped;
 
-    protected Segment(File directory, long size, QueueSerializer<E> serializer) {
-	this(directory, "Segment-" + System.nanoTime() + ".db", size,
-		serializer);
+    protected Segment(File directory, long size, DirectQueueSerializer<E> serializer) {
+	this(directory, size, SegmentStorage.DEFAULT_WINDOW_SIZE,
+		StorageEngine.MMAP, 0, serializer, new QueueMetrics(false));
     }
 
-    private Segment(File directory, String fileName, long length,
-	    QueueSerializer<E> serializer) {
-	try {
-	    if (length > Integer.MAX_VALUE)
-		throw new IllegalArgumentException(
-			"size > Integer.Max is not supported.");
-	    this.serializer = serializer;
-	    this.logFile = new File(directory, fileName);
-	    logFileAccessor = new RandomAccessFile(logFile, "rw");
-	    logFileAccessor.setLength(length);
+    /**
+     * @param recordSize
+     *            size of the fixed size records, 0 for length prefixed
+     *            entries.
+     */
+    protected Segment(File directory, long size, int windowSize,
+	    StorageEngine engine, int recordSize,
+	    DirectQueueSerializer<E> serializer, QueueMetrics metrics) {
+	this(newFile(directory), size, windowSize, engine, recordSize,
+		serializer, metrics, false);
+    }
+
+    /**
+     * Opens the segment file left behind by an earlier instance of the queue,
+     * its entries are read as they were written. The record size applies
+     * once it is recycled.
+     */
+    protected Segment(File file, int windowSize, StorageEngine engine,
+	    int recordSize, DirectQueueSerializer<E> serializer,
+	    QueueMetrics metrics) {
+	this(file, file.length(), windowSize, engine, recordSize, serializer,
+		metrics, true);
+    }
+
+    private Segment(File file, long length, int windowSize,
+	    StorageEngine engine, int recordSize,
+	    DirectQueueSerializer<E> serializer, QueueMetrics metrics,
+	    boolean existing) {
+	if (length < HEADER_SIZE + 4)
+	    throw new IllegalArgumentException("size < header size.");
+	if (windowSize < HEADER_SIZE + ENTRY_OVERHEAD_SIZE + 4)
+	    throw new IllegalArgumentException("window size < header size.");
+	this.serializer = serializer;
+	this.metrics = metrics;
+	this.engine = engine;
+	this.newRecordSize = recordSize;
+	this.logFile = file;
+	this.storage = engine.open(file, length, windowSize, existing);
+	this.length = length;
+	map();
+	if (existing && isValid()) {
+	    int version = storage.getInt(4);
+	    setLayout(version,
+		    version == VERSION ? storage.getInt(RECORD_SIZE_OFFSET) : 0);
+	    scan();
+	} else {
+	    storage.putInt(0, MAGIC);
+	    recycle();
+	}
+    }
+
+    private static File newFile(File directory) {
+	return new File(directory, "Segment-" + System.nanoTime() + ".db");
+    }
+
+    /**
+     * Maps the segment if it is not mapped already.
+     */
+    synchronized void map() {
+	if (storage.isMapped())
+	    return;
+	storage.map();
+	readViews = storage.newViews();
+	final SegmentStorage mapped = storage;
+	writers = new ThreadLocal<ByteBuffer[]>() {
+	    protected ByteBuffer[] initialValue() {
+		return mapped.newWriters();
+	    }
+	};
+    }
+
+    /**
+     * Releases the mapping right away, unless the segment is retained. The
+     * dirty pages are left to the OS (or the next {@link #force()}).
+     * 
+     * @return true if the segment was unmapped by this call.
+     */
+    synchronized boolean unmap() {
+	if (!storage.isMapped() || references > 0 || compacting)
+	    return false;
+	readViews = null;
+	writers = null;
+	storage.unmap();
+	return true;
+    }
+
+    synchronized boolean isMapped() {
+	return storage.isMapped();
+    }
+
+    /**
+     * Pins the segment, it will not be unmapped until it is released.
+     */
+    synchronized void retain() {
+	awaitCompaction();
+	references++;
+    }
 
-	    buffer = logFileAccessor.getChannel().map(
-		    FileChannel.MapMode.READ_WRITE, 0, length);
-	    buffer.putInt(END_OF_SEGMENT_MARKER);
-	} catch (IOException e) {
-	    throw new IOError(e);
+    /**
+     * Pins the segment unless it is closed, i.e. discarded after it was
+     * retired or compacted away.
+     * 
+     * @return false if the segment is closed.
+     */
+    synchronized boolean tryRetain() {
+	awaitCompaction();
+	if (closed)
+	    return false;
+	references++;
+	return true;
+    }
+
+    /**
+     * @return number of references left.
+     */
+    synchronized int release() {
+	return --references;
+    }
+
+    synchronized boolean isReferenced() {
+	return references > 0;
+    }
+
+    private boolean isValid() {
+	int version = storage.getInt(4);
+	return storage.getInt(0) == MAGIC
+		&& (version == VERSION || version == UNCHECKED_VERSION);
+    }
+
+    private void setLayout(int version, int recordSize) {
+	checked = version == VERSION;
+	this.recordSize = Math.max(0, recordSize);
+	if (this.recordSize > 0) {
+	    overhead = RECORD_OVERHEAD_SIZE;
+	    flagOffset = 0;
+	} else {
+	    overhead = checked ? ENTRY_OVERHEAD_SIZE : CHECKSUM_OFFSET;
+	    flagOffset = 4;
 	}
+	stride = overhead + this.recordSize;
+    }
+
+    /**
+     * Walks the entries to find the end of the written data, the payloads are
+     * checksummed (read sequentially, never deserialized) but not the
+     * flag and the bitmap of a block which change as the elements are
+     * removed. A truncated, garbled or torn entry ends the segment at that
+     * point, the entries after it are dropped.
+     */
+    private void scan() {
+	readPosition = storage.getLong(READ_POSITION_OFFSET);
+	readIndex = storage.getInt(READ_INDEX_OFFSET);
+	if (readPosition < HEADER_SIZE || readPosition > storage.length()) {
+	    readPosition = HEADER_SIZE;
+	    readIndex = 0;
+	}
+	long position = recordSize > 0 ? scanRecords() : scanEntries();
+	if (readPosition > position) {
+	    readPosition = position;
+	    readIndex = 0;
+	}
+	if (readIndex != 0
+		&& (readPosition == position || readIndex < 0 || readIndex >= elements(readPosition)))
+	    readIndex = 0;
+	writePosition = position;
+	reserved.set(position);
+	mark(position);
+    }
+
+    /**
+     * @return the end of the length prefixed entries.
+     */
+    private long scanEntries() {
+	// from the start, the consumer groups can be behind the consumer.
+	long position = HEADER_SIZE;
+	while (position + 4 <= storage.windowEnd(position)) {
+	    int size = storage.getInt(position);
+	    if (size == END_OF_WINDOW_MARKER
+		    && storage.windowEnd(position) < storage.length()) {
+		position = storage.windowEnd(position);
+		continue;
+	    }
+	    // every entry is followed by at least the space of a marker.
+	    if (size < 0
+		    || position + overhead + size + 4 > storage
+			    .windowEnd(position))
+		break;
+	    if (checked
+		    && checksum(storage.read(readViews, position + overhead,
+			    size), isBlock(position)) != storage.getInt(position
+			    + CHECKSUM_OFFSET))
+		break;
+	    byte flag = storage.get(position + 4);
+	    if (flag < 0)
+		deadBytes += overhead + size;
+	    else if (position >= readPosition)
+		liveEntries += flag == BLOCK ? liveElements(position,
+			position == readPosition ? readIndex : 0) : 1;
+	    position += overhead + size;
+	}
+	return position;
+    }
+
+    /**
+     * @return the end of the fixed size records, the empty slot after the
+     *         last one or the first one which fails its checksum.
+     */
+    private long scanRecords() {
+	long position = HEADER_SIZE;
+	long entry;
+	while ((entry = entryAt(position)) + stride <= storage.windowEnd(entry)) {
+	    byte flag = storage.get(entry);
+	    if ((flag != 0 && flag != REMOVED)
+		    || checksum(storage.read(readViews, entry + overhead,
+			    recordSize), false) != storage.getInt(entry + 1))
+		break;
+	    if (flag < 0)
+		deadBytes += stride;
+	    else if (entry >= readPosition)
+		liveEntries++;
+	    position = entry + stride;
+	}
+	return position;
     }
 
     void discard() {
@@ -54,92 +362,786 @@ public class Segment<E> {
 	logFile.delete();
     }
 
-    Segment<E> recycle() {
-	buffer.position(0);
-	buffer.putInt(END_OF_SEGMENT_MARKER);
-	buffer.position(0);
-	buffer.force();
-	readPosition = 0;
+    synchronized Segment<E> recycle() {
+	awaitCompaction();
+	map();
+	storage.putInt(4, VERSION);
+	storage.putInt(RECORD_SIZE_OFFSET, newRecordSize);
+	setLayout(VERSION, newRecordSize);
+	mark(HEADER_SIZE);
+	writePosition = HEADER_SIZE;
+	reserved.set(HEADER_SIZE | (reserved.get() & SEALED)); // until activated.
+	readPosition = HEADER_SIZE;
+	readIndex = 0;
+	deadBytes = 0;
+	keys = null;
+	indexed = true;
+	next = null;
+	generation++;
+	storage.putInt(READ_INDEX_OFFSET, readIndex);
+	storage.putLong(READ_POSITION_OFFSET, readPosition);
+	storage.force();
 	return this;
     }
 
-    boolean hasCapacityFor(E element) {
-	return (serializer.serializedSize(element) + ENTRY_OVERHEAD_SIZE) <= buffer
-		.remaining();
+    /**
+     * Rewrites the live entries into a new file sized for them, which
+     * replaces the segment's file. Only a segment nobody retains and the
+     * consumer hasn't started reading can be compacted, the ones retaining it
+     * meanwhile wait for the copy to finish while {@link #unmap()} leaves it
+     * alone. The header of the new file is written once its entries are
+     * forced, a crash before that leaves an invalid file which is reused as an
+     * empty segment on recovery.
+     * 
+     * @return false if the segment is in use.
+     */
+    boolean compact() {
+	synchronized (this) {
+	    if (references > 0 || closed || compacting
+		    || readPosition != HEADER_SIZE || readIndex != 0)
+		return false;
+	    map();
+	    compacting = true;
+	}
+	SegmentStorage target = null;
+	try {
+	    long window = storage.windowSize();
+	    int marker = recordSize > 0 ? 0 : 4;
+	    long end = HEADER_SIZE;
+	    long entry = HEADER_SIZE;
+	    while ((entry = entryAt(entry)) < position()) {
+		if (!isDeleted(entry))
+		    end = place(end, entrySize(entry), window, marker)
+			    + entrySize(entry);
+		entry = nextPosition(entry);
+	    }
+
+	    File file = newFile(logFile.getParentFile());
+	    target = engine.open(file, end + 4, storage.windowSize(), false);
+	    target.map();
+	    ByteBuffer[] targetWriters = target.newWriters();
+	    long position = HEADER_SIZE;
+	    int live = 0;
+	    entry = HEADER_SIZE;
+	    while ((entry = entryAt(entry)) < position()) {
+		if (!isDeleted(entry)) {
+		    int size = entrySize(entry);
+		    long next = place(position, size, window, marker);
+		    if (next != position && marker > 0)
+			target.putInt(position, END_OF_WINDOW_MARKER);
+		    target.write(targetWriters, next,
+			    storage.read(readViews, entry, size));
+		    position = next + size;
+		    live++;
+		}
+		entry = nextPosition(entry);
+	    }
+	    // the file ends before the slot after the last record.
+	    if (recordSize == 0)
+		target.putInt(position, END_OF_SEGMENT_MARKER);
+	    target.putLong(READ_POSITION_OFFSET, HEADER_SIZE);
+	    target.force();
+	    target.putLong(SEQUENCE_OFFSET, storage.getLong(SEQUENCE_OFFSET));
+	    target.putInt(RECORD_SIZE_OFFSET, recordSize);
+	    target.putInt(4, checked ? VERSION : UNCHECKED_VERSION);
+	    target.putInt(0, MAGIC);
+	    target.force();
+
+	    synchronized (this) {
+		storage.close();
+		logFile.delete();
+		storage = target;
+		logFile = file;
+		length = target.length();
+		readViews = target.newViews();
+		final SegmentStorage mapped = target;
+		writers = new ThreadLocal<ByteBuffer[]>() {
+		    protected ByteBuffer[] initialValue() {
+			return mapped.newWriters();
+		    }
+		};
+		readPosition = HEADER_SIZE;
+		writePosition = position;
+		reserved.set(position | SEALED);
+		generation++;
+		liveEntries = live;
+		deadBytes = 0;
+		target = null;
+	    }
+	    return true;
+	} finally {
+	    synchronized (this) {
+		if (target != null)
+		    target.close();
+		compacting = false;
+		notifyAll();
+	    }
+	}
     }
 
-    void add(E element) {
-	byte[] serializedRow = serializer.serialize(element);
-	buffer.position(position());
-	buffer.putInt(serializedRow.length);
-	buffer.put((byte) 0);
-	buffer.put(serializedRow);
-	if (buffer.remaining() >= 4)
-	    buffer.putInt(END_OF_SEGMENT_MARKER);
+    /**
+     * Bumped every time the segment is recycled or compacted.
+     */
+    int getGeneration() {
+	return generation;
+    }
+
+    /**
+     * Segment written after this one, null for the current segment.
+     */
+    Segment<E> next() {
+	return next;
+    }
+
+    void link(Segment<E> next) {
+	this.next = next;
+    }
+
+    /**
+     * Where an entry of the size goes at or after the position, it moves to
+     * the next window unless it fits with the space for a marker of the
+     * size after it.
+     */
+    private static long place(long position, int size, long window,
+	    int marker) {
+	long windowEnd = (position / window + 1) * window;
+	return position + size + marker > windowEnd ? windowEnd : position;
+    }
+
+    private void awaitCompaction() {
+	boolean interrupted = false;
+	while (compacting) {
+	    try {
+		wait();
+	    } catch (InterruptedException e) {
+		interrupted = true;
+	    }
+	}
+	if (interrupted)
+	    Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Writes to every page of the segment so that the producer doesn't take
+     * the page faults (and the block allocation) while appending.
+     */
+    synchronized void touch() {
+	map();
+	for (long i = HEADER_SIZE + PAGE_SIZE; i < storage.length(); i += PAGE_SIZE)
+	    storage.put(i, (byte) 0);
+    }
+
+    /**
+     * Reads a byte of every page in the range so that the pages are faulted
+     * in by the caller, the segment should be retained and mapped.
+     * 
+     * @return sum of the bytes read.
+     */
+    int prefetch(long from, long to) {
+	int sum = 0;
+	for (long i = from - from % PAGE_SIZE; i < to; i += PAGE_SIZE)
+	    sum += storage.get(i);
+	return sum;
+    }
+
+    /**
+     * Stamps the segment with the sequence, segments are replayed in the
+     * sequence order on recovery.
+     */
+    synchronized void activate(long sequence) {
+	map();
+	storage.putLong(SEQUENCE_OFFSET, sequence);
+	reserved.set(writePosition);
+    }
+
+    /**
+     * Stops the reservations and waits for the reserved entries to be
+     * published, the end of the segment is final after that.
+     */
+    void seal() {
+	long end;
+	do {
+	    end = reserved.get();
+	} while (end >= 0 && !reserved.compareAndSet(end, end | SEALED));
+	end &= ~SEALED;
+	awaitPublished(end);
+	storage.flush();
+    }
+
+    /**
+     * True if an entry of the size fits in an empty segment.
+     */
+    boolean fits(int size) {
+	return HEADER_SIZE + overhead + size + (recordSize > 0 ? 0 : 4) <= storage
+		.windowEnd(HEADER_SIZE);
+    }
+
+    synchronized long getSequence() {
+	map();
+	return storage.getLong(SEQUENCE_OFFSET);
+    }
+
+    /**
+     * Number of the live entries found while opening an existing segment.
+     */
+    int getRecoveredEntries() {
+	return liveEntries;
+    }
+
+    /**
+     * Appends the element and makes it visible to the readers.
+     * 
+     * @return number of bytes written to the segment or -1 if the segment
+     *         doesn't have space for the element.
+     */
+    int add(E element) {
+	int written = append(element);
+	if (written >= 0)
+	    commit();
+	return written;
+    }
+
+    /**
+     * Serializes the element straight into the segment after the previously
+     * appended entries, it is not visible to the readers until
+     * {@link #commit()}. Should be called by one writer at a time, while no
+     * producer is in {@link #write(ByteBuffer)}.
+     * 
+     * @return number of bytes written to the segment or -1 if the segment
+     *         doesn't have space for the element.
+     */
+    int append(E element) {
+	return append(element, null);
+    }
+
+    /**
+     * Appends a block entry (see {@link Compression#compress(ByteBuffer, int)})
+     * after the previously appended entries, same as {@link #append(Object)}.
+     * The block is left as is.
+     * 
+     * @return number of bytes written to the segment or -1 if the segment
+     *         doesn't have space for the block.
+     */
+    int appendBlock(ByteBuffer block) {
+	return append(null, block);
+    }
+
+    private int append(E element, ByteBuffer block) {
+	long position = reserved.get();
+	if (position < 0)
+	    return -1; // sealed.
+	int written = append(element, block, position);
+	if (written < 0) {
+	    // retry at the start of the next window, if there is one.
+	    long next = storage.windowEnd(position);
+	    if (next == storage.length() || storage.offset(position) == 0
+		    || (written = append(element, block, next)) < 0)
+		return -1;
+	    if (recordSize == 0)
+		storage.putInt(position, END_OF_WINDOW_MARKER);
+	    position = next;
+	}
+	reserved.set(position + written);
+	return written;
+    }
+
+    /**
+     * Appends the serialized element (the remaining bytes of the payload)
+     * concurrently with the other producers, the entry is published to the
+     * readers once the entries reserved before it are. The payload is left
+     * as is if there is no space.
+     * 
+     * @return number of bytes written to the segment or -1 if the segment
+     *         doesn't have space for the element or is sealed.
+     * @throws IllegalArgumentException
+     *             if the segment holds fixed size records of another size.
+     */
+    int write(ByteBuffer payload) {
+	if (recordSize > 0 && payload.remaining() != recordSize)
+	    throw new IllegalArgumentException("Element of " + payload.remaining()
+		    + " bytes instead of the record size " + recordSize);
+	int size = overhead + payload.remaining();
+	int marker = recordSize > 0 ? 0 : 4;
+	long start;
+	long entry;
+	do {
+	    start = reserved.get();
+	    if (start < 0)
+		return -1;
+	    entry = start;
+	    // leave space for the end marker.
+	    if (entry + size + marker > storage.windowEnd(entry)) {
+		entry = storage.windowEnd(start);
+		if (entry == storage.length()
+			|| entry + size + marker > storage.windowEnd(entry))
+		    return -1;
+	    }
+	} while (!reserved.compareAndSet(start, entry + size));
+	if (recordSize == 0)
+	    storage.put(entry + flagOffset, (byte) 0);
+	if (checked) {
+	    // while the payload is in the cache, before it is copied.
+	    int mark = payload.position();
+	    storage.putInt(entry + flagOffset + 1, checksum(payload, false));
+	    payload.position(mark);
+	}
+	storage.write(writers.get(), entry + overhead, payload);
+
+	// publish in the reservation order, the length (the flag of a record)
+	// goes last as it overwrites the end marker written by the previous
+	// entry.
+	awaitPublished(start);
+	if (entry != start && recordSize == 0)
+	    storage.putInt(start, END_OF_WINDOW_MARKER);
+	mark(entry + size);
+	if (recordSize > 0)
+	    storage.put(entry, (byte) 0);
+	else
+	    storage.putInt(entry, size - overhead);
+	writePosition = entry + size;
+	return size;
+    }
+
+    /**
+     * Waits until the entries reserved before the position are published, the
+     * producers ahead are usually copying their payloads so it yields for a
+     * while and then parks.
+     */
+    private void awaitPublished(long position) {
+	for (int spins = 0; writePosition != position; spins++) {
+	    if (spins < PUBLISH_SPINS)
+		Thread.yield();
+	    else
+		LockSupport.parkNanos(PUBLISH_PARK_NANOS);
+	}
+    }
+
+    /**
+     * Writes the end marker at the position, the empty flag in the slot of
+     * the next record if there is one.
+     */
+    private void mark(long position) {
+	if (recordSize > 0) {
+	    position = entryAt(position);
+	    if (position + stride <= storage.windowEnd(position))
+		storage.put(position, EMPTY);
+	} else if (position + 4 <= storage.windowEnd(position))
+	    storage.putInt(position, END_OF_SEGMENT_MARKER);
+    }
+
+    /**
+     * Writes the entry of the element, or of the block if the element is
+     * null, at the position. It should fit in the position's window with the
+     * space for the end marker left after it.
+     */
+    private int append(E element, ByteBuffer block, long position) {
+	// leave space for the end marker.
+	long end = storage.windowEnd(position) - (recordSize > 0 ? 0 : 4);
+	if (position + overhead + recordSize > end)
+	    return -1;
+	int capacity = 0;
+	while (true) {
+	    ByteBuffer writer = storage.appender(position, end, capacity);
+	    int offset = writer.position();
+	    int start = offset + overhead;
+	    int size = 0;
+	    boolean overflow = start > writer.limit();
+	    if (!overflow) {
+		writer.position(start);
+		try {
+		    if (element != null) {
+			size = serializer.serialize(element, writer);
+		    } else {
+			size = block.remaining();
+			writer.put(block.duplicate());
+		    }
+		} catch (BufferOverflowException e) {
+		    overflow = true;
+		}
+	    }
+	    if (overflow) {
+		if (writer.limit() - offset >= end - position)
+		    return -1;
+		// the appender is shorter than the rest of the window.
+		capacity = Math.max(PAGE_SIZE, 2 * (writer.limit() - offset));
+		continue;
+	    }
+	    if (size != writer.position() - start)
+		throw new IllegalStateException("Serializer reported " + size
+			+ " bytes but wrote " + (writer.position() - start));
+	    if (recordSize > 0 && size != recordSize)
+		throw new IllegalArgumentException("Element of " + size
+			+ " bytes instead of the record size " + recordSize);
+	    if (recordSize == 0)
+		writer.putInt(offset, size);
+	    writer.put(offset + flagOffset, element != null ? 0 : BLOCK);
+	    if (checked) {
+		// the serialized bytes are still in the cache.
+		writer.limit(writer.position());
+		writer.position(start);
+		writer.putInt(offset + flagOffset + 1,
+			checksum(writer, element == null));
+	    }
+	    storage.appended(position, overhead + size);
+	    return overhead + size;
+	}
+    }
+
+    /**
+     * Adds the hash of an appended element's key to the segment's bloom
+     * filter.
+     */
+    synchronized void index(int keyHash) {
+	if (keys == null)
+	    keys = BloomFilter.create(Funnels.integerFunnel(),
+		    (int) Math.max(1024, Math.min(length / 128, Integer.MAX_VALUE)),
+		    0.03);
+	keys.put(keyHash);
+    }
+
+    /**
+     * False if none of the elements in the segment has a key with the hash, a
+     * recovered segment's keys are not known. Compaction keeps the filter as
+     * is, it still covers the live entries.
+     */
+    synchronized boolean mightContain(int keyHash) {
+	return !indexed || (keys != null && keys.mightContain(keyHash));
+    }
+
+    /**
+     * Writes the end marker once after the appended entries and publishes
+     * them to the readers.
+     */
+    void commit() {
+	long position = reserved.get() & ~SEALED;
+	mark(position);
+	writePosition = position;
+    }
+
+    /**
+     * Forces the content of the segment to the disk, an unmapped segment's
+     * dirty pages are forced through the file.
+     */
+    synchronized void force() {
+	if (closed)
+	    return;
+	storage.force();
     }
 
     E read() {
-	while (readPosition < position()) {
-	    SegmentEntry<E> entry = readInternal(readPosition);
-	    readPosition += (ENTRY_OVERHEAD_SIZE + entry.size);
-	    if (entry.markDeleted)
+	long entry;
+	while ((entry = entryAt(readPosition)) < position()) {
+	    int index = readIndex;
+	    advance(entry);
+	    storage.putInt(READ_INDEX_OFFSET, readIndex);
+	    storage.putLong(READ_POSITION_OFFSET, readPosition);
+	    if (index == 0 && !isDeleted(entry))
+		readBytes += entrySize(entry);
+	    if (isDeleted(entry, index)) {
+		skipped++;
 		continue;
-	    return entry.element;
+	    }
+	    return read(readViews, entry, index);
 	}
 	return null;
     }
 
-    E readWithoutSeek() {
-	while (readPosition < position()) {
-	    SegmentEntry<E> entry = readInternal(readPosition);
-	    if (entry.markDeleted)
+    /**
+     * Moves the consumer past the element at the read index of the entry,
+     * to the next entry after the last element. Under the monitor, so that a
+     * concurrent {@link #remove(long, int)} either happens before (and the
+     * element is skipped) or sees it taken.
+     */
+    private synchronized void advance(long entry) {
+	if (++readIndex < elements(entry)) {
+	    readPosition = entry;
+	} else {
+	    readPosition = nextPosition(entry);
+	    readIndex = 0;
+	}
+    }
+
+    /**
+     * Reads up to max consecutive live entries into the collection, the read
+     * position is persisted once for the whole run.
+     * 
+     * @return number of elements read.
+     */
+    int read(int max, Collection<? super E> elements) {
+	int n = 0;
+	long entry;
+	while (n < max && (entry = entryAt(readPosition)) < position()) {
+	    int index = readIndex;
+	    advance(entry);
+	    if (index == 0 && !isDeleted(entry))
+		readBytes += entrySize(entry);
+	    if (isDeleted(entry, index)) {
+		skipped++;
 		continue;
-	    return entry.element;
+	    }
+	    elements.add(read(readViews, entry, index));
+	    n++;
+	}
+	storage.putInt(READ_INDEX_OFFSET, readIndex);
+	storage.putLong(READ_POSITION_OFFSET, readPosition);
+	return n;
+    }
+
+    /**
+     * Bytes of the entries the consumer read since the last call. Should be
+     * called by the consumer.
+     */
+    long drainReadBytes() {
+	long bytes = readBytes;
+	readBytes = 0;
+	return bytes;
+    }
+
+    /**
+     * Number of removed entries the consumer skipped since the last call.
+     */
+    long drainSkipped() {
+	long n = skipped;
+	skipped = 0;
+	return n;
+    }
+
+    E readWithoutSeek() {
+	long position = readPosition;
+	int index = readIndex;
+	long entry;
+	while ((entry = entryAt(position)) < position()) {
+	    for (int count = elements(entry); index < count; index++)
+		if (!isDeleted(entry, index))
+		    return read(readViews, entry, index);
+	    position = nextPosition(entry);
+	    index = 0;
+	}
+	return null;
+    }
+
+    /**
+     * Number of the live elements from the index of the entry at the
+     * position. Arithmetic for the fixed size records unless some were
+     * removed, the entries are walked otherwise.
+     */
+    long count(long position, int index) {
+	long end = position();
+	if (recordSize > 0 && getDeadBytes() == 0)
+	    return Math.max(0, recordIndex(end) - recordIndex(entryAt(position)));
+	long n = 0;
+	long entry;
+	while ((entry = entryAt(position)) < end) {
+	    n += liveElements(entry, index);
+	    position = nextPosition(entry);
+	    index = 0;
+	}
+	return n;
+    }
+
+    /**
+     * Deserializes the n-th (0 based) live element from the index of the
+     * entry at the position, see {@link #count(long, int)}.
+     *
+     * @return null if the segment holds fewer elements.
+     */
+    E get(ByteBuffer[] views, long position, int index, long n) {
+	long end = position();
+	if (recordSize > 0 && getDeadBytes() == 0) {
+	    long record = recordIndex(entryAt(position)) + n;
+	    return record < recordIndex(end) ? read(views,
+		    recordPosition(record), 0) : null;
+	}
+	long entry;
+	while ((entry = entryAt(position)) < end) {
+	    for (int count = elements(entry); index < count; index++)
+		if (!isDeleted(entry, index) && n-- == 0)
+		    return read(views, entry, index);
+	    position = nextPosition(entry);
+	    index = 0;
 	}
 	return null;
     }
 
-    SegmentEntry<E> readInternal(int position) {
-	ByteBuffer dupe = buffer.duplicate();
-	dupe.position(position);
-	int size = dupe.getInt();
-	if (size == END_OF_SEGMENT_MARKER)
-	    return null;
-	byte b = dupe.get();
-	if (b == 0) {
-	    byte[] buffer = new byte[size];
-	    dupe.get(buffer);
-	    return new SegmentEntry<E>(this, size, false,
-		    serializer.deserialize(buffer));
+    /**
+     * Number of the fixed size records before the position, the position of
+     * a record or of the end of the records in a window.
+     */
+    private long recordIndex(long position) {
+	long window = storage.windowSize();
+	long first = (storage.windowEnd(HEADER_SIZE) - HEADER_SIZE) / stride;
+	if (position < window)
+	    return Math.min(first, (position - HEADER_SIZE) / stride);
+	long offset = position - window;
+	long perWindow = window / stride;
+	return first + offset / window * perWindow
+		+ Math.min(perWindow, offset % window / stride);
+    }
+
+    /**
+     * Position of the fixed size record at the index, the records fill the
+     * first window after the header and the others from their start.
+     */
+    private long recordPosition(long index) {
+	long window = storage.windowSize();
+	long first = (storage.windowEnd(HEADER_SIZE) - HEADER_SIZE) / stride;
+	if (index < first)
+	    return HEADER_SIZE + index * stride;
+	index -= first;
+	long perWindow = window / stride;
+	return window + index / perWindow * window + index % perWindow
+		* stride;
+    }
+
+    /**
+     * Position of the entry at the specified position, skips to the next
+     * window if the window ends there.
+     */
+    long entryAt(long position) {
+	if (recordSize > 0) {
+	    long windowEnd = storage.windowEnd(position);
+	    return position + stride > windowEnd ? windowEnd : position;
+	}
+	if (position < position()
+		&& storage.getInt(position) == END_OF_WINDOW_MARKER)
+	    return storage.windowEnd(position);
+	return position;
+    }
+
+    /**
+     * Position of the entry following the one at the specified position, the
+     * entry's payload is not touched.
+     */
+    long nextPosition(long position) {
+	return position + entrySize(position);
+    }
+
+    private int entrySize(long position) {
+	return overhead + payloadSize(position);
+    }
+
+    private int payloadSize(long position) {
+	return recordSize > 0 ? recordSize : storage.getInt(position);
+    }
+
+    /**
+     * True if the entry is removed, i.e. all the elements of a block.
+     */
+    boolean isDeleted(long position) {
+	return storage.get(position + flagOffset) < 0;
+    }
+
+    /**
+     * True if the element at the index of the entry is removed.
+     */
+    boolean isDeleted(long position, int index) {
+	byte flag = storage.get(position + flagOffset);
+	if (flag != BLOCK)
+	    return flag < 0;
+	return (storage.get(bitmapPosition(position, index)) & 1 << (index & 7)) != 0;
+    }
+
+    /**
+     * Number of the elements in the entry, 1 unless it is a block.
+     */
+    int elements(long position) {
+	if (!isBlock(position))
+	    return 1;
+	return storage.getInt(position + overhead);
+    }
+
+    private int liveElements(long position, int from) {
+	int live = 0;
+	for (int i = Math.max(0, from), count = elements(position); i < count; i++)
+	    if (!isDeleted(position, i))
+		live++;
+	return live;
+    }
+
+    /**
+     * CRC32 of the remaining bytes of the payload, the buffer is consumed. The
+     * bitmap of a block is left out.
+     */
+    private static int checksum(ByteBuffer payload, boolean block) {
+	CRC32 checksum = checksums.get();
+	checksum.reset();
+	if (block && payload.remaining() >= Compression.BLOCK_HEADER_SIZE) {
+	    int limit = payload.limit();
+	    int bitmap = payload.position() + Compression.BLOCK_HEADER_SIZE;
+	    int count = payload.getInt(payload.position());
+	    payload.limit(bitmap);
+	    checksum.update(payload);
+	    payload.limit(limit);
+	    // a garbled count is caught by the checksum.
+	    payload.position((int) Math.max(bitmap, Math.min(limit,
+		    (long) bitmap + Compression.bitmapSize(count))));
 	}
-	return new SegmentEntry<E>(this, size, true, null);
+	checksum.update(payload);
+	return (int) checksum.getValue();
+    }
+
+    /**
+     * True if the entry is a block, removed or not (its removed elements can
+     * still be read by the readers which checked them before).
+     */
+    private boolean isBlock(long position) {
+	byte flag = storage.get(position + flagOffset);
+	return flag == BLOCK || flag == REMOVED_BLOCK;
     }
 
-    static class SegmentEntry<E> {
-	final int size;
-	final E element;
-	final boolean markDeleted;
-	final Segment<E> parent;
+    private long bitmapPosition(long position, int index) {
+	return position + overhead + Compression.BLOCK_HEADER_SIZE
+		+ (index >>> 3);
+    }
 
-	public SegmentEntry(Segment<E> parent, int size, boolean markDeleted,
-		E element) {
-	    this.parent = parent;
-	    this.size = size;
-	    this.element = element;
-	    this.markDeleted = markDeleted;
+    /**
+     * Read only views of the segment to be passed to
+     * {@link #read(ByteBuffer[], long)}, the consumer's views are reused by
+     * the segment while the iterators get their own.
+     */
+    ByteBuffer[] newViews() {
+	return storage.newViews();
+    }
+
+    /**
+     * Deserializes the element at the index of the entry at the position, the
+     * view is positioned on the payload (in the mapped region with the mmap
+     * engine, no copy into the heap). The element of a block is deserialized
+     * from the block inflated into the heap.
+     */
+    E read(ByteBuffer[] views, long position, int index) {
+	if (!isBlock(position))
+	    return serializer.deserialize(storage.read(views, position
+		    + overhead, payloadSize(position)));
+	Block block = blocks.get();
+	if (block.segment != this || block.generation != generation
+		|| block.position != position) {
+	    long start = System.nanoTime();
+	    block.inflate(storage.read(views, position + overhead,
+		    storage.getInt(position)));
+	    block.segment = this;
+	    block.generation = generation;
+	    block.position = position;
+	    metrics.decompressed(System.nanoTime() - start);
 	}
+	return serializer.deserialize(block.element(index));
     }
 
     String getName() {
 	return logFile.getName();
     }
 
-    void close() {
-	try {
-	    logFileAccessor.close();
-	} catch (IOException e) {
-	    throw new IOError(e);
-	}
+    File getDirectory() {
+	return logFile.getParentFile();
+    }
+
+    synchronized void close() {
+	if (closed)
+	    return;
+	closed = true;
+	references = 0;
+	readViews = null;
+	storage.close();
     }
 
     @Override
@@ -147,25 +1149,136 @@ public class Segment<E> {
 	return "Segment(" + getName() + ')';
     }
 
-    int position() {
-	return buffer.position() - 4;
+    long position() {
+	return writePosition;
     }
 
     boolean hasData() {
 	return hasData(readPosition);
     }
 
-    boolean hasData(int position) {
+    /**
+     * A window end marker is always followed by an entry in the next window,
+     * so the segment has data if the position is before the end.
+     */
+    boolean hasData(long position) {
 	return position < position();
     }
 
-    public int getReadPosition() {
+    public long getReadPosition() {
 	return readPosition;
     }
 
-    public void remove(int position) {
-	ByteBuffer dupe = buffer.duplicate();
-	dupe.position(position + 4);
-	dupe.put((byte) -1);
+    /**
+     * Index of the consumer's next element in the block at the read position,
+     * 0 unless the consumer is in the middle of a block.
+     */
+    public int getReadIndex() {
+	return readIndex;
+    }
+
+    public synchronized void remove(long position) {
+	remove(position, 0);
+    }
+
+    /**
+     * Removes the element at the index of the entry, a block's element is
+     * marked in its bitmap and the block is removed as a whole (its bytes
+     * are dead) once all of its elements are.
+     * 
+     * @return false if the element was already removed or taken by the
+     *         consumer.
+     */
+    public synchronized boolean remove(long position, int index) {
+	if (position < readPosition
+		|| (position == readPosition && index < readIndex))
+	    return false;
+	if (isDeleted(position, index))
+	    return false;
+	byte flag = REMOVED;
+	if (isBlock(position)) {
+	    long bits = bitmapPosition(position, index);
+	    storage.put(bits, (byte) (storage.get(bits) | 1 << (index & 7)));
+	    if (liveElements(position, 0) > 0)
+		return true;
+	    flag = REMOVED_BLOCK;
+	}
+	storage.put(position + flagOffset, flag);
+	deadBytes += entrySize(position);
+	return true;
+    }
+
+    /**
+     * Bytes of the removed entries which are still in the segment.
+     */
+    synchronized long getDeadBytes() {
+	return deadBytes;
+    }
+
+    /**
+     * Bytes of all the entries written to the segment, live or removed.
+     */
+    long getWrittenBytes() {
+	return position() - HEADER_SIZE;
+    }
+
+    /**
+     * Size of the segment file.
+     */
+    long length() {
+	return length;
+    }
+
+    /**
+     * Block inflated by a reader thread, the raw elements are served from the
+     * heap until the thread reads another block.
+     */
+    private static final class Block {
+	private final Inflater inflater = new Inflater();
+	private Segment<?> segment;
+	private int generation;
+	private long position;
+	private byte[] deflated = new byte[0];
+	private byte[] raw = new byte[0];
+	private int[] offsets = new int[0];
+	private ByteBuffer view = ByteBuffer.wrap(raw);
+
+	/**
+	 * Inflates the payload of a block entry.
+	 */
+	void inflate(ByteBuffer payload) {
+	    segment = null;
+	    int count = payload.getInt(payload.position());
+	    int rawLength = payload.getInt(payload.position() + 4);
+	    payload.position(payload.position() + Compression.BLOCK_HEADER_SIZE
+		    + Compression.bitmapSize(count));
+	    int length = payload.remaining();
+	    if (deflated.length < length)
+		deflated = new byte[length];
+	    payload.get(deflated, 0, length);
+	    if (raw.length < rawLength) {
+		raw = new byte[rawLength];
+		view = ByteBuffer.wrap(raw);
+	    }
+	    Compression.inflate(inflater, deflated, length, raw, rawLength);
+	    if (offsets.length < count)
+		offsets = new int[count];
+	    view.clear();
+	    for (int i = 0, offset = 0; i < count; i++) {
+		offsets[i] = offset;
+		offset += 4 + view.getInt(offset);
+	    }
+	}
+
+	/**
+	 * The view positioned on the raw payload of the element.
+	 */
+	ByteBuffer element(int index) {
+	    int offset = offsets[index];
+	    view.clear();
+	    view.limit(offset + 4 + view.getInt(offset));
+	    view.position(offset + 4);
+	    return view;
+	}
     }
 }
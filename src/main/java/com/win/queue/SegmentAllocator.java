@@ -0,0 +1,67 @@
+package com.win.queue;
+
+import java.io.IOError;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Background thread which keeps spare segments created, mapped and touched
+ * ahead of the producers, so that a roll over doesn't have to create the file
+ * while holding the write lock. It is woken up every time a spare is taken,
+ * a failed allocation (e.g. the disk is full) is logged and retried then.
+ * 
+ * @author Vijay Parthasarathy
+ */
+class SegmentAllocator implements Runnable {
+    private static final Logger logger = Logger
+	    .getLogger(SegmentAllocator.class.getName());
+    private final SegmentFactory<?> segments;
+    private final Thread thread;
+    private volatile boolean running = true;
+    private boolean requested = true;
+
+    SegmentAllocator(SegmentFactory<?> segments) {
+	this.segments = segments;
+	this.thread = new Thread(this, "SegmentAllocator");
+	thread.setDaemon(true);
+	thread.start();
+    }
+
+    public void run() {
+	while (running) {
+	    try {
+		synchronized (this) {
+		    while (!requested && running)
+			wait();
+		    requested = false;
+		}
+		while (running && segments.preallocate())
+		    ;
+	    } catch (InterruptedException e) {
+		return;
+	    } catch (RuntimeException e) {
+		logger.log(Level.WARNING, "Preallocation failed", e);
+	    } catch (IOError e) {
+		logger.log(Level.WARNING, "Preallocation failed", e);
+	    }
+	}
+    }
+
+    /**
+     * A spare segment was taken (or is needed), refill.
+     */
+    synchronized void wakeup() {
+	requested = true;
+	notify();
+    }
+
+    void close() {
+	running = false;
+	thread.interrupt();
+	try {
+	    thread.join();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+    }
+}
@@ -0,0 +1,59 @@
+package com.win.queue;
+
+/**
+ * Background thread which compacts the segments fragmented by the removed
+ * elements. It is woken up when a segment crosses the threshold and retries
+ * every second, a segment retained by an iterator or a consumer is left for a
+ * later pass.
+ * 
+ * @author Vijay Parthasarathy
+ */
+class SegmentCompactor implements Runnable {
+    private static final long INTERVAL_MILLIS = 1000;
+
+    private final SegmentFactory<?> segments;
+    private final Thread thread;
+    private volatile boolean running = true;
+    private boolean requested;
+
+    SegmentCompactor(SegmentFactory<?> segments) {
+	this.segments = segments;
+	this.thread = new Thread(this, "SegmentCompactor");
+	thread.setDaemon(true);
+	thread.start();
+    }
+
+    public void run() {
+	while (running) {
+	    try {
+		synchronized (this) {
+		    if (!requested && running)
+			wait(INTERVAL_MILLIS);
+		    requested = false;
+		}
+		if (running)
+		    segments.compact();
+	    } catch (InterruptedException e) {
+		return;
+	    }
+	}
+    }
+
+    /**
+     * A segment is fragmented enough to be compacted.
+     */
+    synchronized void wakeup() {
+	requested = true;
+	notify();
+    }
+
+    void close() {
+	running = false;
+	thread.interrupt();
+	try {
+	    thread.join();
+	} catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+    }
+}
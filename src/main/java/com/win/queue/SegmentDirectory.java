@@ -0,0 +1,44 @@
+package com.win.queue;
+
+import java.io.File;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Directory the segments are created in and the max size the segments in it
+ * can take.
+ *
+ * @author Vijay Parthasarathy
+ */
+class SegmentDirectory {
+    private final File directory;
+    private final long max;
+
+    SegmentDirectory(File directory, long max) {
+	this.directory = Preconditions.checkNotNull(directory);
+	this.max = max;
+    }
+
+    File getDirectory() {
+	return directory;
+    }
+
+    long getMax() {
+	return max;
+    }
+
+    boolean contains(Segment<?> segment) {
+	return directory.equals(segment.getDirectory());
+    }
+
+    /**
+     * Bytes which can still be taken by the segments in the directory.
+     */
+    long getFreeBytes(long reserved) {
+	return Math.min(max - reserved, directory.getUsableSpace());
+    }
+
+    public String toString() {
+	return directory.getPath();
+    }
+}
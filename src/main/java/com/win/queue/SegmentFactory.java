@@ -1,10 +1,22 @@
 package com.win.queue;
 
 import java.io.File;
+import java.io.FilenameFilter;
 import java.lang.management.ManagementFactory;
 import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.management.MBeanServer;
 import javax.management.ObjectName;
@@ -12,76 +24,714 @@ import javax.management.ObjectName;
 /**
  * Segment Factory which manages multiple chunks of the filesystem and reuses
  * them to avoid leaks.
+ * <p>
+ * The active segments are linked in the order they were written. The queue's
+ * consumer and every {@link ConsumerGroup} retain the segment they read, the
+ * oldest segments are recycled once all of them have moved past.
  * 
  * @author Vijay Parthasarathy
  */
 public class SegmentFactory<E> implements SegmentFactoryMBean {
     private static final String MBEAN_OBJECT_NAME = "com.win.queue:type=SegmentFactory,instance=";
-    private final long fs_max; // 40 GB
     private final long segmentSize; // 128 MB
 
     private final ConcurrentLinkedQueue<Segment<E>> activeSegments = new ConcurrentLinkedQueue<Segment<E>>();
     private final ConcurrentLinkedQueue<Segment<E>> inActiveSegments = new ConcurrentLinkedQueue<Segment<E>>();
-    private final File directory;
-    private final QueueSerializer<E> serializer;
+    private final List<SegmentDirectory> directories;
+    private final File directory; // keeps the consumer group cursors.
+    private final SegmentPlacement placement;
+    private final AtomicInteger nextDirectory = new AtomicInteger();
+    private final DirectQueueSerializer<E> serializer;
     private volatile Segment<E> currentSegment;
+    // the room in a directory is checked and taken under it.
+    private final Object allocationLock = new Object();
+    private volatile Segment<E> allocating; // spare being touched.
+    private ObjectName objectName;
+    private final int spares;
+    private final int maxMapped;
+    private final int windowSize;
+    private final StorageEngine engine;
+    private final int recordSize;
+    private final SegmentAllocator allocator;
+    private final double compactionThreshold;
+    private final SegmentCompactor compactor;
+    private final ReadAhead<E> readAhead;
+    private final QueueMetrics metrics;
+    private volatile int compactedSegments;
+    private volatile Segment<E> head; // retained for the consumer.
+    private final Map<String, ConsumerGroup<E>> groups = new ConcurrentHashMap<String, ConsumerGroup<E>>();
+    private final ReentrantLock groupLock = new ReentrantLock();
+    private final Condition groupNotEmpty = groupLock.newCondition();
+    private final AtomicInteger groupWaiters = new AtomicInteger();
+    private final ReentrantLock roomLock = new ReentrantLock();
+    private final Condition roomAvailable = roomLock.newCondition();
+    private final AtomicInteger roomWaiters = new AtomicInteger();
+    private volatile boolean closed; // wakes the producers waiting for room.
+    private long sequence;
+    private int recoveredEntries;
 
     public SegmentFactory(File directory, long segmentSize, long fsMax,
-	    QueueSerializer<E> serializer) {
+	    DirectQueueSerializer<E> serializer) {
+	this(Collections.singletonList(new SegmentDirectory(directory, fsMax)),
+		SegmentPlacement.ROUND_ROBIN, segmentSize, serializer, false, 0,
+		Integer.MAX_VALUE, SegmentStorage.DEFAULT_WINDOW_SIZE, StorageEngine.MMAP, 0, 0, 0,
+		new QueueMetrics(false));
+    }
+
+    /**
+     * @param directories
+     *            directories the segments are striped over (usually one per
+     *            disk), the first one keeps the consumer group cursors.
+     * @param placement
+     *            decides the directory of a new segment.
+     * @param spares
+     *            number of the inactive segments to be kept ready per
+     *            directory by a background thread, 0 to create them only
+     *            when needed.
+     * @param maxMapped
+     *            maximum number of segments mapped at a time, the segments
+     *            which are not in use are unmapped beyond that.
+     * @param windowSize
+     *            size of the windows the segments larger than that are mapped
+     *            as, a power of two.
+     * @param engine
+     *            how the segment files are read and written.
+     * @param recordSize
+     *            size of the fixed size records the new segments hold, 0 for
+     *            length prefixed entries.
+     * @param compactionThreshold
+     *            ratio of the removed bytes to the written bytes of a segment
+     *            beyond which it is compacted in the background, 0 to never
+     *            compact.
+     * @param readAhead
+     *            number of bytes to be faulted in ahead of the consumer by a
+     *            background thread, 0 to never read ahead.
+     * @param metrics
+     *            where the allocations, the consumer's reads and the
+     *            inflated blocks are recorded.
+     */
+    SegmentFactory(List<SegmentDirectory> directories,
+	    SegmentPlacement placement, long segmentSize,
+	    DirectQueueSerializer<E> serializer, boolean recover, int spares,
+	    int maxMapped, int windowSize, StorageEngine engine,
+	    int recordSize, double compactionThreshold, long readAhead,
+	    QueueMetrics metrics) {
 	MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
 	try {
-	    mbs.registerMBean(this, new ObjectName(MBEAN_OBJECT_NAME
-		    + hashCode()));
+	    objectName = new ObjectName(MBEAN_OBJECT_NAME + hashCode());
+	    mbs.registerMBean(this, objectName);
 	} catch (Exception e) {
 	    throw new RuntimeException(e);
 	}
 	this.segmentSize = segmentSize;
-	this.directory = directory;
+	this.directories = directories;
+	this.directory = directories.get(0).getDirectory();
+	this.placement = placement;
 	this.serializer = serializer;
-	this.fs_max = fsMax;
-	newSegment(); // create the first segment.
+	this.spares = spares;
+	this.maxMapped = maxMapped;
+	this.windowSize = windowSize;
+	this.engine = engine;
+	this.recordSize = recordSize;
+	this.compactionThreshold = compactionThreshold;
+	this.metrics = metrics;
+	Map<String, long[]> cursors = recover ? recover() : Collections
+		.<String, long[]> emptyMap();
+	if (currentSegment == null) {
+	    // create the first segment.
+	    if (newSegment() == null)
+		throw new IllegalArgumentException(
+			"Max fs size is too small for a segment.");
+	} else
+	    currentSegment.retain();
+	head = currentSegment;
+	for (Segment<E> segment : activeSegments) {
+	    if (segment.hasData()) {
+		head = segment;
+		break;
+	    }
+	}
+	head.retain();
+	head.map();
+	for (Map.Entry<String, long[]> cursor : cursors.entrySet())
+	    openGroup(cursor.getKey(), cursor.getValue());
+	trim();
+	evict();
+	allocator = spares > 0 ? new SegmentAllocator(this) : null;
+	compactor = compactionThreshold > 0 ? new SegmentCompactor(this) : null;
+	this.readAhead = readAhead > 0 ? new ReadAhead<E>(readAhead) : null;
+    }
+
+    /**
+     * Reopens the segments left behind in the directory, the ones with data
+     * not yet read by the consumer or a consumer group become active (in the
+     * order they were written) and the rest are reused as inactive segments.
+     * 
+     * @return cursors of the consumer groups by their name.
+     */
+    private Map<String, long[]> recover() {
+	Map<String, long[]> cursors = new HashMap<String, long[]>();
+	long subscribed = Long.MAX_VALUE;
+	File[] groupFiles = directory.listFiles(new FilenameFilter() {
+	    public boolean accept(File dir, String name) {
+		return ConsumerGroup.isCursor(name);
+	    }
+	});
+	if (groupFiles != null) {
+	    for (File file : groupFiles) {
+		long[] cursor = ConsumerGroup.readCursor(file);
+		cursors.put(ConsumerGroup.nameOf(file), cursor);
+		subscribed = Math.min(subscribed, cursor[0]);
+	    }
+	}
+	List<Segment<E>> recovered = new ArrayList<Segment<E>>();
+	for (SegmentDirectory segmentDirectory : directories) {
+	    File[] files = segmentDirectory.getDirectory().listFiles(
+		    new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+			    return name.startsWith("Segment-")
+				    && name.endsWith(".db");
+			}
+		    });
+	    if (files == null)
+		continue;
+	    for (File file : files)
+		recovered.add(new Segment<E>(file, windowSize, engine,
+			recordSize, serializer, metrics));
+	}
+	Collections.sort(recovered, new Comparator<Segment<E>>() {
+	    public int compare(Segment<E> o1, Segment<E> o2) {
+		long s1 = o1.getSequence(), s2 = o2.getSequence();
+		return s1 < s2 ? -1 : (s1 == s2 ? 0 : 1);
+	    }
+	});
+	for (Segment<E> segment : recovered) {
+	    boolean needed = segment.hasData()
+		    || (segment.getSequence() >= subscribed && segment
+			    .getWrittenBytes() > 0);
+	    if (needed && currentSegment != null
+		    && currentSegment.getSequence() == segment.getSequence()) {
+		// a compaction was interrupted, both hold the live entries.
+		segment.discard();
+		continue;
+	    }
+	    sequence = Math.max(sequence, segment.getSequence());
+	    if (needed) {
+		recoveredEntries += segment.getRecoveredEntries();
+		activeSegments.offer(segment);
+		if (currentSegment != null)
+		    currentSegment.link(segment);
+		currentSegment = segment;
+	    } else {
+		retire(segment);
+	    }
+	}
+	return cursors;
+    }
+
+    /**
+     * Opens the recovered group at its cursor, or at the oldest segment after
+     * it if the cursor's segment is gone.
+     */
+    private void openGroup(String name, long[] cursor) {
+	for (Segment<E> segment : activeSegments) {
+	    if (segment.getSequence() >= cursor[0] || segment == currentSegment) {
+		boolean same = segment.getSequence() == cursor[0];
+		groups.put(name, new ConsumerGroup<E>(this, directory, name,
+			segment, same ? cursor[1] : Segment.HEADER_SIZE,
+			same ? (int) cursor[2] : 0));
+		return;
+	    }
+	}
+    }
+
+    /**
+     * Returns the consumer group, a new group starts where the queue's
+     * consumer is. Should be called while the consumer is not reading.
+     */
+    synchronized ConsumerGroup<E> consumerGroup(String name) {
+	ConsumerGroup<E> group = groups.get(name);
+	if (group == null) {
+	    group = new ConsumerGroup<E>(this, directory, name, head,
+		    head.getReadPosition(), head.getReadIndex());
+	    groups.put(name, group);
+	}
+	return group;
+    }
+
+    /**
+     * Drops the group and its cursor, the segments it was holding back are
+     * recycled.
+     */
+    void removeConsumerGroup(String name) {
+	ConsumerGroup<E> group = groups.remove(name);
+	if (group != null) {
+	    group.close(true);
+	    trim();
+	    evict();
+	}
+    }
+
+    /**
+     * Waits for the data to be appended, the group is checked once more after
+     * registering as a waiter so that an append is never missed.
+     * 
+     * @return remaining nanos.
+     */
+    long awaitGroupData(ConsumerGroup<E> group, long nanos)
+	    throws InterruptedException {
+	groupLock.lockInterruptibly();
+	groupWaiters.incrementAndGet();
+	try {
+	    if (group.hasData())
+		return nanos;
+	    return groupNotEmpty.awaitNanos(nanos);
+	} finally {
+	    groupWaiters.decrementAndGet();
+	    groupLock.unlock();
+	}
+    }
+
+    /**
+     * Wakes up the consumer groups waiting for data, called by the producers
+     * after the append.
+     */
+    void signalGroups() {
+	if (groupWaiters.get() == 0)
+	    return;
+	groupLock.lock();
+	try {
+	    groupNotEmpty.signalAll();
+	} finally {
+	    groupLock.unlock();
+	}
+    }
+
+    /**
+     * Number of the live entries found in the segments during recovery.
+     */
+    public int getRecoveredEntries() {
+	return recoveredEntries;
     }
 
+    /**
+     * Makes a new segment the current one, in the directory chosen by the
+     * placement. A recycled segment in that directory is used if possible,
+     * the next directory is tried if it has neither a spare nor room.
+     * 
+     * @return null if the max fs size of every directory is reached and no
+     *         segment can be recycled, see {@link #awaitRoom(long)}.
+     */
     public Segment<E> newSegment() {
-	if (inActiveSegments.isEmpty() || inActiveSegments.poll().referenced) {
-	    if (getTotalReservedBytes() > fs_max)
-		throw new RuntimeException(
-			"Queue Overflow, Increase the Max fs size or remove the elements from the queue.");
-	    currentSegment = new Segment<E>(directory, segmentSize, serializer);
-	    activeSegments.offer(currentSegment);
+	for (Segment<E> spare : inActiveSegments)
+	    // compacted, retired while in use.
+	    if (spare.length() != segmentSize && !spare.isReferenced()
+		    && inActiveSegments.remove(spare))
+		spare.discard();
+	Segment<E> segment = null;
+	synchronized (allocationLock) {
+	    for (SegmentDirectory candidate : placementOrder()) {
+		// remove from the inactive and move it to active.
+		segment = takeSpare(candidate);
+		if (segment == null && hasRoom(candidate)) {
+		    long start = metrics.start();
+		    segment = new Segment<E>(candidate.getDirectory(),
+			    segmentSize, windowSize, engine, recordSize,
+			    serializer, metrics);
+		    metrics.stop(metrics.getAllocationTime(), start);
+		}
+		if (segment != null)
+		    break;
+	    }
+	    if (segment == null)
+		return null;
+	    segment.retain();
+	    segment.map();
+	    segment.activate(++sequence);
+	    Segment<E> previous = currentSegment;
+	    // linked before it is published as the current one.
+	    if (previous != null)
+		previous.link(segment);
+	    activeSegments.offer(segment);
+	    currentSegment = segment;
+	    if (previous != null)
+		previous.release();
+	}
+	if (allocator != null)
+	    allocator.wakeup();
+	evict();
+	return segment;
+    }
+
+    /**
+     * The directories in the order a new segment should try them.
+     */
+    private List<SegmentDirectory> placementOrder() {
+	int n = directories.size();
+	if (n == 1)
+	    return directories;
+	List<SegmentDirectory> order = new ArrayList<SegmentDirectory>(n);
+	if (placement == SegmentPlacement.ROUND_ROBIN) {
+	    int first = (nextDirectory.getAndIncrement() & Integer.MAX_VALUE) % n;
+	    for (int i = 0; i < n; i++)
+		order.add(directories.get((first + i) % n));
 	} else {
-	    // remove from the inactive and move it to active.
-	    currentSegment = inActiveSegments.poll();
-	    activeSegments.add(currentSegment);
+	    final Map<SegmentDirectory, Long> free = new HashMap<SegmentDirectory, Long>();
+	    for (SegmentDirectory candidate : directories)
+		free.put(candidate,
+			candidate.getFreeBytes(getReservedBytes(candidate)));
+	    order.addAll(directories);
+	    Collections.sort(order, new Comparator<SegmentDirectory>() {
+		public int compare(SegmentDirectory o1, SegmentDirectory o2) {
+		    return free.get(o2).compareTo(free.get(o1));
+		}
+	    });
+	}
+	return order;
+    }
+
+    /**
+     * Removes a recycled segment of the directory nobody is using from the
+     * inactive segments.
+     */
+    private Segment<E> takeSpare(SegmentDirectory candidate) {
+	for (Segment<E> spare : inActiveSegments)
+	    if (candidate.contains(spare) && isSpare(spare)
+		    && inActiveSegments.remove(spare))
+		return spare;
+	return null;
+    }
+
+    private boolean isSpare(Segment<E> segment) {
+	return segment.length() == segmentSize && !segment.isReferenced();
+    }
+
+    private boolean hasRoom(SegmentDirectory candidate) {
+	return getReservedBytes(candidate) <= candidate.getMax();
+    }
+
+    /**
+     * Creates, maps and touches a spare segment in the first directory which
+     * has fewer inactive segments than the configured spares and where the
+     * max fs size allows it. The room is taken under the lock
+     * {@link #newSegment()} checks it with, the segment is touched outside of
+     * it and is deleted if that fails.
+     * 
+     * @return false if there was nothing to do.
+     */
+    boolean preallocate() {
+	long start = metrics.start();
+	Segment<E> segment = null;
+	synchronized (allocationLock) {
+	    for (SegmentDirectory candidate : directories) {
+		int available = 0;
+		for (Segment<E> spare : inActiveSegments)
+		    if (candidate.contains(spare))
+			available++;
+		if (available >= spares
+			|| getReservedBytes(candidate) + segmentSize > candidate
+				.getMax())
+		    continue;
+		segment = new Segment<E>(candidate.getDirectory(),
+			segmentSize, windowSize, engine, recordSize,
+			serializer, metrics);
+		allocating = segment;
+		break;
+	    }
+	}
+	if (segment == null)
+	    return false;
+	boolean touched = false;
+	try {
+	    segment.touch();
+	    touched = true;
+	} finally {
+	    synchronized (allocationLock) {
+		allocating = null;
+		if (touched)
+		    inActiveSegments.offer(segment);
+	    }
+	    if (!touched)
+		segment.discard();
+	}
+	metrics.stop(metrics.getAllocationTime(), start);
+	return true;
+    }
+
+    /**
+     * True if a new segment can be made current, see {@link #newSegment()}.
+     */
+    boolean hasRoom() {
+	for (Segment<E> spare : inActiveSegments)
+	    if (isSpare(spare))
+		return true;
+	for (SegmentDirectory candidate : directories)
+	    if (hasRoom(candidate))
+		return true;
+	return false;
+    }
+
+    /**
+     * Waits up to nanos for a segment to be retired (or compacted) while
+     * there is no room for a new segment.
+     * 
+     * @return nanos left.
+     * @throws IllegalStateException
+     *             if the segments are closed meanwhile.
+     */
+    long awaitRoom(long nanos) throws InterruptedException {
+	roomLock.lockInterruptibly();
+	roomWaiters.incrementAndGet();
+	try {
+	    while (!closed && !hasRoom() && nanos > 0)
+		nanos = roomAvailable.awaitNanos(nanos);
+	    if (closed)
+		throw new IllegalStateException("Queue is closed");
+	    return nanos;
+	} finally {
+	    roomWaiters.decrementAndGet();
+	    roomLock.unlock();
+	}
+    }
+
+    private void signalRoom() {
+	if (roomWaiters.get() == 0)
+	    return;
+	roomLock.lock();
+	try {
+	    roomAvailable.signalAll();
+	} finally {
+	    roomLock.unlock();
 	}
-	return currentSegment;
     }
 
     public Segment<E> getCurrent() {
 	return currentSegment;
     }
 
+    /**
+     * Returns the consumer's segment, moves past the ones the consumer has
+     * read everything in (up to the current one).
+     */
     public Segment<E> next() {
-	Segment<E> segment = activeSegments.peek();
-	if (!segment.hasData() && activeSegments.size() > 1) {
-	    Segment<E> seg = activeSegments.poll();
-	    if (getTotalReservedBytes() > fs_max && !seg.referenced)
-		seg.discard();
-	    inActiveSegments.offer(seg.recycle());
+	Segment<E> segment = head;
+	// the segment's end is final once it is not the current one.
+	if (segment == currentSegment || segment.hasData())
+	    return segment;
+	while (segment != currentSegment && !segment.hasData())
+	    segment = segment.next();
+	segment.retain();
+	segment.map();
+	Segment<E> previous = head;
+	head = segment;
+	previous.release();
+	trim();
+	evict();
+	return head;
+    }
+
+    /**
+     * Called by the consumer after reading from the segment.
+     */
+    void consumed(Segment<E> segment) {
+	metrics.consumed(segment.drainReadBytes(), segment.drainSkipped());
+	if (readAhead != null)
+	    readAhead.advanced(segment, segment.getReadPosition());
+    }
+
+    DirectQueueSerializer<E> getSerializer() {
+	return serializer;
+    }
+
+    long getSegmentSize() {
+	return segmentSize;
+    }
+
+    QueueMetrics getMetrics() {
+	return metrics;
+    }
+
+    /**
+     * Bytes written to the segments which the consumer hasn't read yet
+     * (including the removed entries it is yet to skip).
+     */
+    long getLagBytes() {
+	long lag = 0;
+	Segment<E> segment = head;
+	for (; segment != null; segment = segment.next())
+	    lag += segment.position() - segment.getReadPosition();
+	return lag;
+    }
+
+    public long getReadAheadHits() {
+	return readAhead == null ? 0 : readAhead.getHits();
+    }
+
+    public long getReadAheadMisses() {
+	return readAhead == null ? 0 : readAhead.getMisses();
+    }
+
+    /**
+     * True if the consumer has read everything written to the segments.
+     */
+    boolean isEmpty() {
+	Segment<E> segment = head;
+	return segment == currentSegment && !segment.hasData();
+    }
+
+    /**
+     * Retires the oldest active segments which the consumer and all the
+     * consumer groups have moved past.
+     */
+    synchronized void trim() {
+	Segment<E> oldest;
+	boolean forced = false;
+	while ((oldest = activeSegments.peek()) != head && !isSubscribed(oldest)) {
+	    // the cursors which moved past it are durable before it is reused.
+	    if (!forced) {
+		forceGroups();
+		forced = true;
+	    }
+	    activeSegments.poll();
+	    retire(oldest);
 	}
-	return activeSegments.peek();
     }
 
+    /**
+     * Forces the cursors of the consumer groups to the disk.
+     */
+    void forceGroups() {
+	for (ConsumerGroup<E> group : groups.values())
+	    group.force();
+    }
+
+    private boolean isSubscribed(Segment<E> segment) {
+	for (ConsumerGroup<E> group : groups.values())
+	    if (group.getSegment() == segment)
+		return true;
+	return false;
+    }
+
+    /**
+     * Recycles the segment into the inactive segments, or deletes it if it is
+     * not of the segment size (compacted) or the max fs size of its directory
+     * is reached.
+     */
+    private void retire(Segment<E> segment) {
+	if (!segment.isReferenced()
+		&& (segment.length() != segmentSize || isFull(segment)))
+	    segment.discard();
+	else
+	    inActiveSegments.offer(segment.recycle());
+	signalRoom();
+    }
+
+    /**
+     * Wakes up the compactor if the segment, from which an element was just
+     * removed, is fragmented enough.
+     */
+    void removed(Segment<E> segment) {
+	if (compactor != null && isFragmented(segment))
+	    compactor.wakeup();
+    }
+
+    private boolean isFragmented(Segment<E> segment) {
+	long written = segment.getWrittenBytes();
+	return written > 0
+		&& segment.getDeadBytes() >= written * compactionThreshold;
+    }
+
+    /**
+     * Compacts the fragmented segments between the consumer's and the
+     * producer's, the ones in use are skipped.
+     */
+    void compact() {
+	boolean compacted = false;
+	for (Segment<E> segment : activeSegments) {
+	    if (segment == activeSegments.peek() || segment == currentSegment
+		    || !isFragmented(segment))
+		continue;
+	    if (segment.compact()) {
+		compactedSegments++;
+		compacted = true;
+	    }
+	}
+	if (compacted) {
+	    evict();
+	    signalRoom();
+	}
+    }
+
+    /**
+     * Unmaps the segments nobody is using until at most maxMapped segments are
+     * mapped. The inactive ones go first and then the active ones farthest
+     * from the consumer, they are mapped again when the consumer reaches
+     * them.
+     */
+    void evict() {
+	if (maxMapped == Integer.MAX_VALUE)
+	    return;
+	int mapped = getMappedSegments();
+	for (Iterator<Segment<E>> it = inActiveSegments.iterator(); mapped > maxMapped
+		&& it.hasNext();)
+	    if (it.next().unmap())
+		mapped--;
+	if (mapped <= maxMapped)
+	    return;
+	List<Segment<E>> backlog = new ArrayList<Segment<E>>(activeSegments);
+	for (int i = backlog.size() - 1; mapped > maxMapped && i >= 0; i--)
+	    if (backlog.get(i).unmap())
+		mapped--;
+    }
+
+    /**
+     * Retains the active segments from the consumer's, they should be
+     * released by the caller.
+     */
     public Queue<Segment<E>> cloneActive() {
 	ArrayDeque<Segment<E>> q = new ArrayDeque<Segment<E>>(
 		activeSegments.size());
-	for (Segment<E> segment : activeSegments) {
-	    segment.referenced = true;
+	for (Segment<E> segment = head; segment != null; segment = segment
+		.next()) {
+	    segment.retain();
 	    q.add(segment);
 	}
 	return q;
     }
 
+    public int getMappedSegments() {
+	int mapped = 0;
+	for (Segment<E> segment : activeSegments)
+	    if (segment.isMapped())
+		mapped++;
+	for (Segment<E> segment : inActiveSegments)
+	    if (segment.isMapped())
+		mapped++;
+	return mapped;
+    }
+
+    public long getLiveBytes() {
+	long live = 0;
+	for (Segment<E> segment : activeSegments)
+	    live += segment.getWrittenBytes() - segment.getDeadBytes();
+	return live;
+    }
+
+    public long getDeadBytes() {
+	long dead = 0;
+	for (Segment<E> segment : activeSegments)
+	    dead += segment.getDeadBytes();
+	return dead;
+    }
+
+    public int getCompactedSegments() {
+	return compactedSegments;
+    }
+
+    public int getConsumerGroups() {
+	return groups.size();
+    }
+
     public int getActiveSegments() {
 	return activeSegments.size();
     }
@@ -94,23 +744,113 @@ public class SegmentFactory<E> implements SegmentFactoryMBean {
 	return currentSegment.getName();
     }
 
+    private boolean isFull(Segment<E> segment) {
+	for (SegmentDirectory candidate : directories)
+	    if (candidate.contains(segment))
+		return getReservedBytes(candidate) > candidate.getMax();
+	return true;
+    }
+
+    /**
+     * Bytes taken by the active and the inactive segments in the directory.
+     */
+    long getReservedBytes(SegmentDirectory candidate) {
+	long reserved = 0;
+	for (Segment<E> segment : activeSegments)
+	    if (candidate.contains(segment))
+		reserved += segment.length();
+	for (Segment<E> segment : inActiveSegments)
+	    if (candidate.contains(segment))
+		reserved += segment.length();
+	Segment<E> spare = allocating;
+	if (spare != null && candidate.contains(spare))
+	    reserved += spare.length();
+	return reserved;
+    }
+
     public long getTotalReservedBytes() {
-	return (inActiveSegments.size() + activeSegments.size()) * segmentSize;
+	long reserved = 0;
+	for (Segment<E> segment : activeSegments)
+	    reserved += segment.length();
+	for (Segment<E> segment : inActiveSegments)
+	    reserved += segment.length();
+	Segment<E> spare = allocating;
+	if (spare != null)
+	    reserved += spare.length();
+	return reserved;
     }
 
+    /**
+     * Recycles all the segments, the consumer groups start over at the
+     * recycled current segment. Should be called while the producers and the
+     * consumer are locked out.
+     */
     public void clear() {
-	for (int i = 1; i < activeSegments.size(); i++)
-	    inActiveSegments.offer(activeSegments.peek().recycle());
-	currentSegment = currentSegment.recycle();
+	List<ConsumerGroup<E>> locked = new ArrayList<ConsumerGroup<E>>(
+		groups.values());
+	for (ConsumerGroup<E> group : locked)
+	    group.lock();
+	try {
+	    Segment<E> previous = head;
+	    currentSegment.retain();
+	    head = currentSegment;
+	    previous.release();
+	    for (ConsumerGroup<E> group : locked)
+		group.reset(currentSegment);
+	    Segment<E> segment;
+	    while ((segment = activeSegments.peek()) != currentSegment) {
+		activeSegments.poll();
+		retire(segment);
+	    }
+	    currentSegment = currentSegment.recycle();
+	} finally {
+	    for (ConsumerGroup<E> group : locked)
+		group.unlock();
+	}
+	evict();
+    }
+
+    /**
+     * Closes all the segments (the files are left behind for recovery) and
+     * unregisters the MBean.
+     */
+    public void close() {
+	roomLock.lock();
+	try {
+	    closed = true;
+	    roomAvailable.signalAll();
+	} finally {
+	    roomLock.unlock();
+	}
+	if (allocator != null)
+	    allocator.close();
+	if (compactor != null)
+	    compactor.close();
+	if (readAhead != null)
+	    readAhead.close();
+	try {
+	    ManagementFactory.getPlatformMBeanServer().unregisterMBean(
+		    objectName);
+	} catch (Exception e) {
+	    throw new RuntimeException(e);
+	}
+	for (ConsumerGroup<E> group : groups.values())
+	    group.close(false);
+	groups.clear();
+	head = null;
+	Segment<E> segment;
+	while ((segment = activeSegments.poll()) != null)
+	    segment.close();
+	while ((segment = inActiveSegments.poll()) != null)
+	    segment.close();
     }
 
     @Override
     public String toString() {
 	return String
 		.format("directory: %s, total space used: %d, inactive space: %d, active space: %d",
-			directory.getPath(), getTotalReservedBytes()
-				* segmentSize, getInActiveSegments()
-				* segmentSize, getActiveSegments()
-				* segmentSize);
+			directories, getTotalReservedBytes(),
+			getInActiveSegments() * segmentSize,
+			getActiveSegments() * segmentSize);
     }
 }
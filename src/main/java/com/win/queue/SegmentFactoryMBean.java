@@ -8,4 +8,18 @@ public interface SegmentFactoryMBean {
     public long getTotalReservedBytes();
 
     public String getCurrentSegmentName();
+
+    public int getMappedSegments();
+
+    public long getLiveBytes();
+
+    public long getDeadBytes();
+
+    public int getCompactedSegments();
+
+    public int getConsumerGroups();
+
+    public long getReadAheadHits();
+
+    public long getReadAheadMisses();
 }
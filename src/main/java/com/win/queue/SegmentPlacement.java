@@ -0,0 +1,22 @@
+package com.win.queue;
+
+/**
+ * Decides which of the queue's directories a new segment goes to, when the
+ * segments are striped over several directories (usually one per disk).
+ *
+ * @author Vijay Parthasarathy
+ */
+public enum SegmentPlacement {
+    /**
+     * The directories take turns, consecutive segments are on different disks
+     * so the producer and a consumer a segment or more behind it use
+     * different devices (Default).
+     */
+    ROUND_ROBIN,
+
+    /**
+     * The directory with the most free space, the smaller of what is left of
+     * its max size and the usable space of its file system.
+     */
+    FREE_SPACE
+}
@@ -0,0 +1,158 @@
+package com.win.queue;
+
+import java.io.File;
+import java.io.IOError;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Storage of a segment file, the positions are long offsets into the file.
+ * The file is split into windows of up to windowSize bytes and the callers
+ * make sure that nothing they read or write spans two windows.
+ * <p>
+ * A storage is "mapped" while its segment is in use, the engines keep their
+ * mappings or buffers only while mapped. See {@link StorageEngine} for the
+ * engines.
+ *
+ * @author Vijay Parthasarathy
+ */
+abstract class SegmentStorage {
+    static final int DEFAULT_WINDOW_SIZE = 1 << 30; // 1 G
+
+    protected final RandomAccessFile file;
+    private final long length;
+    private final int shift;
+    private final long mask;
+    private final int windowSize;
+
+    /**
+     * @param windowSize
+     *            power of two, the file is a single window if it is not larger
+     *            than that.
+     */
+    SegmentStorage(File logFile, long length, int windowSize, boolean existing) {
+	Preconditions.checkArgument(Integer.bitCount(windowSize) == 1,
+		"window size should be a power of two");
+	try {
+	    this.file = new RandomAccessFile(logFile, "rw");
+	    if (!existing)
+		file.setLength(length);
+	} catch (IOException e) {
+	    throw new IOError(e);
+	}
+	this.length = length;
+	this.windowSize = windowSize;
+	this.shift = Integer.numberOfTrailingZeros(windowSize);
+	this.mask = windowSize - 1;
+    }
+
+    long length() {
+	return length;
+    }
+
+    int windowSize() {
+	return windowSize;
+    }
+
+    protected int index(long position) {
+	return (int) (position >>> shift);
+    }
+
+    protected int windows() {
+	return (int) ((length + windowSize - 1) >>> shift);
+    }
+
+    /**
+     * Offset of the position within its window.
+     */
+    int offset(long position) {
+	return (int) (position & mask);
+    }
+
+    /**
+     * End (exclusive) of the window which holds the position.
+     */
+    long windowEnd(long position) {
+	return Math.min(((long) index(position) + 1) << shift, length);
+    }
+
+    abstract boolean isMapped();
+
+    abstract void map();
+
+    abstract void unmap();
+
+    abstract int getInt(long position);
+
+    abstract void putInt(long position, int value);
+
+    abstract long getLong(long position);
+
+    abstract void putLong(long position, long value);
+
+    abstract byte get(long position);
+
+    abstract void put(long position, byte value);
+
+    /**
+     * Views of a reader of its own, to be passed to
+     * {@link #read(ByteBuffer[], long, int)}.
+     */
+    abstract ByteBuffer[] newViews();
+
+    /**
+     * Buffer positioned on the size bytes at the position, valid until the
+     * reader's next read.
+     */
+    abstract ByteBuffer read(ByteBuffer[] views, long position, int size);
+
+    /**
+     * Buffers of a writer of its own, to be passed to
+     * {@link #write(ByteBuffer[], long, ByteBuffer)}.
+     */
+    abstract ByteBuffer[] newWriters();
+
+    /**
+     * Writes the remaining bytes of the source at the position, concurrently
+     * with the other writers of other ranges.
+     */
+    abstract void write(ByteBuffer[] writers, long position, ByteBuffer source);
+
+    /**
+     * Buffer for the single writer to put the bytes from the position on into,
+     * starting at the buffer's position. Its limit is at the end (in the
+     * position's window) or earlier, a larger one can be asked for with the
+     * capacity. The bytes are stored by {@link #appended(long, int)}.
+     */
+    abstract ByteBuffer appender(long position, long end, int capacity);
+
+    /**
+     * The length bytes from the position were put into the
+     * {@link #appender(long, long, int)}.
+     */
+    void appended(long position, int length) {
+    }
+
+    /**
+     * Writes the buffered bytes (if any) to the file, they are not forced.
+     */
+    void flush() {
+    }
+
+    /**
+     * Writes the buffered bytes and forces them to the disk.
+     */
+    abstract void force();
+
+    void close() {
+	unmap();
+	try {
+	    file.close();
+	} catch (IOException e) {
+	    throw new IOError(e);
+	}
+    }
+}
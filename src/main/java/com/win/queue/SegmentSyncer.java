@@ -0,0 +1,184 @@
+package com.win.queue;
+
+import java.io.IOError;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.win.queue.DurabilityPolicy.Mode;
+
+/**
+ * Forces the written segments to the disk as per the {@link DurabilityPolicy},
+ * along with the cursors of the consumer groups.
+ * <p>
+ * Every append is given a ticket (the total bytes written so far), a force
+ * makes every ticket issued before it durable. Only one force runs at a time,
+ * the callers who arrive while it is running wait for it and the next one
+ * (if still needed) covers all of them.
+ *
+ * @author Vijay Parthasarathy
+ */
+class SegmentSyncer<E> {
+    private static final Logger logger = Logger
+	    .getLogger(SegmentSyncer.class.getName());
+    private final SegmentFactory<E> segments;
+    private final DurabilityPolicy policy;
+    private final AtomicLong written = new AtomicLong();
+    private final ConcurrentLinkedQueue<Segment<E>> dirty = new ConcurrentLinkedQueue<Segment<E>>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition flushed = lock.newCondition();
+    private final ScheduledExecutorService flusher;
+    private volatile long synced;
+    private boolean flushing;
+
+    SegmentSyncer(SegmentFactory<E> segments, DurabilityPolicy policy) {
+	this.segments = segments;
+	this.policy = policy;
+	if (policy.getMode() == Mode.PERIODIC) {
+	    flusher = Executors
+		    .newSingleThreadScheduledExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+			    Thread thread = new Thread(r, "SegmentSyncer");
+			    thread.setDaemon(true);
+			    return thread;
+			}
+		    });
+	    flusher.scheduleWithFixedDelay(new Runnable() {
+		public void run() {
+		    try {
+			sync(written.get());
+		    } catch (RuntimeException e) {
+			logger.log(Level.WARNING, "Periodic sync failed", e);
+		    } catch (IOError e) {
+			logger.log(Level.WARNING, "Periodic sync failed", e);
+		    }
+		}
+	    }, policy.getValue(), policy.getValue(), TimeUnit.NANOSECONDS);
+	} else {
+	    flusher = null;
+	}
+    }
+
+    /**
+     * Records the bytes appended to a segment, called by the producers
+     * concurrently (the ones appending in parallel hold only the appenders
+     * lock) once the bytes are written, so a ticket covers at least the
+     * producer's own bytes, not the ones of the others in flight.
+     *
+     * @return ticket to be passed to {@link #afterAppend(long)}
+     */
+    long appended(long bytes) {
+	return written.addAndGet(bytes);
+    }
+
+    /**
+     * The segment is no longer the current one, it will be forced by the
+     * next sync.
+     */
+    void rolled(Segment<E> segment) {
+	if (policy.getMode() != Mode.NONE)
+	    dirty.offer(segment);
+    }
+
+    /**
+     * Called after releasing the write lock, blocks until the ticket is
+     * durable if the policy requires it.
+     */
+    void afterAppend(long ticket) {
+	switch (policy.getMode()) {
+	case SYNC_ON_PUT:
+	    sync(ticket);
+	    break;
+	case EVERY_N_BYTES:
+	    if (ticket - synced >= policy.getValue())
+		sync(ticket);
+	    break;
+	default:
+	    break;
+	}
+    }
+
+    /**
+     * Waits until everything up to the ticket is forced to the disk, either
+     * by running the force or by piggybacking on the one in progress.
+     */
+    void sync(long ticket) {
+	if (synced >= ticket)
+	    return;
+	lock.lock();
+	try {
+	    while (synced < ticket) {
+		if (flushing) {
+		    flushed.awaitUninterruptibly();
+		    continue;
+		}
+		flushing = true;
+		long target = written.get();
+		boolean success = false;
+		lock.unlock();
+		try {
+		    force();
+		    success = true;
+		} finally {
+		    lock.lock();
+		    flushing = false;
+		    if (success && target > synced)
+			synced = target;
+		    flushed.signalAll();
+		}
+	    }
+	} finally {
+	    lock.unlock();
+	}
+    }
+
+    /**
+     * The current segment is read before the rolled ones are taken, a
+     * segment rolled after that is offered to them before the new current
+     * one is made, i.e. only the bytes written after the target was taken
+     * can be in a segment this force misses.
+     */
+    private void force() {
+	QueueMetrics metrics = segments.getMetrics();
+	long start = metrics.start();
+	Segment<E> current = segments.getCurrent();
+	Segment<E> segment;
+	while ((segment = dirty.poll()) != null)
+	    force(segment);
+	force(current);
+	segments.forceGroups();
+	metrics.stop(metrics.getSyncTime(), start);
+    }
+
+    @VisibleForTesting
+    void force(Segment<E> segment) {
+	segment.force();
+    }
+
+    long getSynced() {
+	return synced;
+    }
+
+    long getWritten() {
+	return written.get();
+    }
+
+    /**
+     * Stops the background flusher and forces what is left, unless the policy
+     * is {@link DurabilityPolicy#NONE}.
+     */
+    void close() {
+	if (flusher != null)
+	    flusher.shutdownNow();
+	if (policy.getMode() != Mode.NONE)
+	    sync(written.get());
+    }
+}
@@ -0,0 +1,356 @@
+package com.win.queue;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.AbstractQueue;
+import java.util.Collection;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+
+/**
+ * Blocking queue striped over independent {@link FileBackedBlockingQueue}
+ * shards, each with its own segments and locks (and directory, which can be
+ * on its own disk). The producers go to the shards round robin, or by the
+ * hash of the element's key if there is a shard key, in which case the
+ * elements with equal keys are taken in the order they were offered.
+ * <p>
+ * Every consumer thread has a home shard and steals from the other shards
+ * when its home is empty. The elements are counted by a semaphore, a
+ * consumer takes a permit before it looks for an element so it never waits on
+ * a shard while there are elements in the others. The order across the
+ * shards is not defined.
+ *
+ * @author Vijay Parthasarathy
+ */
+public class ShardedFileBackedBlockingQueue<E> extends AbstractQueue<E>
+	implements BlockingQueue<E>, Closeable {
+    // fruitless rounds over the shards before a claim backs off.
+    private static final int SPINS = 64;
+    private static final long BACKOFF_NANOS = TimeUnit.MICROSECONDS
+	    .toNanos(100);
+    private final FileBackedBlockingQueue<E>[] shards;
+    private final Function<? super E, ?> shardKey;
+    private final Semaphore available;
+    private final AtomicInteger nextShard = new AtomicInteger();
+    private final AtomicInteger nextHome = new AtomicInteger();
+    private final AtomicLong steals = new AtomicLong();
+    private final ThreadLocal<Integer> home = new ThreadLocal<Integer>() {
+	protected Integer initialValue() {
+	    return (nextHome.getAndIncrement() & Integer.MAX_VALUE)
+		    % shards.length;
+	}
+    };
+
+    @SuppressWarnings("unchecked")
+    private ShardedFileBackedBlockingQueue(Builder<E> builder) {
+	shards = (FileBackedBlockingQueue<E>[]) new FileBackedBlockingQueue<?>[builder
+		.shards];
+	int elements = 0;
+	for (int i = 0; i < shards.length; i++) {
+	    shards[i] = builder.queue.shard(builder.directory, "shard-" + i)
+		    .build();
+	    elements += shards[i].size();
+	}
+	shardKey = builder.shardKey;
+	available = new Semaphore(elements);
+    }
+
+    public static class Builder<E> {
+	private File directory;
+	private int shards = Runtime.getRuntime().availableProcessors();
+	private FileBackedBlockingQueue.Builder<E> queue;
+	private Function<? super E, ?> shardKey;
+
+	/**
+	 * Directory where the shards reside, every shard gets a directory
+	 * (shard-n) under it, which can be a link to another disk.
+	 */
+	public Builder<E> directory(File directory) {
+	    this.directory = directory;
+	    return this;
+	}
+
+	/**
+	 * Number of shards (Default: number of processors), should be the same
+	 * when the shards are recovered.
+	 */
+	public Builder<E> shards(int shards) {
+	    Preconditions.checkArgument(shards > 0, "shards should be > 0");
+	    this.shards = shards;
+	    return this;
+	}
+
+	/**
+	 * Builder every shard is built with (serializer, segment size,
+	 * recovery...), a copy of it per shard with the shard's directory.
+	 * The striped directories of the builder (see
+	 * {@link FileBackedBlockingQueue.Builder#directory(File, long)}) get a
+	 * shard-n directory per shard as well.
+	 */
+	public Builder<E> queue(FileBackedBlockingQueue.Builder<E> queue) {
+	    this.queue = Preconditions.checkNotNull(queue);
+	    return this;
+	}
+
+	/**
+	 * Places the elements by the hash of their key instead of round robin,
+	 * the elements with equal keys go to the same shard and are taken in
+	 * the order they were offered.
+	 */
+	public Builder<E> shardKey(Function<? super E, ?> shardKey) {
+	    this.shardKey = Preconditions.checkNotNull(shardKey);
+	    return this;
+	}
+
+	public ShardedFileBackedBlockingQueue<E> build() {
+	    Preconditions.checkNotNull(directory);
+	    Preconditions.checkNotNull(queue);
+	    if (!directory.exists())
+		throw new IllegalArgumentException(
+			"Directory for the file doesnt exist...");
+	    return new ShardedFileBackedBlockingQueue<E>(this);
+	}
+    }
+
+    private FileBackedBlockingQueue<E> shardOf(E element) {
+	int hash = shardKey == null ? nextShard.getAndIncrement() : shardKey
+		.apply(element).hashCode();
+	return shards[(hash & Integer.MAX_VALUE) % shards.length];
+    }
+
+    /**
+     * Takes an element for the permit the caller has acquired, from the home
+     * shard first and then from the others. A round can miss while the other
+     * consumers take elements, the claim yields and then backs off until it
+     * finds one or the shards are empty.
+     * 
+     * @return null if the shards are empty, the permit had no element (e.g.
+     *         a shard was cleared through {@link #getShard(int)}) and is
+     *         dropped.
+     */
+    private E claim() {
+	int start = home.get();
+	for (int round = 0;; round++) {
+	    for (int i = 0; i < shards.length; i++) {
+		E element = shards[(start + i) % shards.length].poll();
+		if (element != null) {
+		    if (i > 0)
+			steals.incrementAndGet();
+		    return element;
+		}
+	    }
+	    if (size() == 0)
+		return null;
+	    // the element is being taken by a consumer holding another permit,
+	    // whose element is still there.
+	    if (round < SPINS)
+		Thread.yield();
+	    else
+		LockSupport.parkNanos(BACKOFF_NANOS);
+	}
+    }
+
+    /**
+     * @return false if the element's shard is full.
+     */
+    public boolean offer(E e) {
+	Preconditions.checkNotNull(e);
+	if (!shardOf(e).offer(e))
+	    return false;
+	available.release();
+	return true;
+    }
+
+    public void put(E e) throws InterruptedException {
+	Preconditions.checkNotNull(e);
+	shardOf(e).put(e);
+	available.release();
+    }
+
+    public boolean offer(E e, long timeout, TimeUnit unit)
+	    throws InterruptedException {
+	Preconditions.checkNotNull(e);
+	if (!shardOf(e).offer(e, timeout, unit))
+	    return false;
+	available.release();
+	return true;
+    }
+
+    public E take() throws InterruptedException {
+	E element;
+	do {
+	    available.acquire();
+	} while ((element = claim()) == null);
+	return element;
+    }
+
+    public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+	long deadline = System.nanoTime() + unit.toNanos(timeout);
+	E element;
+	do {
+	    if (!available.tryAcquire(deadline - System.nanoTime(),
+		    TimeUnit.NANOSECONDS))
+		return null;
+	} while ((element = claim()) == null);
+	return element;
+    }
+
+    public E poll() {
+	E element;
+	do {
+	    if (!available.tryAcquire())
+		return null;
+	} while ((element = claim()) == null);
+	return element;
+    }
+
+    public E peek() {
+	int start = home.get();
+	for (int i = 0; i < shards.length; i++) {
+	    E element = shards[(start + i) % shards.length].peek();
+	    if (element != null)
+		return element;
+	}
+	return null;
+    }
+
+    public int size() {
+	int size = 0;
+	for (FileBackedBlockingQueue<E> shard : shards)
+	    size += shard.size();
+	return size;
+    }
+
+    public int remainingCapacity() {
+	long remaining = 0;
+	for (FileBackedBlockingQueue<E> shard : shards)
+	    remaining += shard.remainingCapacity();
+	return (int) Math.min(remaining, Integer.MAX_VALUE);
+    }
+
+    public int drainTo(Collection<? super E> collection) {
+	return drainTo(collection, Integer.MAX_VALUE);
+    }
+
+    public int drainTo(Collection<? super E> collection, int maxElements) {
+	Preconditions.checkNotNull(collection);
+	if (collection == this)
+	    throw new IllegalArgumentException();
+	int n = 0;
+	while (n < maxElements && available.tryAcquire()) {
+	    E element = claim();
+	    if (element != null) {
+		collection.add(element);
+		n++;
+	    }
+	}
+	return n;
+    }
+
+    /**
+     * Removes the element unless every element left is already being taken
+     * by a consumer.
+     */
+    public boolean remove(Object o) {
+	Preconditions.checkNotNull(o);
+	if (!available.tryAcquire())
+	    return false;
+	for (FileBackedBlockingQueue<E> shard : shards)
+	    if (shard.remove(o))
+		return true;
+	available.release();
+	return false;
+    }
+
+    public boolean contains(Object o) {
+	for (FileBackedBlockingQueue<E> shard : shards)
+	    if (shard.contains(o))
+		return true;
+	return false;
+    }
+
+    /**
+     * Removes the elements in the queue, the ones offered meanwhile may be
+     * removed as well or left.
+     */
+    public void clear() {
+	available.drainPermits();
+	for (FileBackedBlockingQueue<E> shard : shards)
+	    shard.clear();
+    }
+
+    /**
+     * Iterates the shards one after the other.
+     */
+    public CloseableIterator<E> iterator() {
+	return new ShardIterator();
+    }
+
+    /**
+     * Number of the elements taken from a shard other than the consumer's
+     * home shard.
+     */
+    public long getSteals() {
+	return steals.get();
+    }
+
+    /**
+     * The shards, e.g. for their metrics.
+     */
+    public FileBackedBlockingQueue<E> getShard(int shard) {
+	return shards[shard];
+    }
+
+    public int getShards() {
+	return shards.length;
+    }
+
+    public void close() {
+	for (FileBackedBlockingQueue<E> shard : shards)
+	    shard.close();
+    }
+
+    public String toString() {
+	return String.format("ShardedFileBackedQueue %d, shards: %d, count: %d",
+		hashCode(), shards.length, size());
+    }
+
+    private class ShardIterator extends AbstractIterator<E> implements
+	    CloseableIterator<E> {
+	private int shard;
+	private FileBackedBlockingQueue<E>.ElementItrerator current = shards[0]
+		.elements();
+
+	@Override
+	protected E computeNext() {
+	    while (!current.hasNext()) {
+		current.close();
+		if (++shard == shards.length)
+		    return endOfData();
+		current = shards[shard].elements();
+	    }
+	    return current.next();
+	}
+
+	/**
+	 * Removes the last element returned (unless a consumer took it
+	 * meanwhile) along with a permit, if one is left.
+	 */
+	public void removeData() {
+	    if (current.removeElement())
+		available.tryAcquire();
+	}
+
+	public void close() {
+	    current.close();
+	}
+    }
+}
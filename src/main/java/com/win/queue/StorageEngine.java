@@ -0,0 +1,40 @@
+package com.win.queue;
+
+import java.io.File;
+
+/**
+ * How the segment files are read and written, the file format is the same so
+ * a queue written with one engine can be recovered with the other.
+ *
+ * @author Vijay Parthasarathy
+ */
+public enum StorageEngine {
+    /**
+     * The segments are memory mapped, the entries are serialized straight
+     * into the mapping and read back from it (Default).
+     */
+    MMAP {
+	SegmentStorage open(File file, long length, int windowSize,
+		boolean existing) {
+	    return new MappedStorage(file, length, windowSize, existing);
+	}
+    },
+
+    /**
+     * The segments are written with FileChannel writes from a 64 KB write
+     * back buffer and read with positional reads into direct buffers, no
+     * page faults on the producer's side nor dirty mapped pages to be
+     * written back. What is still in the buffer is written out once it is
+     * full or the segment is sealed or forced, it is lost if the JVM dies
+     * before that unless a {@link DurabilityPolicy} forces it.
+     */
+    CHANNEL {
+	SegmentStorage open(File file, long length, int windowSize,
+		boolean existing) {
+	    return new ChannelStorage(file, length, windowSize, existing);
+	}
+    };
+
+    abstract SegmentStorage open(File file, long length, int windowSize,
+	    boolean existing);
+}
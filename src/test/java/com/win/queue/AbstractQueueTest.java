@@ -1,25 +1,39 @@
 package com.win.queue;
 
 import java.io.File;
+import java.nio.ByteBuffer;
 
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
 
+import com.google.common.base.Charsets;
+
 public class AbstractQueueTest {
     static File TEST_DIR = new File("target/FileQueueTest");;
     static String TEST_STRING = "This is tested perfectly by Vijay";
 
     public class StringSerializer implements QueueSerializer<String> {
 	public byte[] serialize(String t) {
-	    return t.getBytes();
+	    return t.getBytes(Charsets.UTF_8);
 	}
 
 	public String deserialize(byte[] bytes) {
-	    return new String(bytes);
+	    return new String(bytes, Charsets.UTF_8);
 	}
 
 	public long serializedSize(String t) {
-	    return t.length();
+	    return t.getBytes(Charsets.UTF_8).length;
+	}
+    }
+
+    public static class LongSerializer implements DirectQueueSerializer<Long> {
+	public int serialize(Long t, ByteBuffer buffer) {
+	    buffer.putLong(t);
+	    return 8;
+	}
+
+	public Long deserialize(ByteBuffer buffer) {
+	    return buffer.getLong();
 	}
     }
 
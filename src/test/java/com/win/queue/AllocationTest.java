@@ -0,0 +1,58 @@
+package com.win.queue;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Measures the bytes allocated by the consumer per poll, the serializer
+ * returns a shared object so that anything allocated is the queue's.
+ */
+public class AllocationTest extends AbstractQueueTest {
+    private static final int ELEMENTS = 200000;
+    private static final Object ELEMENT = new Object();
+
+    static class SharedSerializer implements DirectQueueSerializer<Object> {
+	public int serialize(Object t, ByteBuffer buffer) {
+	    buffer.putLong(42L);
+	    return 8;
+	}
+
+	public Object deserialize(ByteBuffer buffer) {
+	    buffer.getLong();
+	    return ELEMENT;
+	}
+    }
+
+    private static long allocatedBytes() {
+	return ((com.sun.management.ThreadMXBean) ManagementFactory
+		.getThreadMXBean()).getThreadAllocatedBytes(Thread
+		.currentThread().getId());
+    }
+
+    @Test
+    public void testPollAllocation() {
+	Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+	FileBackedBlockingQueue<Object> queue = new FileBackedBlockingQueue.Builder<Object>()
+		.directory(TEST_DIR)
+		.serializer(new SharedSerializer())
+		.segmentSize(64 * 1024 * 1024)
+		.build();
+	for (int i = 0; i < 2 * ELEMENTS; i++)
+	    queue.offer(ELEMENT);
+	// warm up
+	for (int i = 0; i < ELEMENTS; i++)
+	    Assert.assertSame(ELEMENT, queue.poll());
+
+	long before = allocatedBytes();
+	for (int i = 0; i < ELEMENTS; i++)
+	    queue.poll();
+	long allocated = allocatedBytes() - before;
+	Assert.assertTrue("allocated " + allocated + " bytes for " + ELEMENTS
+		+ " polls", allocated < ELEMENTS / 10);
+	queue.close();
+    }
+}
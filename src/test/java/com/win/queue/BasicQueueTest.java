@@ -1,10 +1,24 @@
 package com.win.queue;
 
+import java.io.File;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.google.common.base.Functions;
+
 public class BasicQueueTest extends AbstractQueueTest {
     @Test
     public void tesOffer() {
@@ -18,6 +32,655 @@ public class BasicQueueTest extends AbstractQueueTest {
 	Assert.assertTrue(TEST_DIR.list().length > 0);
     }
 
+    @Test
+    public void testOfferAll() {
+	FileBackedBlockingQueue<String> queue = new FileBackedBlockingQueue.Builder<String>()
+		.directory(TEST_DIR)
+		.serializer(new StringSerializer())
+		.segmentSize((TEST_STRING.length() + Segment.ENTRY_OVERHEAD_SIZE + 10) * 100)
+		.build();
+	List<String> batch = new ArrayList<String>();
+	for (int i = 0; i < 2000; i++)
+	    batch.add(TEST_STRING + i);
+	queue.add(TEST_STRING);
+	Assert.assertTrue(queue.offerAll(batch));
+	Assert.assertEquals(2001, queue.size());
+	Assert.assertTrue(queue.segments.getActiveSegments() > 10);
+	Assert.assertEquals(TEST_STRING, queue.poll());
+	for (int i = 0; i < 2000; i++)
+	    Assert.assertEquals(TEST_STRING + i, queue.poll());
+	Assert.assertNull(queue.poll());
+    }
+
+    @Test
+    public void testDirectSerializer() {
+	FileBackedBlockingQueue<Long> queue = new FileBackedBlockingQueue.Builder<Long>()
+		.directory(TEST_DIR)
+		.serializer(new LongSerializer())
+		.segmentSize(Segment.HEADER_SIZE + (8 + Segment.ENTRY_OVERHEAD_SIZE) * 100 + 4)
+		.build();
+	for (long i = 0; i < 1000; i++)
+	    queue.add(i);
+	// exactly 100 entries per segment
+	Assert.assertEquals(10, queue.segments.getActiveSegments());
+	List<Long> batch = new ArrayList<Long>();
+	for (long i = 1000; i < 2000; i++)
+	    batch.add(i);
+	queue.offerAll(batch);
+	for (long i = 0; i < 2000; i++)
+	    Assert.assertEquals(Long.valueOf(i), queue.poll());
+    }
+
+    @Test
+    public void testMultiByteElements() {
+	String multiByte = "\u00e9l\u00e9ment \u4e2d\u6587 ";
+	FileBackedBlockingQueue<String> queue = new FileBackedBlockingQueue.Builder<String>()
+		.directory(TEST_DIR)
+		.serializer(new StringSerializer())
+		.segmentSize((multiByte.length() + Segment.ENTRY_OVERHEAD_SIZE + 10) * 100)
+		.build();
+	for (int i = 0; i < 1000; i++)
+	    queue.add(multiByte + i);
+	for (int i = 0; i < 1000; i++)
+	    Assert.assertEquals(multiByte + i, queue.poll());
+    }
+
+    @Test
+    public void testPreallocate() throws InterruptedException {
+	FileBackedBlockingQueue<String> queue = new FileBackedBlockingQueue.Builder<String>()
+		.directory(TEST_DIR)
+		.serializer(new StringSerializer())
+		.segmentSize((TEST_STRING.length() + Segment.ENTRY_OVERHEAD_SIZE + 10) * 100)
+		.preallocate(3)
+		.build();
+	for (int i = 0; i < 100 && queue.segments.getInActiveSegments() < 3; i++)
+	    Thread.sleep(10);
+	Assert.assertEquals(3, queue.segments.getInActiveSegments());
+	for (int i = 0; i < 1000; i++)
+	    queue.add(TEST_STRING + i);
+	Assert.assertTrue(queue.segments.getActiveSegments() > 3);
+	// the spares taken by the roll overs are refilled.
+	for (int i = 0; i < 100 && queue.segments.getInActiveSegments() < 3; i++)
+	    Thread.sleep(10);
+	Assert.assertEquals(3, queue.segments.getInActiveSegments());
+	for (int i = 0; i < 1000; i++)
+	    Assert.assertEquals(TEST_STRING + i, queue.poll());
+	queue.close();
+    }
+
+    @Test
+    public void testPreallocateFailure() throws InterruptedException {
+	File directory = new File(TEST_DIR, "allocator");
+	directory.mkdirs();
+	FileBackedBlockingQueue<String> queue = new FileBackedBlockingQueue.Builder<String>()
+		.directory(directory)
+		.serializer(new StringSerializer())
+		.segmentSize((TEST_STRING.length() + Segment.ENTRY_OVERHEAD_SIZE + 10) * 100)
+		.preallocate(1)
+		.build();
+	for (int i = 0; i < 100 && queue.segments.getInActiveSegments() < 1; i++)
+	    Thread.sleep(10);
+	Assert.assertEquals(1, queue.segments.getInActiveSegments());
+	// the spare taken by the roll over can't be replaced.
+	for (File file : directory.listFiles())
+	    file.delete();
+	directory.delete();
+	for (int i = 0; i < 150; i++)
+	    queue.add(TEST_STRING + i);
+	Thread.sleep(100);
+	Assert.assertEquals(0, queue.segments.getInActiveSegments());
+
+	// the allocator is still there for the next roll over.
+	directory.mkdirs();
+	for (int i = 150; i < 300; i++)
+	    queue.add(TEST_STRING + i);
+	for (int i = 0; i < 100 && queue.segments.getInActiveSegments() < 1; i++)
+	    Thread.sleep(10);
+	Assert.assertEquals(1, queue.segments.getInActiveSegments());
+	for (int i = 0; i < 300; i++)
+	    Assert.assertEquals(TEST_STRING + i, queue.poll());
+	queue.close();
+	for (File file : directory.listFiles())
+	    file.delete();
+	directory.delete();
+    }
+
+    @Test
+    public void testCapacity() throws Exception {
+	final FileBackedBlockingQueue<String> queue = new FileBackedBlockingQueue.Builder<String>()
+		.directory(TEST_DIR)
+		.serializer(new StringSerializer())
+		.capacity(100)
+		.build();
+	for (int i = 0; i < 100; i++)
+	    Assert.assertTrue(queue.offer(TEST_STRING + i));
+	Assert.assertEquals(0, queue.remainingCapacity());
+	Assert.assertFalse(queue.offer(TEST_STRING));
+	Assert.assertFalse(queue.offer(TEST_STRING, 50, TimeUnit.MILLISECONDS));
+	List<String> batch = new ArrayList<String>();
+	batch.add(TEST_STRING);
+	Assert.assertFalse(queue.offerAll(batch));
+
+	Thread producer = new Thread() {
+	    public void run() {
+		try {
+		    queue.put(TEST_STRING + 100);
+		} catch (InterruptedException e) {
+		}
+	    }
+	};
+	producer.start();
+	Thread.sleep(50);
+	Assert.assertTrue(producer.isAlive());
+	Assert.assertEquals(TEST_STRING + 0, queue.take());
+	producer.join(5000);
+	Assert.assertFalse(producer.isAlive());
+	Assert.assertEquals(100, queue.size());
+	for (int i = 1; i <= 100; i++)
+	    Assert.assertEquals(TEST_STRING + i, queue.poll());
+	Assert.assertEquals(100, queue.remainingCapacity());
+	queue.close();
+    }
+
+    @Test
+    public void testPutAllLargerThanCapacity() throws Exception {
+	FileBackedBlockingQueue<String> queue = new FileBackedBlockingQueue.Builder<String>()
+		.directory(TEST_DIR)
+		.serializer(new StringSerializer())
+		.capacity(100)
+		.build();
+	List<String> batch = new ArrayList<String>();
+	for (int i = 0; i < 101; i++)
+	    batch.add(TEST_STRING + i);
+	try {
+	    queue.putAll(batch);
+	    Assert.fail("a batch larger than the capacity can never fit");
+	} catch (IllegalArgumentException e) {
+	}
+	Assert.assertEquals(0, queue.size());
+	Assert.assertEquals(100, queue.remainingCapacity());
+	queue.putAll(batch.subList(0, 100));
+	Assert.assertEquals(100, queue.size());
+	queue.close();
+    }
+
+    @Test
+    public void testMaxSize() throws Exception {
+	int segmentSize = (TEST_STRING.length() + Segment.ENTRY_OVERHEAD_SIZE + 10) * 100;
+	final FileBackedBlockingQueue<String> queue = new FileBackedBlockingQueue.Builder<String>()
+		.directory(TEST_DIR)
+		.serializer(new StringSerializer())
+		.segmentSize(segmentSize)
+		.max(segmentSize * 3L)
+		.build();
+	int n = 0;
+	while (queue.offer(TEST_STRING + n))
+	    n++;
+	Assert.assertTrue("offered " + n, n > 300 && n < 500);
+	Assert.assertFalse(queue.offer(TEST_STRING, 50, TimeUnit.MILLISECONDS));
+
+	// put waits for the consumer to recycle a segment.
+	final int last = n;
+	Thread producer = new Thread() {
+	    public void run() {
+		try {
+		    queue.put(TEST_STRING + last);
+		} catch (InterruptedException e) {
+		}
+	    }
+	};
+	producer.start();
+	Thread.sleep(50);
+	Assert.assertTrue(producer.isAlive());
+	for (int i = 0; i < 200; i++)
+	    Assert.assertEquals(TEST_STRING + i, queue.poll());
+	producer.join(5000);
+	Assert.assertFalse(producer.isAlive());
+	for (int i = 200; i <= last; i++)
+	    Assert.assertEquals(TEST_STRING + i, queue.poll());
+	Assert.assertNull(queue.poll());
+	queue.close();
+    }
+
+    @Test
+    public void testPutAllWaitsOutsideTheLock() throws Exception {
+	int segmentSize = (TEST_STRING.length() + Segment.ENTRY_OVERHEAD_SIZE + 10) * 100;
+	final FileBackedBlockingQueue<String> queue = new FileBackedBlockingQueue.Builder<String>()
+		.directory(TEST_DIR)
+		.serializer(new StringSerializer())
+		.segmentSize(segmentSize)
+		.max(segmentSize * 3L)
+		.build();
+	while (queue.offer(TEST_STRING))
+	    ;
+	final List<String> batch = new ArrayList<String>();
+	for (int i = 0; i < 150; i++)
+	    batch.add(TEST_STRING + i);
+	Thread producer = new Thread() {
+	    public void run() {
+		try {
+		    queue.putAll(batch);
+		} catch (InterruptedException e) {
+		}
+	    }
+	};
+	producer.start();
+	Thread.sleep(50);
+	Assert.assertTrue(producer.isAlive());
+	// the waiting batch doesn't hold the write lock, clear() makes room.
+	queue.clear();
+	producer.join(5000);
+	Assert.assertFalse(producer.isAlive());
+	Assert.assertEquals(150, queue.size());
+	for (int i = 0; i < 150; i++)
+	    Assert.assertEquals(TEST_STRING + i, queue.poll());
+	queue.close();
+    }
+
+    @Test
+    public void testCloseWakesWaiters() throws Exception {
+	int segmentSize = (TEST_STRING.length() + Segment.ENTRY_OVERHEAD_SIZE + 10) * 100;
+	File[] directories = { new File(TEST_DIR, "bounded"),
+		new File(TEST_DIR, "empty"), new File(TEST_DIR, "full") };
+	for (File directory : directories)
+	    directory.mkdirs();
+	final FileBackedBlockingQueue<String> bounded = new FileBackedBlockingQueue.Builder<String>()
+		.directory(directories[0])
+		.serializer(new StringSerializer())
+		.capacity(10)
+		.build();
+	final FileBackedBlockingQueue<String> empty = new FileBackedBlockingQueue.Builder<String>()
+		.directory(directories[1])
+		.serializer(new StringSerializer())
+		.build();
+	final FileBackedBlockingQueue<String> noRoom = new FileBackedBlockingQueue.Builder<String>()
+		.directory(directories[2])
+		.serializer(new StringSerializer())
+		.segmentSize(segmentSize)
+		.max(segmentSize * 3L)
+		.build();
+	for (int i = 0; i < 10; i++)
+	    bounded.add(TEST_STRING + i);
+	while (noRoom.offer(TEST_STRING))
+	    ;
+	final List<String> batch = new ArrayList<String>();
+	for (int i = 0; i < 150; i++)
+	    batch.add(TEST_STRING + i);
+	final AtomicInteger closed = new AtomicInteger();
+	List<Thread> waiters = new ArrayList<Thread>();
+	waiters.add(new Thread() {
+	    public void run() {
+		try {
+		    bounded.putAll(batch.subList(0, 5));
+		} catch (IllegalStateException e) {
+		    closed.incrementAndGet();
+		} catch (InterruptedException e) {
+		}
+	    }
+	});
+	waiters.add(new Thread() {
+	    public void run() {
+		try {
+		    empty.take();
+		} catch (IllegalStateException e) {
+		    closed.incrementAndGet();
+		} catch (InterruptedException e) {
+		}
+	    }
+	});
+	waiters.add(new Thread() {
+	    public void run() {
+		try {
+		    noRoom.putAll(batch);
+		} catch (IllegalStateException e) {
+		    closed.incrementAndGet();
+		} catch (InterruptedException e) {
+		}
+	    }
+	});
+	for (Thread waiter : waiters)
+	    waiter.start();
+	Thread.sleep(50);
+	bounded.close();
+	empty.close();
+	noRoom.close();
+	for (Thread waiter : waiters) {
+	    waiter.join(5000);
+	    Assert.assertFalse(waiter.isAlive());
+	}
+	Assert.assertEquals(3, closed.get());
+	for (File directory : directories) {
+	    for (File file : directory.listFiles())
+		file.delete();
+	    directory.delete();
+	}
+    }
+
+    @Test
+    public void testMaxSizeOfferAll() {
+	int segmentSize = (TEST_STRING.length() + Segment.ENTRY_OVERHEAD_SIZE + 10) * 100;
+	FileBackedBlockingQueue<String> queue = new FileBackedBlockingQueue.Builder<String>()
+		.directory(TEST_DIR)
+		.serializer(new StringSerializer())
+		.segmentSize(segmentSize)
+		.max(segmentSize * 3L)
+		.capacity(2000)
+		.build();
+	List<String> batch = new ArrayList<String>();
+	for (int i = 0; i < 1000; i++)
+	    batch.add(TEST_STRING + i);
+	// the elements which fit are inserted, the slots of the rest given back.
+	Assert.assertFalse(queue.offerAll(batch));
+	int n = queue.size();
+	Assert.assertTrue("inserted " + n, n > 300 && n < 500);
+	Assert.assertEquals(2000 - n, queue.remainingCapacity());
+	for (int i = 0; i < n; i++)
+	    Assert.assertEquals(TEST_STRING + i, queue.poll());
+	Assert.assertNull(queue.poll());
+	Assert.assertTrue(queue.offerAll(batch.subList(0, 10)));
+	Assert.assertEquals(10, queue.size());
+	queue.close();
+    }
+
+    @Test
+    public void testMaxMappedSegments() {
+	FileBackedBlockingQueue<String> queue = new FileBackedBlockingQueue.Builder<String>()
+		.directory(TEST_DIR)
+		.serializer(new StringSerializer())
+		.segmentSize((TEST_STRING.length() + Segment.ENTRY_OVERHEAD_SIZE + 10) * 100)
+		.maxMappedSegments(3)
+		.build();
+	for (int i = 0; i < 2000; i++)
+	    queue.add(TEST_STRING + i);
+	Assert.assertTrue(queue.segments.getActiveSegments() > 10);
+	Assert.assertTrue(queue.segments.getMappedSegments() <= 3);
+
+	// the iterator maps the segments as it goes.
+	CloseableIterator<String> it = queue.iterator();
+	for (int i = 0; i < 2000; i++)
+	    Assert.assertEquals(TEST_STRING + i, it.next());
+	Assert.assertFalse(it.hasNext());
+
+	for (int i = 0; i < 2000; i++) {
+	    Assert.assertEquals(TEST_STRING + i, queue.poll());
+	    Assert.assertTrue(queue.segments.getMappedSegments() <= 3);
+	}
+	queue.close();
+    }
+
+    @Test
+    public void testWindows() {
+	// segments of 3.5 windows, the entries don't line up with the windows.
+	FileBackedBlockingQueue<String> queue = new FileBackedBlockingQueue.Builder<String>()
+		.directory(TEST_DIR)
+		.serializer(new StringSerializer())
+		.segmentSize(4096 * 3 + 2048)
+		.windowSize(4096)
+		.build();
+	for (int i = 0; i < 2000; i++)
+	    queue.add(TEST_STRING + i);
+	Assert.assertTrue(queue.segments.getActiveSegments() > 5);
+	queue.remove(TEST_STRING + 100);
+
+	CloseableIterator<String> it = queue.iterator();
+	for (int i = 0; i < 2000; i++)
+	    if (i != 100)
+		Assert.assertEquals(TEST_STRING + i, it.next());
+	Assert.assertFalse(it.hasNext());
+
+	for (int i = 0; i < 2000; i++)
+	    if (i != 100)
+		Assert.assertEquals(TEST_STRING + i, queue.poll());
+	Assert.assertNull(queue.poll());
+	queue.close();
+    }
+
+    @Test
+    public void testCompaction() throws InterruptedException {
+	long segmentSize = (TEST_STRING.length() + Segment.ENTRY_OVERHEAD_SIZE + 10) * 100;
+	FileBackedBlockingQueue<String> queue = new FileBackedBlockingQueue.Builder<String>()
+		.directory(TEST_DIR)
+		.serializer(new StringSerializer())
+		.segmentSize(segmentSize)
+		.compactionThreshold(0.5)
+		.build();
+	for (int i = 0; i < 2000; i++)
+	    queue.add(TEST_STRING + i);
+	long reserved = queue.segments.getTotalReservedBytes();
+	// remove everything but every 10th element from the middle.
+	CloseableIterator<String> it = queue.iterator();
+	for (int i = 0; i < 2000; i++) {
+	    it.next();
+	    if (i >= 500 && i < 1500 && i % 10 != 0)
+		it.removeData();
+	}
+	it.close();
+
+	for (int i = 0; i < 300
+		&& (queue.segments.getCompactedSegments() < 8 || queue.segments
+			.getDeadBytes() >= segmentSize); i++)
+	    Thread.sleep(10);
+	Assert.assertTrue(queue.segments.getCompactedSegments() >= 8);
+	// only the two segments on the edges of the range, below the threshold.
+	Assert.assertTrue(queue.segments.getDeadBytes() < segmentSize);
+	Assert.assertTrue(queue.segments.getTotalReservedBytes() < reserved);
+
+	for (int i = 0; i < 2000; i++)
+	    if (i < 500 || i >= 1500 || i % 10 == 0)
+		Assert.assertEquals(TEST_STRING + i, queue.poll());
+	Assert.assertNull(queue.poll());
+	queue.close();
+    }
+
+    @Test
+    public void testMemoryBuffer() {
+	FileBackedBlockingQueue<String> queue = new FileBackedBlockingQueue.Builder<String>()
+		.directory(TEST_DIR)
+		.serializer(new StringSerializer())
+		.segmentSize((TEST_STRING.length() + Segment.ENTRY_OVERHEAD_SIZE + 10) * 100)
+		.memoryBuffer(100)
+		.build();
+	for (int i = 0; i < 50; i++)
+	    queue.add(TEST_STRING + i);
+	Assert.assertTrue(queue.segments.isEmpty());
+	for (int i = 0; i < 50; i++)
+	    Assert.assertEquals(TEST_STRING + i, queue.poll());
+
+	// spills to the segments once the buffer is full and until the
+	// consumer catches up.
+	int added = 0, polled = 0;
+	for (; added < 1000; added++)
+	    queue.add(TEST_STRING + added);
+	Assert.assertFalse(queue.segments.isEmpty());
+	Assert.assertTrue(queue.remove(TEST_STRING + 10));
+	Assert.assertTrue(queue.remove(TEST_STRING + 500));
+	CloseableIterator<String> it = queue.iterator();
+	Assert.assertEquals(TEST_STRING + 0, it.next());
+	it.close();
+	while (polled < 1500) {
+	    if (added < 1500)
+		queue.add(TEST_STRING + added++);
+	    if (polled == 10 || polled == 500)
+		polled++;
+	    Assert.assertEquals(TEST_STRING + polled++, queue.poll());
+	}
+	Assert.assertNull(queue.poll());
+	Assert.assertTrue(queue.segments.isEmpty());
+
+	queue.add(TEST_STRING);
+	List<String> drained = new ArrayList<String>();
+	Assert.assertEquals(1, queue.drainTo(drained));
+	Assert.assertEquals(TEST_STRING, drained.get(0));
+
+	// polled between the iterator's next and its removal.
+	queue.add(TEST_STRING);
+	FileBackedBlockingQueue<String>.ElementItrerator elements = (FileBackedBlockingQueue<String>.ElementItrerator) queue
+		.iterator();
+	Assert.assertEquals(TEST_STRING, elements.next());
+	Assert.assertEquals(TEST_STRING, queue.poll());
+	Assert.assertFalse(elements.removeElement());
+	elements.close();
+	Assert.assertEquals(0, queue.size());
+	queue.close();
+    }
+
+    @Test
+    public void testRemoveWhileTaking() throws InterruptedException {
+	final FileBackedBlockingQueue<String> queue = new FileBackedBlockingQueue.Builder<String>()
+		.directory(TEST_DIR)
+		.serializer(new StringSerializer())
+		.segmentSize((TEST_STRING.length() + Segment.ENTRY_OVERHEAD_SIZE + 10) * 100)
+		.build();
+	// taken between the iterator's read and its removal.
+	queue.add(TEST_STRING);
+	FileBackedBlockingQueue<String>.ElementItrerator it = queue.elements();
+	Assert.assertEquals(TEST_STRING, it.next());
+	Assert.assertEquals(TEST_STRING, queue.poll());
+	Assert.assertFalse(it.removeElement());
+	it.close();
+	Assert.assertEquals(0, queue.size());
+
+	final int elements = 5000;
+	for (int i = 0; i < elements; i++)
+	    queue.add(TEST_STRING + i);
+	final Set<String> taken = Collections
+		.synchronizedSet(new HashSet<String>());
+	Thread consumer = new Thread() {
+	    public void run() {
+		String element;
+		while ((element = queue.poll()) != null)
+		    taken.add(element);
+	    }
+	};
+	consumer.start();
+	// an element is either taken or removed, never both.
+	Set<String> removed = new HashSet<String>();
+	for (int i = 0; i < elements; i++)
+	    if (queue.remove(TEST_STRING + i))
+		removed.add(TEST_STRING + i);
+	consumer.join();
+	Assert.assertEquals(elements, taken.size() + removed.size());
+	removed.retainAll(taken);
+	Assert.assertTrue(removed.isEmpty());
+	Assert.assertEquals(0, queue.size());
+	Assert.assertNull(queue.poll());
+	queue.close();
+    }
+
+    @Test
+    public void testReadAhead() throws InterruptedException {
+	FileBackedBlockingQueue<String> queue = new FileBackedBlockingQueue.Builder<String>()
+		.directory(TEST_DIR)
+		.serializer(new StringSerializer())
+		.segmentSize(64 * 1024)
+		.readAhead(256 * 1024)
+		.build();
+	for (int i = 0; i < 20000; i++)
+	    queue.add(TEST_STRING + i);
+	Assert.assertEquals(TEST_STRING + 0, queue.poll());
+	// let the read ahead get past the end of the first segment.
+	Thread.sleep(200);
+	for (int i = 1; i < 20000; i++)
+	    Assert.assertEquals(TEST_STRING + i, queue.poll());
+	long hits = queue.segments.getReadAheadHits();
+	Assert.assertEquals(20000, hits + queue.segments.getReadAheadMisses());
+	Assert.assertTrue("hits " + hits, hits > 2000);
+	queue.close();
+    }
+
+    @Test
+    public void testReadAheadDiscardedSegment() throws InterruptedException {
+	DirectQueueSerializer<String> serializer = new QueueSerializerAdapter<String>(
+		new StringSerializer());
+	ReadAhead<String> readAhead = new ReadAhead<String>(64 * 1024);
+	Segment<String> discarded = new Segment<String>(TEST_DIR, 64 * 1024,
+		serializer);
+	discarded.activate(1);
+	Segment<String> segment = new Segment<String>(TEST_DIR, 64 * 1024,
+		serializer);
+	segment.activate(2);
+	for (int i = 0; i < 100; i++) {
+	    discarded.add(TEST_STRING + i);
+	    segment.add(TEST_STRING + i);
+	}
+	discarded.discard();
+	readAhead.advanced(discarded, Segment.HEADER_SIZE);
+	Thread.sleep(100);
+	// still running, prefetches the next segment.
+	readAhead.advanced(segment, Segment.HEADER_SIZE);
+	Thread.sleep(100);
+	readAhead.advanced(segment, Segment.HEADER_SIZE + 100);
+	Assert.assertEquals(1, readAhead.getHits());
+	readAhead.close();
+	segment.discard();
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+	final CountDownLatch reported = new CountDownLatch(1);
+	FileBackedBlockingQueue<String> queue = new FileBackedBlockingQueue.Builder<String>()
+		.directory(TEST_DIR)
+		.serializer(new StringSerializer())
+		.segmentSize(16 * 1024)
+		.metrics(true)
+		.reporter(new MetricsReporter() {
+		    public void report(FileBackedBlockingQueue<?> queue) {
+			if (queue.getMetrics().getDequeued().getCount() == 1000)
+			    reported.countDown();
+		    }
+		}, 10, TimeUnit.MILLISECONDS)
+		.build();
+	int entry = TEST_STRING.length() + 1 + Segment.ENTRY_OVERHEAD_SIZE;
+	for (int i = 0; i < 1010; i++)
+	    queue.offer(TEST_STRING + (i % 10));
+	Assert.assertEquals(1010L * entry, queue.getConsumerLagBytes());
+	for (int i = 0; i < 10; i++)
+	    Assert.assertTrue(queue.remove(TEST_STRING + i));
+	for (int i = 0; i < 1000; i++)
+	    Assert.assertNotNull(queue.take());
+	Assert.assertTrue(reported.await(5, TimeUnit.SECONDS));
+
+	QueueMetrics metrics = queue.getMetrics();
+	Assert.assertEquals(1010, metrics.getEnqueued().getCount());
+	Assert.assertEquals(1010L * entry, metrics.getBytesIn().getCount());
+	Assert.assertEquals(1000L * entry, metrics.getBytesOut().getCount());
+	Assert.assertEquals(10, metrics.getTombstonesSkipped());
+	Assert.assertEquals(0, queue.getConsumerLagBytes());
+	Assert.assertEquals(1010, metrics.getOfferLatency().getCount());
+	Assert.assertEquals(1000, metrics.getTakeLatency().getCount());
+	Assert.assertEquals(1000, metrics.getDeserializeTime().getCount());
+	Assert.assertTrue(metrics.getRolloverTime().getCount() > 0);
+	Histogram offer = metrics.getOfferLatency();
+	Assert.assertTrue(offer.get50thPercentile() <= offer.get99thPercentile());
+	Assert.assertTrue(offer.get99thPercentile() <= offer.getMax());
+
+	MBeanServer mbs = ManagementFactory.getPlatformMBeanServer();
+	ObjectName name = new ObjectName(
+		"com.win.queue:type=FileBackedBlockingQueue,instance="
+			+ queue.hashCode());
+	Assert.assertEquals(1000L,
+		mbs.getAttribute(name, "DequeuedCount"));
+	Assert.assertEquals(1010L, mbs.getAttribute(new ObjectName(name
+		+ ",name=offer"), "Count"));
+	queue.close();
+	Assert.assertFalse(mbs.isRegistered(name));
+    }
+
+    @Test
+    public void testHistogram() {
+	Histogram histogram = new Histogram();
+	for (int i = 1; i <= 10000; i++)
+	    histogram.record(i * 1000L);
+	Assert.assertEquals(10000, histogram.getCount());
+	Assert.assertEquals(5000500.0, histogram.getMean(), 1);
+	// within the 1/16 precision of the buckets.
+	Assert.assertEquals(5000000, histogram.get50thPercentile(), 5000000 / 16);
+	Assert.assertEquals(9900000, histogram.get99thPercentile(), 9900000 / 16);
+	Assert.assertEquals(10000000, histogram.getMax());
+	for (long value = 1; value > 0 && value < Long.MAX_VALUE / 3; value = value * 3 + 1)
+	    Assert.assertTrue(Histogram.lowerBound(Histogram.bucket(value)) <= value);
+    }
+
     @Test
     public void testpoll() {
 	// create a queue to hold the test data.
@@ -87,6 +750,42 @@ public class BasicQueueTest extends AbstractQueueTest {
 
 	for (int i = 1000; i < 2000; i++)
 	    Assert.assertEquals(TEST_STRING + i, queue.poll());
+
+	// only a removed entry is left at the head.
+	queue.add(TEST_STRING + 1);
+	queue.add(TEST_STRING + 2);
+	Assert.assertTrue(queue.remove(TEST_STRING + 2));
+	Assert.assertEquals(TEST_STRING + 1, queue.poll());
+	Assert.assertEquals(0, queue.drainTo(new ArrayList<String>()));
+	queue.close();
+    }
+
+    @Test
+    public void testPollBatch() throws InterruptedException {
+	// mark the segment size approx for 100 elements.
+	FileBackedBlockingQueue<String> queue = new FileBackedBlockingQueue.Builder<String>()
+		.directory(TEST_DIR)
+		.serializer(new StringSerializer())
+		.segmentSize((TEST_STRING.length() + Segment.ENTRY_OVERHEAD_SIZE + 10) * 100)
+		.build();
+	Assert.assertTrue(queue.pollBatch(10, 1, TimeUnit.MILLISECONDS).isEmpty());
+	for (int i = 0; i < 2000; i++)
+	    queue.add(TEST_STRING + i);
+	queue.remove(TEST_STRING + 5);
+
+	List<String> batch = queue.takeBatch(10);
+	Assert.assertEquals(10, batch.size());
+	Assert.assertEquals(TEST_STRING + 0, batch.get(0));
+	Assert.assertEquals(TEST_STRING + 10, batch.get(9));
+	int i = 11;
+	while (!(batch = queue.pollBatch(64, 1, TimeUnit.MILLISECONDS)).isEmpty()) {
+	    // a batch never crosses a segment.
+	    Assert.assertTrue(batch.size() <= 100);
+	    for (String element : batch)
+		Assert.assertEquals(TEST_STRING + i++, element);
+	}
+	Assert.assertEquals(2000, i);
+	Assert.assertEquals(0, queue.size());
     }
 
     @Test
@@ -132,6 +831,39 @@ public class BasicQueueTest extends AbstractQueueTest {
 	}
     }
 
+    @Test
+    public void testIndexedRemove() {
+	final AtomicInteger reads = new AtomicInteger();
+	FileBackedBlockingQueue<String> queue = new FileBackedBlockingQueue.Builder<String>()
+		.directory(TEST_DIR)
+		.serializer(new StringSerializer() {
+		    public String deserialize(byte[] bytes) {
+			reads.incrementAndGet();
+			return super.deserialize(bytes);
+		    }
+		})
+		.segmentSize((TEST_STRING.length() + Segment.ENTRY_OVERHEAD_SIZE + 10) * 100)
+		.keyExtractor(Functions.identity())
+		.build();
+	for (int i = 0; i < 2000; i++)
+	    queue.add(TEST_STRING + i);
+	Assert.assertTrue(queue.segments.getActiveSegments() > 10);
+
+	// only the segment holding the element (and the false positives).
+	Assert.assertTrue(queue.contains(TEST_STRING + 1500));
+	Assert.assertTrue(queue.remove(TEST_STRING + 1500));
+	Assert.assertFalse(queue.contains(TEST_STRING + 1500));
+	Assert.assertFalse(queue.remove(TEST_STRING + 1500));
+	Assert.assertFalse(queue.contains(TEST_STRING));
+	Assert.assertTrue("read " + reads.get(), reads.get() < 1000);
+
+	Assert.assertEquals(1999, queue.size());
+	for (int i = 0; i < 2000; i++)
+	    if (i != 1500)
+		Assert.assertEquals(TEST_STRING + i, queue.poll());
+	Assert.assertNull(queue.poll());
+    }
+
     @Test
     public void testClear() {
 	// mark the segment size approx for 100 elements.
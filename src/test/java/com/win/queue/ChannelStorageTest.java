@@ -0,0 +1,129 @@
+package com.win.queue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ChannelStorageTest extends AbstractQueueTest {
+    static File CHANNEL_DIR = new File(TEST_DIR, "channel");
+
+    @Before
+    public void cleanup() {
+	if (CHANNEL_DIR.exists())
+	    for (File file : CHANNEL_DIR.listFiles())
+		file.delete();
+	CHANNEL_DIR.mkdirs();
+    }
+
+    private FileBackedBlockingQueue.Builder<String> newBuilder() {
+	return new FileBackedBlockingQueue.Builder<String>()
+		.directory(CHANNEL_DIR)
+		.serializer(new StringSerializer())
+		.segmentSize(256 * 1024)
+		.windowSize(64 * 1024)
+		.storage(StorageEngine.CHANNEL);
+    }
+
+    private static String large(int n, int size) {
+	char[] chars = new char[size];
+	Arrays.fill(chars, (char) ('a' + n % 26));
+	return n + new String(chars);
+    }
+
+    @Test
+    public void testOfferPoll() {
+	FileBackedBlockingQueue<String> queue = newBuilder().build();
+	for (int i = 0; i < 20000; i++)
+	    queue.add(TEST_STRING + i);
+	Assert.assertTrue(queue.segments.getActiveSegments() > 2);
+	Assert.assertTrue(queue.remove(TEST_STRING + 500));
+	int n = 0;
+	CloseableIterator<String> it = queue.iterator();
+	while (it.hasNext()) {
+	    it.next();
+	    n++;
+	}
+	it.close();
+	Assert.assertEquals(19999, n);
+	for (int i = 0; i < 20000; i++)
+	    if (i != 500)
+		Assert.assertEquals(TEST_STRING + i, queue.poll());
+	Assert.assertNull(queue.poll());
+	queue.close();
+    }
+
+    @Test
+    public void testLargeEntries() {
+	FileBackedBlockingQueue<String> queue = newBuilder().build();
+	List<String> batch = new ArrayList<String>();
+	for (int i = 0; i < 20; i++) {
+	    // larger than a read block, then than the write buffer.
+	    queue.add(large(i, 20 * 1024));
+	    batch.add(large(i, 40 * 1024));
+	}
+	Assert.assertTrue(queue.offerAll(batch));
+	for (int i = 0; i < 20; i++)
+	    Assert.assertEquals(large(i, 20 * 1024), queue.poll());
+	for (int i = 0; i < 20; i++)
+	    Assert.assertEquals(large(i, 40 * 1024), queue.poll());
+	Assert.assertNull(queue.poll());
+	queue.close();
+    }
+
+    @Test
+    public void testConcurrentProducers() throws InterruptedException {
+	final FileBackedBlockingQueue<String> queue = newBuilder().build();
+	final int producers = 4, elements = 5000;
+	final CountDownLatch done = new CountDownLatch(producers);
+	ExecutorService executor = Executors.newFixedThreadPool(producers);
+	for (int t = 0; t < producers; t++) {
+	    final int producer = t;
+	    executor.execute(new Runnable() {
+		public void run() {
+		    for (int i = 0; i < elements; i++)
+			queue.offer(producer + ":" + i);
+		    done.countDown();
+		}
+	    });
+	}
+	int[] next = new int[producers];
+	for (int n = 0; n < producers * elements; n++) {
+	    String element = queue.poll(10, TimeUnit.SECONDS);
+	    Assert.assertNotNull(element);
+	    int producer = Integer.parseInt(element.substring(0, 1));
+	    Assert.assertEquals(producer + ":" + next[producer]++, element);
+	}
+	Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+	executor.shutdown();
+	Assert.assertNull(queue.poll());
+	queue.close();
+    }
+
+    @Test
+    public void testRecoverWithMappedEngine() {
+	FileBackedBlockingQueue<String> queue = newBuilder().build();
+	for (int i = 0; i < 10000; i++)
+	    queue.add(TEST_STRING + i);
+	for (int i = 0; i < 2500; i++)
+	    Assert.assertEquals(TEST_STRING + i, queue.poll());
+	queue.close();
+
+	// the format is the same, the buffered bytes were written on close.
+	FileBackedBlockingQueue<String> recovered = newBuilder()
+		.storage(StorageEngine.MMAP).recover(true).build();
+	Assert.assertEquals(7500, recovered.size());
+	for (int i = 2500; i < 10000; i++)
+	    Assert.assertEquals(TEST_STRING + i, recovered.poll());
+	Assert.assertNull(recovered.poll());
+	recovered.close();
+    }
+}
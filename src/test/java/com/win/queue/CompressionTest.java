@@ -0,0 +1,108 @@
+package com.win.queue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CompressionTest extends AbstractQueueTest {
+    static File COMPRESSION_DIR = new File(TEST_DIR, "compression");
+
+    @Before
+    public void cleanup() {
+	if (COMPRESSION_DIR.exists())
+	    for (File file : COMPRESSION_DIR.listFiles())
+		file.delete();
+	COMPRESSION_DIR.mkdirs();
+    }
+
+    private FileBackedBlockingQueue.Builder<String> newBuilder() {
+	return new FileBackedBlockingQueue.Builder<String>()
+		.directory(COMPRESSION_DIR)
+		.serializer(new StringSerializer())
+		.segmentSize(64 * 1024).compression(6);
+    }
+
+    private static List<String> batch(int from, int n) {
+	List<String> batch = new ArrayList<String>();
+	for (int i = from; i < from + n; i++)
+	    batch.add("{\"id\": " + i + ", \"text\": \"" + TEST_STRING + "\"}");
+	return batch;
+    }
+
+    @Test
+    public void testOfferAllPoll() {
+	FileBackedBlockingQueue<String> queue = newBuilder().build();
+	for (int i = 0; i < 10; i++)
+	    Assert.assertTrue(queue.offerAll(batch(i * 5000, 5000)));
+	queue.offer("single");
+	Assert.assertEquals(50001, queue.size());
+	Assert.assertTrue(queue.segments.getActiveSegments() > 1);
+	Assert.assertTrue(queue.getCompressionRatio() > 5);
+	Assert.assertTrue(queue.getCompressNanos() > 0);
+
+	Assert.assertEquals(batch(0, 1).get(0), queue.peek());
+	List<String> expected = batch(0, 50000);
+	for (int i = 0; i < 20000; i++)
+	    Assert.assertEquals(expected.get(i), queue.poll());
+	List<String> drained = new ArrayList<String>();
+	Assert.assertEquals(30001, queue.drainTo(drained));
+	Assert.assertEquals(expected.subList(20000, 50000),
+		drained.subList(0, 30000));
+	Assert.assertEquals("single", drained.get(30000));
+	Assert.assertTrue(queue.getDecompressNanos() > 0);
+	queue.close();
+    }
+
+    @Test
+    public void testRemoveFromBlock() {
+	FileBackedBlockingQueue<String> queue = newBuilder().build();
+	List<String> batch = batch(0, 100);
+	Assert.assertTrue(queue.offerAll(batch));
+	Assert.assertTrue(queue.remove(batch.get(50)));
+	Assert.assertFalse(queue.contains(batch.get(50)));
+	Assert.assertEquals(99, queue.size());
+	for (int i = 0; i < 100; i++)
+	    if (i != 50)
+		Assert.assertEquals(batch.get(i), queue.poll());
+	Assert.assertNull(queue.poll());
+
+	// a block of removed elements is dead as a whole.
+	Assert.assertTrue(queue.offerAll(batch(0, 2)));
+	Assert.assertTrue(queue.remove(batch.get(0)));
+	Assert.assertEquals(0, queue.segments.getDeadBytes());
+	Assert.assertTrue(queue.remove(batch.get(1)));
+	Assert.assertTrue(queue.segments.getDeadBytes() > 0);
+	Assert.assertNull(queue.poll());
+	queue.close();
+    }
+
+    @Test
+    public void testRecoverInBlock() {
+	FileBackedBlockingQueue<String> queue = newBuilder().build();
+	ConsumerGroup<String> group = queue.consumerGroup("group");
+	List<String> batch = batch(0, 1000);
+	Assert.assertTrue(queue.offerAll(batch));
+	for (int i = 0; i < 300; i++)
+	    Assert.assertEquals(batch.get(i), queue.poll());
+	for (int i = 0; i < 700; i++)
+	    Assert.assertEquals(batch.get(i), group.poll());
+	queue.close();
+
+	// both resume in the middle of the block.
+	FileBackedBlockingQueue<String> recovered = newBuilder().recover(true)
+		.build();
+	Assert.assertEquals(700, recovered.size());
+	group = recovered.consumerGroup("group");
+	for (int i = 700; i < 1000; i++)
+	    Assert.assertEquals(batch.get(i), group.poll());
+	Assert.assertNull(group.poll());
+	for (int i = 300; i < 1000; i++)
+	    Assert.assertEquals(batch.get(i), recovered.poll());
+	Assert.assertNull(recovered.poll());
+	recovered.close();
+    }
+}
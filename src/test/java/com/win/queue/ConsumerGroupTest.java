@@ -0,0 +1,137 @@
+package com.win.queue;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConsumerGroupTest extends AbstractQueueTest {
+    static File GROUP_DIR = new File(TEST_DIR, "groups");
+
+    @Before
+    public void cleanup() {
+	if (GROUP_DIR.exists())
+	    for (File file : GROUP_DIR.listFiles())
+		file.delete();
+	GROUP_DIR.mkdirs();
+    }
+
+    private FileBackedBlockingQueue.Builder<String> newBuilder() {
+	return new FileBackedBlockingQueue.Builder<String>()
+		.directory(GROUP_DIR)
+		.serializer(new StringSerializer())
+		.segmentSize((TEST_STRING.length() + Segment.ENTRY_OVERHEAD_SIZE + 10) * 100);
+    }
+
+    @Test
+    public void testIndependentGroups() {
+	FileBackedBlockingQueue<String> queue = newBuilder().build();
+	ConsumerGroup<String> first = queue.consumerGroup("first");
+	ConsumerGroup<String> second = queue.consumerGroup("second");
+	Assert.assertSame(first, queue.consumerGroup("first"));
+	for (int i = 0; i < 2000; i++)
+	    queue.add(TEST_STRING + i);
+	int active = queue.segments.getActiveSegments();
+
+	// the queue's consumer doesn't recycle the segments the groups need.
+	for (int i = 0; i < 2000; i++)
+	    Assert.assertEquals(TEST_STRING + i, queue.poll());
+	Assert.assertNull(queue.poll());
+	Assert.assertEquals(active, queue.segments.getActiveSegments());
+
+	for (int i = 0; i < 2000; i++)
+	    Assert.assertEquals(TEST_STRING + i, first.poll());
+	Assert.assertNull(first.poll());
+	Assert.assertEquals(active, queue.segments.getActiveSegments());
+
+	for (int i = 0; i < 1000; i++)
+	    Assert.assertEquals(TEST_STRING + i, second.poll());
+	Assert.assertTrue(queue.segments.getActiveSegments() < active / 2 + 2);
+	queue.removeConsumerGroup("second");
+	Assert.assertEquals(1, queue.segments.getActiveSegments());
+
+	queue.add(TEST_STRING);
+	Assert.assertEquals(TEST_STRING, first.poll());
+	Assert.assertEquals(TEST_STRING, queue.poll());
+	queue.close();
+    }
+
+    @Test
+    public void testRecoverGroups() {
+	FileBackedBlockingQueue<String> queue = newBuilder().build();
+	ConsumerGroup<String> group = queue.consumerGroup("group");
+	for (int i = 0; i < 2000; i++)
+	    queue.add(TEST_STRING + i);
+	for (int i = 0; i < 1500; i++)
+	    Assert.assertEquals(TEST_STRING + i, queue.poll());
+	for (int i = 0; i < 500; i++)
+	    Assert.assertEquals(TEST_STRING + i, group.poll());
+	queue.close();
+
+	FileBackedBlockingQueue<String> recovered = newBuilder().recover(true)
+		.build();
+	Assert.assertEquals(500, recovered.size());
+	group = recovered.consumerGroup("group");
+	for (int i = 500; i < 2000; i++)
+	    Assert.assertEquals(TEST_STRING + i, group.poll());
+	Assert.assertNull(group.poll());
+	for (int i = 1500; i < 2000; i++)
+	    Assert.assertEquals(TEST_STRING + i, recovered.poll());
+	Assert.assertNull(recovered.poll());
+	recovered.close();
+    }
+
+    @Test
+    public void testDurableGroups() {
+	// the cursors are forced with the segments and as they are trimmed.
+	FileBackedBlockingQueue<String> queue = newBuilder().durability(
+		DurabilityPolicy.SYNC_ON_PUT).build();
+	ConsumerGroup<String> group = queue.consumerGroup("group");
+	ConsumerGroup<String> dropped = queue.consumerGroup("dropped");
+	for (int i = 0; i < 2000; i++) {
+	    queue.add(TEST_STRING + i);
+	    Assert.assertEquals(TEST_STRING + i, queue.poll());
+	    if (i % 2 == 1) {
+		Assert.assertEquals(TEST_STRING + i / 2, group.poll());
+		Assert.assertEquals(TEST_STRING + i / 2, dropped.poll());
+	    }
+	}
+	queue.removeConsumerGroup("dropped");
+	queue.add(TEST_STRING);
+	queue.close();
+
+	FileBackedBlockingQueue<String> recovered = newBuilder().recover(true)
+		.build();
+	group = recovered.consumerGroup("group");
+	for (int i = 1000; i < 2000; i++)
+	    Assert.assertEquals(TEST_STRING + i, group.poll());
+	Assert.assertEquals(TEST_STRING, group.poll());
+	Assert.assertNull(group.poll());
+	recovered.close();
+    }
+
+    @Test
+    public void testTake() throws Exception {
+	final FileBackedBlockingQueue<String> queue = newBuilder().build();
+	final ConsumerGroup<String> group = queue.consumerGroup("group");
+	Assert.assertNull(group.poll(1, TimeUnit.MILLISECONDS));
+	ExecutorService executor = Executors.newSingleThreadExecutor();
+	Future<?> producer = executor.submit(new Runnable() {
+	    public void run() {
+		for (int i = 0; i < 2000; i++)
+		    queue.offer(TEST_STRING + i);
+	    }
+	});
+	for (int i = 0; i < 2000; i++)
+	    Assert.assertEquals(TEST_STRING + i, group.take());
+	producer.get();
+	executor.shutdown();
+	Assert.assertEquals(2000, queue.size());
+	queue.close();
+    }
+}
@@ -0,0 +1,160 @@
+package com.win.queue;
+
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DurabilityTest extends AbstractQueueTest {
+    private static final int NUM_THREADS = 10;
+
+    private FileBackedBlockingQueue<String> newQueue(DurabilityPolicy policy) {
+	return new FileBackedBlockingQueue.Builder<String>()
+		.directory(TEST_DIR)
+		.serializer(new StringSerializer())
+		.segmentSize((TEST_STRING.length() + Segment.ENTRY_OVERHEAD_SIZE + 10) * 100)
+		.durability(policy)
+		.build();
+    }
+
+    @Test
+    public void testSyncOnPut() throws InterruptedException {
+	final FileBackedBlockingQueue<String> queue = newQueue(DurabilityPolicy.SYNC_ON_PUT);
+	final CountDownLatch latch = new CountDownLatch(NUM_THREADS);
+	ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+	for (int i = 0; i < NUM_THREADS; i++) {
+	    executor.execute(new Runnable() {
+		public void run() {
+		    for (int i = 0; i < 200; i++)
+			queue.offer(TEST_STRING + i);
+		    latch.countDown();
+		}
+	    });
+	}
+	latch.await();
+	executor.shutdown();
+	Assert.assertEquals(NUM_THREADS * 200, queue.size());
+	// every put returns only after it is forced.
+	Assert.assertEquals(queue.syncer.getWritten(), queue.syncer.getSynced());
+	queue.close();
+    }
+
+    /**
+     * Counts the forces of every segment, a producer checks that the segment
+     * it appended to (the current one or a rolled one not forced yet when it
+     * took its ticket) was forced after that once its put returns.
+     */
+    private static class CheckingSyncer extends SegmentSyncer<String> {
+	private final SegmentFactory<String> segments;
+	private final Map<Segment<String>, Integer> forces = new IdentityHashMap<Segment<String>, Integer>();
+	private final Map<Segment<String>, Boolean> pending = new IdentityHashMap<Segment<String>, Boolean>();
+	private final ThreadLocal<Map<Segment<String>, Integer>> appended = new ThreadLocal<Map<Segment<String>, Integer>>();
+	private final AtomicInteger missed = new AtomicInteger();
+
+	CheckingSyncer(SegmentFactory<String> segments) {
+	    super(segments, DurabilityPolicy.SYNC_ON_PUT);
+	    this.segments = segments;
+	}
+
+	long appended(long bytes) {
+	    // before the ticket, a force covering it can start right after.
+	    Map<Segment<String>, Integer> snapshot = new HashMap<Segment<String>, Integer>();
+	    synchronized (this) {
+		for (Segment<String> segment : pending.keySet())
+		    snapshot.put(segment, forces(segment));
+		Segment<String> current = segments.getCurrent();
+		snapshot.put(current, forces(current));
+	    }
+	    appended.set(snapshot);
+	    return super.appended(bytes);
+	}
+
+	synchronized void rolled(Segment<String> segment) {
+	    pending.put(segment, true);
+	    super.rolled(segment);
+	}
+
+	void force(Segment<String> segment) {
+	    super.force(segment);
+	    synchronized (this) {
+		forces.put(segment, forces(segment) + 1);
+		pending.remove(segment);
+	    }
+	}
+
+	void afterAppend(long ticket) {
+	    super.afterAppend(ticket);
+	    synchronized (this) {
+		for (Map.Entry<Segment<String>, Integer> entry : appended.get().entrySet())
+		    if (forces(entry.getKey()) <= entry.getValue())
+			missed.incrementAndGet();
+	    }
+	}
+
+	private int forces(Segment<String> segment) {
+	    Integer n = forces.get(segment);
+	    return n == null ? 0 : n;
+	}
+    }
+
+    @Test
+    public void testRolloverDuringSync() throws InterruptedException {
+	final FileBackedBlockingQueue<String> queue = new FileBackedBlockingQueue.Builder<String>()
+		.directory(TEST_DIR)
+		.serializer(new StringSerializer())
+		.segmentSize((TEST_STRING.length() + Segment.ENTRY_OVERHEAD_SIZE + 10) * 10)
+		.build();
+	CheckingSyncer syncer = new CheckingSyncer(queue.segments);
+	queue.syncer = syncer;
+	final CountDownLatch latch = new CountDownLatch(NUM_THREADS);
+	ExecutorService executor = Executors.newFixedThreadPool(NUM_THREADS);
+	for (int i = 0; i < NUM_THREADS; i++) {
+	    executor.execute(new Runnable() {
+		public void run() {
+		    for (int i = 0; i < 200; i++)
+			queue.offer(TEST_STRING + i);
+		    latch.countDown();
+		}
+	    });
+	}
+	latch.await();
+	executor.shutdown();
+	Assert.assertEquals(NUM_THREADS * 200, queue.size());
+	Assert.assertTrue(queue.segments.getActiveSegments() > 10);
+	// no put returned before its segment, rolled or not, was forced.
+	Assert.assertEquals(0, syncer.missed.get());
+	Assert.assertEquals(syncer.getWritten(), syncer.getSynced());
+	queue.close();
+    }
+
+    @Test
+    public void testEveryBytes() {
+	FileBackedBlockingQueue<String> queue = newQueue(DurabilityPolicy.everyBytes(1024));
+	for (int i = 0; i < 2000; i++) {
+	    queue.offer(TEST_STRING + i);
+	    Assert.assertTrue(queue.syncer.getWritten() - queue.syncer.getSynced() < 1024);
+	}
+	queue.close();
+    }
+
+    @Test
+    public void testPeriodic() throws InterruptedException {
+	FileBackedBlockingQueue<String> queue = newQueue(DurabilityPolicy.periodic(10, TimeUnit.MILLISECONDS));
+	for (int i = 0; i < 2000; i++)
+	    queue.offer(TEST_STRING + i);
+	long written = queue.syncer.getWritten();
+	for (int i = 0; i < 100 && queue.syncer.getSynced() < written; i++)
+	    Thread.sleep(10);
+	Assert.assertEquals(written, queue.syncer.getSynced());
+	for (int i = 0; i < 2000; i++)
+	    Assert.assertEquals(TEST_STRING + i, queue.poll());
+	queue.close();
+    }
+}
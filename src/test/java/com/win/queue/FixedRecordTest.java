@@ -0,0 +1,112 @@
+package com.win.queue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FixedRecordTest extends AbstractQueueTest {
+    static File FIXED_DIR = new File(TEST_DIR, "fixed");
+
+    @Before
+    public void cleanup() {
+	if (FIXED_DIR.exists())
+	    for (File file : FIXED_DIR.listFiles())
+		file.delete();
+	FIXED_DIR.mkdirs();
+    }
+
+    private FileBackedBlockingQueue.Builder<Long> newBuilder() {
+	return new FileBackedBlockingQueue.Builder<Long>()
+		.directory(FIXED_DIR).serializer(new LongSerializer())
+		.segmentSize(256 * 1024).windowSize(64 * 1024).recordSize(8);
+    }
+
+    @Test
+    public void testOfferPeekPoll() {
+	FileBackedBlockingQueue<Long> queue = newBuilder().build();
+	List<Long> batch = new ArrayList<Long>();
+	for (long i = 0; i < 30000; i++) {
+	    queue.offer(i);
+	    batch.add(30000 + i);
+	}
+	Assert.assertTrue(queue.offerAll(batch));
+	Assert.assertTrue(queue.segments.getActiveSegments() > 2);
+	Assert.assertEquals(60000, queue.size());
+	for (int k : new int[] { 0, 1, 5040, 5041, 20163, 30000, 59999 })
+	    Assert.assertEquals(Long.valueOf(k), queue.peek(k));
+	Assert.assertNull(queue.peek(60000));
+
+	for (long i = 0; i < 25000; i++)
+	    Assert.assertEquals(Long.valueOf(i), queue.poll());
+	Assert.assertEquals(Long.valueOf(25000), queue.peek(0));
+	Assert.assertEquals(Long.valueOf(59999), queue.peek(34999));
+	for (long i = 25000; i < 60000; i++)
+	    Assert.assertEquals(Long.valueOf(i), queue.poll());
+	Assert.assertNull(queue.poll());
+	queue.close();
+    }
+
+    @Test
+    public void testPeekAfterRemove() {
+	FileBackedBlockingQueue<Long> queue = newBuilder().build();
+	for (long i = 0; i < 100; i++)
+	    queue.offer(i);
+	Assert.assertTrue(queue.remove(Long.valueOf(10)));
+	Assert.assertEquals(Long.valueOf(9), queue.peek(9));
+	Assert.assertEquals(Long.valueOf(11), queue.peek(10));
+	Assert.assertEquals(Long.valueOf(99), queue.peek(98));
+	Assert.assertNull(queue.peek(99));
+	queue.close();
+    }
+
+    @Test
+    public void testRecover() {
+	FileBackedBlockingQueue<Long> queue = newBuilder().build();
+	for (long i = 0; i < 50000; i++)
+	    queue.offer(i);
+	for (long i = 0; i < 2500; i++)
+	    Assert.assertEquals(Long.valueOf(i), queue.poll());
+	Assert.assertTrue(queue.remove(Long.valueOf(40000)));
+	queue.close();
+
+	FileBackedBlockingQueue<Long> recovered = newBuilder().recover(true)
+		.build();
+	Assert.assertEquals(47499, recovered.size());
+	Assert.assertEquals(Long.valueOf(2500), recovered.peek(0));
+	Assert.assertEquals(Long.valueOf(49999), recovered.peek(47498));
+	for (long i = 2500; i < 50000; i++)
+	    if (i != 40000)
+		Assert.assertEquals(Long.valueOf(i), recovered.poll());
+	Assert.assertNull(recovered.poll());
+	recovered.close();
+    }
+
+    @Test
+    public void testRecordSizeMismatch() {
+	FileBackedBlockingQueue<Long> queue = newBuilder().recordSize(4)
+		.build();
+	try {
+	    queue.offer(1L);
+	    Assert.fail();
+	} catch (IllegalArgumentException e) {
+	}
+	try {
+	    queue.put(1L);
+	    Assert.fail();
+	} catch (Exception e) {
+	    Assert.assertTrue(e instanceof IllegalArgumentException);
+	}
+	Assert.assertEquals(0, queue.size());
+	Assert.assertNull(queue.poll());
+	queue.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCompression() {
+	newBuilder().compression(6).build();
+    }
+}
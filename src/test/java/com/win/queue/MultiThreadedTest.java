@@ -1,5 +1,6 @@
 package com.win.queue;
 
+import java.io.File;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -43,7 +44,7 @@ public class MultiThreadedTest extends AbstractQueueTest {
 	    }
 
 	    public long serializedSize(Runnable t) {
-		return ((StringRunnable) t).str.length();
+		return ((StringRunnable) t).str.getBytes().length;
 	    }
 	}
     }
@@ -118,4 +119,121 @@ public class MultiThreadedTest extends AbstractQueueTest {
 						+ 2000 /* intial size */);
 	executor.shutdown();
     }
+
+    @Test
+    public void testConcurrentProducers() throws Exception {
+	final int producers = 8;
+	final int elements = 5000;
+	File dir = new File(TEST_DIR, "producers");
+	dir.mkdirs();
+	final FileBackedBlockingQueue<Long> queue = new FileBackedBlockingQueue.Builder<Long>()
+		.directory(dir)
+		.serializer(new LongSerializer())
+		.segmentSize(64 * 1024)
+		.windowSize(16 * 1024)
+		.build();
+	final CountDownLatch done = new CountDownLatch(producers);
+	ExecutorService executor = Executors.newFixedThreadPool(producers);
+	for (int p = 0; p < producers; p++) {
+	    final long producer = p;
+	    executor.execute(new Runnable() {
+		public void run() {
+		    for (long i = 0; i < elements; i++)
+			queue.offer(producer * elements + i);
+		    done.countDown();
+		}
+	    });
+	}
+	// every producer's elements are read in the order it offered them.
+	long[] last = new long[producers];
+	for (int p = 0; p < producers; p++)
+	    last[p] = p * elements - 1L;
+	for (int i = 0; i < producers * elements / 2; i++) {
+	    long element = queue.take();
+	    int producer = (int) (element / elements);
+	    Assert.assertEquals(last[producer] + 1, element);
+	    last[producer] = element;
+	}
+	done.await();
+	executor.shutdown();
+	queue.close();
+
+	// the rest is recovered from the segments.
+	FileBackedBlockingQueue<Long> recovered = new FileBackedBlockingQueue.Builder<Long>()
+		.directory(dir)
+		.serializer(new LongSerializer())
+		.segmentSize(64 * 1024)
+		.windowSize(16 * 1024)
+		.recover(true)
+		.build();
+	Assert.assertEquals(producers * elements / 2, recovered.size());
+	Long element;
+	while ((element = recovered.poll()) != null) {
+	    int producer = (int) (element / elements);
+	    Assert.assertEquals(last[producer] + 1, element.longValue());
+	    last[producer] = element;
+	}
+	for (int p = 0; p < producers; p++)
+	    Assert.assertEquals((p + 1L) * elements - 1, last[p]);
+	recovered.close();
+	for (File file : dir.listFiles())
+	    file.delete();
+	dir.delete();
+    }
+
+    @Test
+    public void testProducersRecycledSegments() throws Exception {
+	produceAndConsume(StorageEngine.MMAP);
+    }
+
+    @Test
+    public void testProducersChannelStorage() throws Exception {
+	produceAndConsume(StorageEngine.CHANNEL);
+    }
+
+    /**
+     * The producers append to small segments, which the consumer recycles as
+     * fast as they roll over, while it takes every element.
+     */
+    private void produceAndConsume(StorageEngine engine) throws Exception {
+	final int producers = 6;
+	final int elements = 300000;
+	File dir = new File(TEST_DIR, "recycled");
+	dir.mkdirs();
+	final FileBackedBlockingQueue<Long> queue = new FileBackedBlockingQueue.Builder<Long>()
+		.directory(dir)
+		.serializer(new LongSerializer())
+		.segmentSize(16 * 1024)
+		.maxMappedSegments(2)
+		.storage(engine)
+		.build();
+	ExecutorService executor = Executors.newFixedThreadPool(producers);
+	for (int p = 0; p < producers; p++) {
+	    final long producer = p;
+	    executor.execute(new Runnable() {
+		public void run() {
+		    for (long i = 0; i < elements; i++)
+			queue.offer(producer * elements + i);
+		}
+	    });
+	}
+	long[] last = new long[producers];
+	for (int p = 0; p < producers; p++)
+	    last[p] = p * elements - 1L;
+	for (int i = 0; i < producers * elements; i++) {
+	    Long element = queue.poll(10, TimeUnit.SECONDS);
+	    Assert.assertNotNull("element " + i, element);
+	    int producer = (int) (element / elements);
+	    Assert.assertEquals(last[producer] + 1, element.longValue());
+	    last[producer] = element;
+	}
+	executor.shutdown();
+	Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+	Assert.assertEquals(0, queue.size());
+	Assert.assertNull(queue.poll());
+	queue.close();
+	for (File file : dir.listFiles())
+	    file.delete();
+	dir.delete();
+    }
 }
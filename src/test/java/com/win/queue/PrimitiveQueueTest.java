@@ -0,0 +1,134 @@
+package com.win.queue;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PrimitiveQueueTest extends AbstractQueueTest {
+    static File PRIMITIVE_DIR = new File(TEST_DIR, "primitive");
+
+    @Before
+    public void cleanup() {
+	if (PRIMITIVE_DIR.exists())
+	    for (File file : PRIMITIVE_DIR.listFiles())
+		file.delete();
+	PRIMITIVE_DIR.mkdirs();
+    }
+
+    private FileBackedBlockingQueue.Builder<Object> newBuilder() {
+	return new FileBackedBlockingQueue.Builder<Object>().directory(
+		PRIMITIVE_DIR).segmentSize(64 * 1024);
+    }
+
+    @Test
+    public void testLongQueue() throws InterruptedException {
+	FileBackedLongQueue queue = new FileBackedLongQueue(newBuilder());
+	Assert.assertEquals(-1, queue.poll(-1));
+	for (long i = 0; i < 10000; i++)
+	    Assert.assertTrue(queue.offer(i));
+	long[] batch = new long[10000];
+	for (int i = 0; i < batch.length; i++)
+	    batch[i] = 10000 + i;
+	Assert.assertTrue(queue.offerAll(batch));
+	Assert.assertEquals(20000, queue.size());
+	Assert.assertTrue(queue.getQueue().segments.getActiveSegments() > 2);
+
+	Assert.assertEquals(0, queue.peek(-1));
+	for (long i = 0; i < 5000; i++)
+	    Assert.assertEquals(i, queue.take());
+	long[] drained = new long[20000];
+	Assert.assertEquals(100, queue.drainTo(drained, 0, 100));
+	Assert.assertEquals(14900, queue.drainTo(drained, 100, 19900));
+	for (int i = 0; i < 15000; i++)
+	    Assert.assertEquals(5000 + i, drained[i]);
+	Assert.assertEquals(-1, queue.poll(-1));
+	queue.close();
+    }
+
+    @Test
+    public void testRecoverLongQueue() throws InterruptedException {
+	FileBackedLongQueue queue = new FileBackedLongQueue(newBuilder());
+	for (long i = 0; i < 10000; i++)
+	    queue.put(Long.MAX_VALUE - i);
+	for (long i = 0; i < 2500; i++)
+	    Assert.assertEquals(Long.MAX_VALUE - i, queue.take());
+	queue.close();
+
+	FileBackedLongQueue recovered = new FileBackedLongQueue(newBuilder()
+		.recover(true));
+	Assert.assertEquals(7500, recovered.size());
+	for (long i = 2500; i < 10000; i++)
+	    Assert.assertEquals(Long.MAX_VALUE - i, recovered.take());
+	Assert.assertEquals(0, recovered.poll(0));
+	recovered.close();
+    }
+
+    @Test
+    public void testBuilderUnchanged() {
+	FileBackedBlockingQueue.Builder<Object> builder = newBuilder();
+	new FileBackedLongQueue(builder).close();
+	// the record serializer went to a copy, not to the caller's builder.
+	try {
+	    builder.build();
+	    Assert.fail("the builder has no serializer");
+	} catch (NullPointerException e) {
+	}
+    }
+
+    @Test
+    public void testIntQueue() throws InterruptedException {
+	FileBackedIntQueue queue = new FileBackedIntQueue(newBuilder()
+		.capacity(100));
+	int[] batch = new int[60];
+	for (int i = 0; i < batch.length; i++)
+	    batch[i] = -i;
+	queue.putAll(batch);
+	Assert.assertFalse(queue.offerAll(batch));
+	Assert.assertEquals(40, queue.remainingCapacity());
+	Assert.assertTrue(queue.offer(7));
+	int[] drained = new int[100];
+	Assert.assertEquals(61, queue.drainTo(drained));
+	Assert.assertArrayEquals(batch, Arrays.copyOf(drained, 60));
+	Assert.assertEquals(7, drained[60]);
+	Assert.assertEquals(100, queue.remainingCapacity());
+	queue.close();
+    }
+
+    @Test
+    public void testRecordQueue() throws InterruptedException {
+	FileBackedRecordQueue queue = new FileBackedRecordQueue(newBuilder(),
+		12);
+	byte[] records = new byte[12 * 1000];
+	for (int i = 0; i < records.length; i++)
+	    records[i] = (byte) (i / 12);
+	Assert.assertTrue(queue.offerAll(records, 0, 1000));
+	Assert.assertTrue(queue.offer(records, 12 * 999));
+	Assert.assertEquals(1001, queue.size());
+
+	byte[] record = new byte[14];
+	queue.take(record, 2);
+	Assert.assertArrayEquals(Arrays.copyOfRange(records, 0, 12),
+		Arrays.copyOfRange(record, 2, 14));
+	byte[] drained = new byte[12 * 1000];
+	Assert.assertEquals(999, queue.drainTo(drained, 0, 999));
+	Assert.assertArrayEquals(Arrays.copyOfRange(records, 12, 12 * 1000),
+		Arrays.copyOf(drained, 12 * 999));
+	Assert.assertTrue(queue.poll(record, 0));
+	Assert.assertEquals((byte) 999, record[11]);
+	Assert.assertFalse(queue.poll(record, 0));
+	try {
+	    queue.offer(records, records.length - 11);
+	    Assert.fail();
+	} catch (IndexOutOfBoundsException e) {
+	}
+	queue.close();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMemoryBuffer() {
+	new FileBackedLongQueue(newBuilder().memoryBuffer(100));
+    }
+}
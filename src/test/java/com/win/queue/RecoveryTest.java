@@ -0,0 +1,247 @@
+package com.win.queue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+
+public class RecoveryTest extends AbstractQueueTest {
+    static File RECOVERY_DIR = new File(TEST_DIR, "recovery");
+    static File STRIPE_DIR = new File(TEST_DIR, "stripe");
+
+    @Before
+    public void cleanup() {
+	for (File directory : new File[] { RECOVERY_DIR, STRIPE_DIR }) {
+	    if (directory.exists())
+		for (File file : directory.listFiles())
+		    file.delete();
+	    directory.mkdirs();
+	}
+    }
+
+    private FileBackedBlockingQueue<String> newQueue(boolean recover) {
+	return new FileBackedBlockingQueue.Builder<String>()
+		.directory(RECOVERY_DIR)
+		.serializer(new StringSerializer())
+		.segmentSize((TEST_STRING.length() + Segment.ENTRY_OVERHEAD_SIZE + 10) * 100)
+		.recover(recover)
+		.build();
+    }
+
+    @Test
+    public void testRecover() {
+	FileBackedBlockingQueue<String> queue = newQueue(false);
+	for (int i = 0; i < 2000; i++)
+	    queue.add(TEST_STRING + i);
+	for (int i = 0; i < 500; i++)
+	    Assert.assertEquals(TEST_STRING + i, queue.poll());
+	queue.remove(TEST_STRING + 600);
+
+	FileBackedBlockingQueue<String> recovered = newQueue(true);
+	Assert.assertEquals(1499, recovered.size());
+	for (int i = 500; i < 2000; i++) {
+	    if (i == 600)
+		continue;
+	    Assert.assertEquals(TEST_STRING + i, recovered.poll());
+	}
+	Assert.assertNull(recovered.poll());
+
+	// the recovered queue continues to accept new elements.
+	recovered.add(TEST_STRING);
+	Assert.assertEquals(TEST_STRING, recovered.poll());
+    }
+
+    @Test
+    public void testRecoverWindows() {
+	FileBackedBlockingQueue.Builder<String> builder = new FileBackedBlockingQueue.Builder<String>()
+		.directory(RECOVERY_DIR)
+		.serializer(new StringSerializer())
+		.segmentSize(4096 * 3 + 2048)
+		.windowSize(4096);
+	FileBackedBlockingQueue<String> queue = builder.build();
+	for (int i = 0; i < 2000; i++)
+	    queue.add(TEST_STRING + i);
+	// leave the read position in a window other than the first.
+	for (int i = 0; i < 250; i++)
+	    Assert.assertEquals(TEST_STRING + i, queue.poll());
+	queue.close();
+
+	FileBackedBlockingQueue<String> recovered = builder.recover(true).build();
+	Assert.assertEquals(1750, recovered.size());
+	for (int i = 250; i < 2000; i++)
+	    Assert.assertEquals(TEST_STRING + i, recovered.poll());
+	Assert.assertNull(recovered.poll());
+	recovered.close();
+    }
+
+    @Test
+    public void testRecoverCompacted() throws InterruptedException {
+	FileBackedBlockingQueue.Builder<String> builder = new FileBackedBlockingQueue.Builder<String>()
+		.directory(RECOVERY_DIR)
+		.serializer(new StringSerializer())
+		.segmentSize((TEST_STRING.length() + Segment.ENTRY_OVERHEAD_SIZE + 10) * 100)
+		.compactionThreshold(0.4);
+	FileBackedBlockingQueue<String> queue = builder.build();
+	for (int i = 0; i < 2000; i++)
+	    queue.add(TEST_STRING + i);
+	CloseableIterator<String> it = queue.iterator();
+	for (int i = 0; i < 2000; i++) {
+	    it.next();
+	    if (i >= 500 && i < 1500 && i % 2 == 0)
+		it.removeData();
+	}
+	it.close();
+	for (int i = 0; i < 300 && queue.segments.getCompactedSegments() < 8; i++)
+	    Thread.sleep(10);
+	Assert.assertTrue(queue.segments.getCompactedSegments() >= 8);
+	queue.close();
+
+	FileBackedBlockingQueue<String> recovered = builder.recover(true).build();
+	Assert.assertEquals(1500, recovered.size());
+	for (int i = 0; i < 2000; i++)
+	    if (i < 500 || i >= 1500 || i % 2 == 1)
+		Assert.assertEquals(TEST_STRING + i, recovered.poll());
+	Assert.assertNull(recovered.poll());
+	recovered.close();
+    }
+
+    private static int segmentFiles(File directory) {
+	int n = 0;
+	for (File file : directory.listFiles())
+	    if (file.getName().startsWith("Segment-"))
+		n++;
+	return n;
+    }
+
+    @Test
+    public void testRecoverStriped() {
+	int segmentSize = (TEST_STRING.length() + Segment.ENTRY_OVERHEAD_SIZE + 10) * 100;
+	FileBackedBlockingQueue.Builder<String> builder = new FileBackedBlockingQueue.Builder<String>()
+		.directory(RECOVERY_DIR, 100L * segmentSize)
+		.directory(STRIPE_DIR, 100L * segmentSize)
+		.serializer(new StringSerializer())
+		.segmentSize(segmentSize);
+	FileBackedBlockingQueue<String> queue = builder.build();
+	for (int i = 0; i < 2000; i++)
+	    queue.add(TEST_STRING + i);
+	// consecutive segments alternate between the directories.
+	int first = segmentFiles(RECOVERY_DIR), second = segmentFiles(STRIPE_DIR);
+	Assert.assertTrue(first + second > 10);
+	Assert.assertTrue(Math.abs(first - second) <= 1);
+	for (int i = 0; i < 500; i++)
+	    Assert.assertEquals(TEST_STRING + i, queue.poll());
+
+	FileBackedBlockingQueue<String> recovered = builder.recover(true).build();
+	Assert.assertEquals(1500, recovered.size());
+	for (int i = 500; i < 2000; i++)
+	    Assert.assertEquals(TEST_STRING + i, recovered.poll());
+	Assert.assertNull(recovered.poll());
+	queue.close();
+	recovered.close();
+    }
+
+    @Test
+    public void testDirectoryMax() {
+	int segmentSize = (TEST_STRING.length() + Segment.ENTRY_OVERHEAD_SIZE + 10) * 100;
+	FileBackedBlockingQueue<String> queue = new FileBackedBlockingQueue.Builder<String>()
+		.directory(RECOVERY_DIR, 2L * segmentSize)
+		.directory(STRIPE_DIR, 100L * segmentSize)
+		.placement(SegmentPlacement.FREE_SPACE)
+		.preallocate(1)
+		.serializer(new StringSerializer())
+		.segmentSize(segmentSize)
+		.build();
+	for (int i = 0; i < 2000; i++)
+	    queue.add(TEST_STRING + i);
+	Assert.assertTrue(segmentFiles(RECOVERY_DIR) <= 3);
+	Assert.assertTrue(segmentFiles(STRIPE_DIR) > 10);
+	for (int i = 0; i < 2000; i++)
+	    Assert.assertEquals(TEST_STRING + i, queue.poll());
+	queue.close();
+    }
+
+    @Test
+    public void testWithoutRecover() {
+	FileBackedBlockingQueue<String> queue = newQueue(false);
+	for (int i = 0; i < 200; i++)
+	    queue.add(TEST_STRING + i);
+	Assert.assertEquals(0, newQueue(false).size());
+    }
+
+    private static File segmentFile(File directory) {
+	for (File file : directory.listFiles())
+	    if (file.getName().startsWith("Segment-"))
+		return file;
+	return null;
+    }
+
+    @Test
+    public void testRecoverTornEntry() throws IOException {
+	FileBackedBlockingQueue<String> queue = newQueue(false);
+	for (int i = 0; i < 100; i++)
+	    queue.add(TEST_STRING + i);
+	queue.close();
+
+	// garble a byte of the 60th payload, as if its page never made it.
+	long position = Segment.HEADER_SIZE;
+	for (int i = 0; i < 60; i++)
+	    position += Segment.ENTRY_OVERHEAD_SIZE
+		    + (TEST_STRING + i).getBytes(Charsets.UTF_8).length;
+	RandomAccessFile file = new RandomAccessFile(segmentFile(RECOVERY_DIR),
+		"rw");
+	file.seek(position + Segment.ENTRY_OVERHEAD_SIZE + 3);
+	file.write('X');
+	file.close();
+
+	FileBackedBlockingQueue<String> recovered = newQueue(true);
+	Assert.assertEquals(60, recovered.size());
+	for (int i = 0; i < 60; i++)
+	    Assert.assertEquals(TEST_STRING + i, recovered.poll());
+	Assert.assertNull(recovered.poll());
+	recovered.add(TEST_STRING);
+	Assert.assertEquals(TEST_STRING, recovered.poll());
+	recovered.close();
+    }
+
+    @Test
+    public void testRecoverWithoutChecksums() throws IOException {
+	// a segment written before the entries had a checksum.
+	RandomAccessFile file = new RandomAccessFile(new File(RECOVERY_DIR,
+		"Segment-1.db"), "rw");
+	file.setLength(64 * 1024);
+	file.writeInt(0x46424251);
+	file.writeInt(2);
+	file.writeLong(1);
+	file.writeLong(Segment.HEADER_SIZE);
+	file.seek(Segment.HEADER_SIZE);
+	for (int i = 0; i < 50; i++) {
+	    byte[] payload = (TEST_STRING + i).getBytes(Charsets.UTF_8);
+	    file.writeInt(payload.length);
+	    file.writeByte(i == 10 ? -1 : 0);
+	    file.write(payload);
+	}
+	file.writeInt(-1);
+	file.close();
+
+	FileBackedBlockingQueue<String> recovered = newQueue(true);
+	Assert.assertEquals(49, recovered.size());
+	for (int i = 0; i < 25; i++)
+	    if (i != 10)
+		Assert.assertEquals(TEST_STRING + i, recovered.poll());
+	recovered.add(TEST_STRING);
+	recovered.close();
+
+	recovered = newQueue(true);
+	Assert.assertEquals(26, recovered.size());
+	for (int i = 25; i < 50; i++)
+	    Assert.assertEquals(TEST_STRING + i, recovered.poll());
+	Assert.assertEquals(TEST_STRING, recovered.poll());
+	Assert.assertNull(recovered.poll());
+	recovered.close();
+    }
+}
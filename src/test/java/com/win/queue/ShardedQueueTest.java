@@ -0,0 +1,257 @@
+package com.win.queue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Function;
+
+public class ShardedQueueTest extends AbstractQueueTest {
+    static File SHARD_DIR = new File(TEST_DIR, "shards");
+
+    @Before
+    public void cleanup() {
+	delete(SHARD_DIR);
+	SHARD_DIR.mkdirs();
+    }
+
+    private static void delete(File file) {
+	File[] files = file.listFiles();
+	if (files != null)
+	    for (File child : files)
+		delete(child);
+	file.delete();
+    }
+
+    private ShardedFileBackedBlockingQueue.Builder<Long> newBuilder() {
+	return new ShardedFileBackedBlockingQueue.Builder<Long>()
+		.directory(SHARD_DIR)
+		.shards(4)
+		.queue(new FileBackedBlockingQueue.Builder<Long>()
+			.serializer(new LongSerializer())
+			.segmentSize(64 * 1024));
+    }
+
+    @Test
+    public void testClearedShards() throws InterruptedException {
+	ShardedFileBackedBlockingQueue<Long> queue = newBuilder().build();
+	for (long i = 0; i < 8; i++)
+	    queue.offer(i);
+	// the permits of the cleared elements are dropped, not spun on.
+	for (int i = 0; i < queue.getShards(); i++)
+	    queue.getShard(i).clear();
+	Assert.assertNull(queue.poll());
+	queue.offer(100L);
+	Assert.assertEquals(100L, queue.take().longValue());
+	Assert.assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+	queue.close();
+    }
+
+    @Test
+    public void testProducersAndConsumers() throws Exception {
+	final ShardedFileBackedBlockingQueue<Long> queue = newBuilder().build();
+	final int elements = 20000;
+	final AtomicLong sum = new AtomicLong();
+	final CountDownLatch consumed = new CountDownLatch(elements);
+	ExecutorService executor = Executors.newFixedThreadPool(8);
+	for (int t = 0; t < 4; t++) {
+	    final long producer = t;
+	    executor.execute(new Runnable() {
+		public void run() {
+		    for (long i = producer; i < elements; i += 4)
+			queue.offer(i);
+		}
+	    });
+	    executor.execute(new Runnable() {
+		public void run() {
+		    try {
+			while (true) {
+			    sum.addAndGet(queue.take());
+			    consumed.countDown();
+			}
+		    } catch (InterruptedException e) {
+			return;
+		    }
+		}
+	    });
+	}
+	Assert.assertTrue(consumed.await(30, TimeUnit.SECONDS));
+	executor.shutdownNow();
+	Assert.assertEquals((long) elements * (elements - 1) / 2, sum.get());
+	Assert.assertEquals(0, queue.size());
+	Assert.assertNull(queue.poll());
+	queue.close();
+    }
+
+    @Test
+    public void testShardKey() {
+	ShardedFileBackedBlockingQueue<Long> queue = newBuilder().shardKey(
+		new Function<Long, Long>() {
+		    public Long apply(Long element) {
+			return element % 10;
+		    }
+		}).build();
+	for (long i = 0; i < 10000; i++)
+	    queue.offer(i);
+	for (int shard = 0; shard < queue.getShards(); shard++)
+	    Assert.assertTrue(queue.getShard(shard).size() < 10000);
+
+	// equal keys are taken in the order they were offered.
+	Map<Long, Long> last = new HashMap<Long, Long>();
+	Long element;
+	while ((element = queue.poll()) != null) {
+	    Long previous = last.put(element % 10, element);
+	    if (previous != null)
+		Assert.assertEquals(previous + 10, element.longValue());
+	}
+	Assert.assertEquals(10, last.size());
+	Assert.assertTrue(queue.getSteals() > 0);
+	queue.close();
+    }
+
+    @Test
+    public void testRemoveAndRecover() {
+	ShardedFileBackedBlockingQueue<Long> queue = newBuilder().build();
+	for (long i = 0; i < 1000; i++)
+	    queue.offer(i);
+	Assert.assertTrue(queue.contains(500L));
+	Assert.assertTrue(queue.remove(500L));
+	Assert.assertFalse(queue.remove(500L));
+	Assert.assertEquals(999, queue.size());
+	int n = 0;
+	CloseableIterator<Long> it = queue.iterator();
+	while (it.hasNext()) {
+	    Assert.assertFalse(it.next() == 500L);
+	    n++;
+	}
+	Assert.assertEquals(999, n);
+	queue.close();
+
+	queue = newBuilder().queue(
+		new FileBackedBlockingQueue.Builder<Long>()
+			.serializer(new LongSerializer())
+			.segmentSize(64 * 1024).recover(true)).build();
+	Assert.assertEquals(999, queue.size());
+	Assert.assertEquals(999, queue.drainTo(new ArrayList<Long>()));
+	Assert.assertNull(queue.poll());
+	queue.close();
+    }
+
+    @Test
+    public void testStripedRecover() throws InterruptedException {
+	File striped = new File(SHARD_DIR, "striped");
+	striped.mkdirs();
+	ShardedFileBackedBlockingQueue<Long> queue = newBuilder().queue(
+		new FileBackedBlockingQueue.Builder<Long>()
+			.serializer(new LongSerializer())
+			.directory(striped, Long.MAX_VALUE)
+			.segmentSize(1024).recover(true)).build();
+	for (long i = 0; i < 1000; i++)
+	    queue.offer(i);
+	queue.close();
+
+	queue = newBuilder().queue(
+		new FileBackedBlockingQueue.Builder<Long>()
+			.serializer(new LongSerializer())
+			.directory(striped, Long.MAX_VALUE)
+			.segmentSize(1024).recover(true)).build();
+	Assert.assertEquals(1000, queue.size());
+	// every element comes back from its own shard only.
+	boolean[] seen = new boolean[1000];
+	Long element;
+	while ((element = queue.poll()) != null) {
+	    Assert.assertFalse("twice " + element, seen[element.intValue()]);
+	    seen[element.intValue()] = true;
+	}
+	for (int i = 0; i < seen.length; i++)
+	    Assert.assertTrue("lost " + i, seen[i]);
+	queue.close();
+    }
+
+    @Test
+    public void testIteratorRemoveAndClear() throws InterruptedException {
+	FileBackedBlockingQueue.Builder<Long> shardBuilder = new FileBackedBlockingQueue.Builder<Long>()
+		.serializer(new LongSerializer()).segmentSize(64 * 1024);
+	ShardedFileBackedBlockingQueue<Long> queue = newBuilder().queue(
+		shardBuilder).build();
+	for (long i = 0; i < 1000; i++)
+	    queue.offer(i);
+	CloseableIterator<Long> it = queue.iterator();
+	while (it.hasNext())
+	    if (it.next() % 2 == 0)
+		it.removeData();
+	it.close();
+	Assert.assertEquals(500, queue.size());
+	Assert.assertFalse(queue.contains(500L));
+	Assert.assertTrue(queue.contains(501L));
+	for (int i = 0; i < 500; i++)
+	    Assert.assertTrue(queue.poll() % 2 == 1);
+	Assert.assertNull(queue.poll());
+
+	for (long i = 0; i < 1000; i++)
+	    queue.offer(i);
+	queue.clear();
+	Assert.assertEquals(0, queue.size());
+	Assert.assertNull(queue.poll());
+	queue.offer(100L);
+	Assert.assertEquals(100L, queue.take().longValue());
+	queue.close();
+
+	// every shard is built from a copy, the builder is left as it was.
+	try {
+	    shardBuilder.build();
+	    Assert.fail();
+	} catch (IllegalArgumentException e) {
+	}
+    }
+
+    static class Task implements Runnable {
+	static final AtomicInteger runs = new AtomicInteger();
+	static final QueueSerializer<Runnable> serializer = new QueueSerializer<Runnable>() {
+	    public byte[] serialize(Runnable t) {
+		return new byte[1];
+	    }
+
+	    public Runnable deserialize(byte[] bytes) {
+		return new Task();
+	    }
+
+	    public long serializedSize(Runnable t) {
+		return 1;
+	    }
+	};
+
+	public void run() {
+	    runs.incrementAndGet();
+	}
+    }
+
+    @Test
+    public void testExecutor() throws InterruptedException {
+	ShardedFileBackedBlockingQueue<Runnable> queue = new ShardedFileBackedBlockingQueue.Builder<Runnable>()
+		.directory(SHARD_DIR)
+		.queue(new FileBackedBlockingQueue.Builder<Runnable>()
+			.serializer(Task.serializer))
+		.build();
+	ThreadPoolExecutor executor = new ThreadPoolExecutor(4, 4, 60L,
+		TimeUnit.SECONDS, queue);
+	for (int i = 0; i < 2000; i++)
+	    executor.execute(new Task());
+	executor.shutdown();
+	Assert.assertTrue(executor.awaitTermination(30, TimeUnit.SECONDS));
+	Assert.assertEquals(2000, Task.runs.get());
+	queue.close();
+    }
+}